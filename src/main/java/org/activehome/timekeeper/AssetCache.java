@@ -0,0 +1,197 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+import org.activehome.tools.file.FileHelper;
+import org.activehome.tools.file.TypeMime;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Static files of the Timekeeper (web views) served from memory:
+ * each file is read from the class path and templated once, then kept
+ * with its MIME type and content hash (ETag). Each response is a new
+ * Json object, free for the caller to modify.
+ * The cache is cleared when the values of the templates change
+ * (start of the Timekeeper).
+ *
+ * @author Jacky Bourgeois
+ */
+final class AssetCache {
+
+    /**
+     * The class loader reading the files.
+     */
+    private final ClassLoader loader;
+    /**
+     * Fill the templates of a file: (file name, content) to content.
+     */
+    private final BiFunction<String, String, String> template;
+    /**
+     * The files read so far, by name.
+     */
+    private final ConcurrentHashMap<String, Asset> assets =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param theLoader   the class loader reading the files
+     * @param theTemplate fill the templates of a file
+     */
+    AssetCache(final ClassLoader theLoader,
+               final BiFunction<String, String, String> theTemplate) {
+        loader = theLoader;
+        template = theTemplate;
+    }
+
+    /**
+     * @param fileName the file to serve
+     * @return the file, read and templated at the first call
+     */
+    Asset get(final String fileName) {
+        Asset asset = assets.get(fileName);
+        if (asset == null) {
+            String content = FileHelper.fileToString(fileName, loader);
+            if (content == null) {
+                return new Asset(fileName, null);
+            }
+            asset = new Asset(fileName, template.apply(fileName, content));
+            Asset previous = assets.putIfAbsent(fileName, asset);
+            if (previous != null) {
+                asset = previous;
+            }
+        }
+        return asset;
+    }
+
+    /**
+     * Forget all files, to template them again.
+     */
+    void clear() {
+        assets.clear();
+    }
+
+    /**
+     * A file ready to serve, as the Json responses of the handler.
+     */
+    static final class Asset {
+
+        /**
+         * The templated content, null if not found.
+         */
+        private final String content;
+        /**
+         * The MIME type of the file.
+         */
+        private final String mime;
+        /**
+         * Hash of the content, quoted as an HTTP entity tag.
+         */
+        private final String etag;
+
+        /**
+         * @param fileName   the name of the file
+         * @param theContent the templated content, null if not found
+         */
+        private Asset(final String fileName, final String theContent) {
+            content = theContent;
+            mime = TypeMime.valueOf(fileName.substring(
+                    fileName.lastIndexOf(".") + 1)).getDesc();
+            byte[] bytes = new byte[0];
+            if (content != null) {
+                bytes = content.getBytes(StandardCharsets.UTF_8);
+            }
+            etag = "\"" + hash(bytes) + "\"";
+        }
+
+        /**
+         * @return content of the file in 'content', type in 'mime'
+         * and entity tag in 'etag'
+         */
+        JsonObject getJson() {
+            JsonObject json = new JsonObject();
+            json.add("content", content);
+            json.add("mime", mime);
+            json.add("etag", etag);
+            return json;
+        }
+
+        /**
+         * @param ifNoneMatch the entity tags held by the client
+         *                    (If-None-Match header)
+         * @return true if the client holds the current version
+         */
+        boolean matches(final String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                String trimmed = tag.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag)
+                        || trimmed.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return 'notModified' true, type in 'mime' and entity
+         * tag in 'etag'
+         */
+        JsonObject getNotModified() {
+            JsonObject json = new JsonObject();
+            json.add("notModified", true);
+            json.add("mime", mime);
+            json.add("etag", etag);
+            return json;
+        }
+
+        /**
+         * @param bytes the content
+         * @return the SHA-256 of the content, in hexadecimal
+         */
+        private static String hash(final byte[] bytes) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256")
+                        .digest(bytes);
+                StringBuilder hex = new StringBuilder();
+                for (byte b : digest) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
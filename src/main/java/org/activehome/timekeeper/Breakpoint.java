@@ -0,0 +1,154 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+
+/**
+ * A control command registered at a simulated time: pause, stop or
+ * zip change, applied by the {@code Timekeeper} with the clock pinned
+ * exactly at that time. Accessed under the {@code Timekeeper} lock.
+ *
+ * @author Jacky Bourgeois
+ */
+final class Breakpoint {
+
+    /**
+     * Commands of a breakpoint.
+     */
+    enum Command {
+        /**
+         * Pause the time.
+         */
+        PAUSE,
+        /**
+         * Stop the time.
+         */
+        STOP,
+        /**
+         * Change the zip.
+         */
+        ZIP
+    }
+
+    /**
+     * The id of the breakpoint.
+     */
+    private final long id;
+    /**
+     * The simulated UTC time of the breakpoint.
+     */
+    private final long ts;
+    /**
+     * The command to apply.
+     */
+    private final Command command;
+    /**
+     * The new zip, for a ZIP command.
+     */
+    private final double zip;
+    /**
+     * The timer of the breakpoint, null while not scheduled.
+     */
+    private TimingWheel.Timer timer;
+
+    /**
+     * @param theId      the id of the breakpoint
+     * @param theTS      the simulated UTC time of the breakpoint
+     * @param theCommand the command to apply
+     * @param theZip     the new zip, for a ZIP command
+     */
+    Breakpoint(final long theId,
+               final long theTS,
+               final Command theCommand,
+               final double theZip) {
+        id = theId;
+        ts = theTS;
+        command = theCommand;
+        zip = theZip;
+    }
+
+    /**
+     * @return the id of the breakpoint
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return the simulated UTC time of the breakpoint
+     */
+    long getTS() {
+        return ts;
+    }
+
+    /**
+     * @return the command to apply
+     */
+    Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the new zip, for a ZIP command
+     */
+    double getZip() {
+        return zip;
+    }
+
+    /**
+     * @return the timer of the breakpoint, null while not scheduled
+     */
+    TimingWheel.Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @param theTimer the timer of the breakpoint, null if dropped
+     */
+    void setTimer(final TimingWheel.Timer theTimer) {
+        timer = theTimer;
+    }
+
+    /**
+     * @return the id, time and command (with the zip) as Json
+     */
+    JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.add("id", id);
+        json.add("ts", ts);
+        json.add("command", command.name().toLowerCase());
+        if (command == Command.ZIP) {
+            if (zip == ClockState.AFAP) {
+                json.add("zip", "afap");
+            } else {
+                json.add("zip", zip);
+            }
+        }
+        return json;
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.client.ClockPage;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writer of the clock page: publishes each snapshot of the clock
+ * in a memory-mapped file, read by {@link ClockPage} in the other
+ * processes of the host. Single writer: updates are called under
+ * the lock of the Timekeeper. The file stays open until
+ * {@link #close}, the mapping is released with the writer.
+ *
+ * @author Jacky Bourgeois
+ */
+final class ClockPageWriter {
+
+    /**
+     * The channel of the file, holding the file until closed.
+     */
+    private final FileChannel channel;
+    /**
+     * The mapped page.
+     */
+    private final MappedByteBuffer page;
+    /**
+     * Sequence of the last update (even).
+     */
+    private long seq;
+
+    /**
+     * Create or reset the page.
+     *
+     * @param thePath the file of the page
+     * @throws IOException if the file cannot be mapped
+     */
+    ClockPageWriter(final String thePath) throws IOException {
+        channel = FileChannel.open(Paths.get(thePath),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            page = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, ClockPage.SIZE);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        page.order(ByteOrder.nativeOrder());
+        page.putLong(ClockPage.SEQUENCE_OFFSET, 0);
+        page.putInt(ClockPage.MAGIC_OFFSET, ClockPage.MAGIC);
+        page.putInt(ClockPage.VERSION_OFFSET, ClockPage.VERSION);
+    }
+
+    /**
+     * Publish a snapshot of the clock, anchored now.
+     *
+     * @param state the snapshot of the clock
+     */
+    void publish(final ClockState state) {
+        write(state, state.getStatus());
+    }
+
+    /**
+     * Publish the last snapshot of the clock as stopped, frozen at now,
+     * and close the file.
+     *
+     * @param state the last snapshot of the clock
+     * @throws IOException if the file cannot be closed
+     */
+    void close(final ClockState state) throws IOException {
+        try {
+            write(state, TimeStatus.STOPPED);
+            page.force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Write a snapshot of the clock, anchored now.
+     *
+     * @param state      the snapshot of the clock
+     * @param timeStatus the status to publish
+     */
+    private void write(final ClockState state, final TimeStatus timeStatus) {
+        long reading = System.nanoTime();
+        long anchor = state.getUTCTimeNanosAt(reading);
+        long start = state.getStartTS();
+        long zipBits = Double.doubleToRawLongBits(state.getZip());
+        int status = timeStatus.ordinal();
+        page.putLong(ClockPage.SEQUENCE_OFFSET, seq + 1);
+        page.putLong(ClockPage.START_OFFSET, start);
+        page.putLong(ClockPage.ANCHOR_OFFSET, anchor);
+        page.putLong(ClockPage.READING_OFFSET, reading);
+        page.putLong(ClockPage.ZIP_OFFSET, zipBits);
+        page.putInt(ClockPage.STATUS_OFFSET, status);
+        seq += 2;
+        page.putLong(ClockPage.CHECK_OFFSET, ClockPage.check(seq, start,
+                anchor, reading, zipBits, status));
+        page.putLong(ClockPage.SEQUENCE_OFFSET, seq);
+    }
+
+}
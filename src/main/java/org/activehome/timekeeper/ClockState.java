@@ -0,0 +1,354 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeStatus;
+
+/**
+ * Immutable snapshot of the timekeeper clock. A new snapshot is
+ * published by the {@code Timekeeper} on every state change, so that
+ * readers always compute the time from a consistent set of values
+ * without locking or allocating.
+ * The simulated time is a piecewise-linear function of the actual
+ * time: it grows at {@code zip} speed from an anchor, which is moved
+ * to the current time whenever the zip changes. In as-fast-as-possible
+ * mode ({@link #AFAP}), the time does not flow on its own: it is moved
+ * from event to event with {@link #advancedTo}.
+ *
+ * @author Jacky Bourgeois
+ */
+final class ClockState {
+
+    /**
+     * Number of nanoseconds in a millisecond.
+     */
+    static final long NANOS_PER_MILLI = 1000000L;
+    /**
+     * Zip of the as-fast-as-possible mode: the simulated time jumps
+     * straight to the next event instead of following the actual time.
+     */
+    static final double AFAP = Double.POSITIVE_INFINITY;
+
+    /**
+     * The {@link TimeStatus} of the clock.
+     */
+    private final TimeStatus status;
+    /**
+     * Time initialized when calling {@code Timekeeper#init},
+     * -1 to follow the actual time.
+     */
+    private final long startTS;
+    /**
+     * Simulated UTC time (in nanoseconds) at initTS, i.e. the start
+     * time or the time of the last zip change.
+     */
+    private final long anchorNanos;
+    /**
+     * Actual system time used to compute the delta
+     * with Active Home time (same as start time if actual time).
+     * In nanoseconds from {@link System#nanoTime()} if monotonic,
+     * in milliseconds from {@link System#currentTimeMillis()} otherwise.
+     */
+    private final long initTS;
+    /**
+     * Time spent on pause to add to time delta in simulation mode.
+     * (Combining all idle time since initTS, same unit as initTS)
+     */
+    private final long idleDuration;
+    /**
+     * When the current pause started (same unit as initTS).
+     */
+    private final long pauseTS;
+    /**
+     * The time compression factor as number.
+     */
+    private final double zip;
+    /**
+     * Is the elapsed time measured with {@link System#nanoTime()}
+     * (immune to system clock adjustments) rather than
+     * {@link System#currentTimeMillis()}?
+     */
+    private final boolean monotonic;
+
+    /**
+     * @param theStatus       the time status
+     * @param theStartTS      the start time (-1 for actual time)
+     * @param theAnchorNanos  the simulated time (ns) at theInitTS
+     * @param theInitTS       the system time when the time started
+     * @param theIdleDuration the total time spent on pause
+     * @param thePauseTS      the system time when the current pause started
+     * @param theZip          the time compression factor
+     * @param isMonotonic     measure elapsed time with the monotonic clock
+     */
+    ClockState(final TimeStatus theStatus,
+               final long theStartTS,
+               final long theAnchorNanos,
+               final long theInitTS,
+               final long theIdleDuration,
+               final long thePauseTS,
+               final double theZip,
+               final boolean isMonotonic) {
+        status = theStatus;
+        startTS = theStartTS;
+        anchorNanos = theAnchorNanos;
+        initTS = theInitTS;
+        idleDuration = theIdleDuration;
+        pauseTS = thePauseTS;
+        zip = theZip;
+        monotonic = isMonotonic;
+    }
+
+    /**
+     * Compute the UTC time of this snapshot: emulated idle/running or actual.
+     *
+     * @return UNIX timestamp.
+     */
+    long getUTCTime() {
+        if (startTS != -1) {
+            return Math.floorDiv(nanosAt(now()), NANOS_PER_MILLI);
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Compute the UTC time of this snapshot in nanoseconds. With the
+     * monotonic clock, the simulated time keeps a sub-millisecond
+     * resolution whatever the zip.
+     *
+     * @return UNIX timestamp in nanoseconds.
+     */
+    long getUTCTimeNanos() {
+        if (startTS != -1) {
+            return nanosAt(now());
+        }
+        return System.currentTimeMillis() * NANOS_PER_MILLI;
+    }
+
+    /**
+     * Compute the UTC time of this snapshot in nanoseconds at a reading
+     * of {@link System#nanoTime()}, exact with the monotonic clock.
+     *
+     * @param nanoTime a reading of {@link System#nanoTime()}
+     * @return UNIX timestamp in nanoseconds.
+     */
+    long getUTCTimeNanosAt(final long nanoTime) {
+        if (startTS != -1 && monotonic) {
+            return nanosAt(nanoTime);
+        }
+        return getUTCTimeNanos();
+    }
+
+    /**
+     * @param now a reading of the clock source
+     * @return the simulated time (in nanoseconds) at {@code now}
+     */
+    private long nanosAt(final long now) {
+        if (zip == AFAP) {
+            return anchorNanos;
+        }
+        double scaled = elapsed(now) * zip;
+        long whole = (long) scaled;
+        if (monotonic) {
+            return anchorNanos + whole;
+        }
+        return anchorNanos + whole * NANOS_PER_MILLI
+                + (long) ((scaled - whole) * NANOS_PER_MILLI);
+    }
+
+    /**
+     * @param now a reading of the clock source
+     * @return the actual time elapsed since initTS,
+     * not counting the pauses (in the unit of the clock source)
+     */
+    private long elapsed(final long now) {
+        if (status == TimeStatus.RUNNING) {
+            return now - initTS - idleDuration;
+        } else if (status == TimeStatus.IDLE
+                || status == TimeStatus.STOPPED) {
+            return pauseTS - initTS - idleDuration;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the current reading of the clock source
+     */
+    private long now() {
+        if (monotonic) {
+            return System.nanoTime();
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @param newStatus the status to switch to
+     * @return a copy of this snapshot with the given status
+     */
+    ClockState withStatus(final TimeStatus newStatus) {
+        return new ClockState(newStatus, startTS, anchorNanos, initTS,
+                idleDuration, pauseTS, zip, monotonic);
+    }
+
+    /**
+     * @param newStartTS the new start time (-1 for actual time)
+     * @return a copy of this snapshot with the given start time
+     */
+    ClockState withStartTS(final long newStartTS) {
+        return new ClockState(status, newStartTS,
+                newStartTS * NANOS_PER_MILLI, initTS,
+                idleDuration, pauseTS, zip, monotonic);
+    }
+
+    /**
+     * Change the zip, re-anchoring the time function at the current
+     * time so that the simulated time stays continuous.
+     *
+     * @param newZip the new time compression factor
+     * @return a copy of this snapshot with the given zip
+     */
+    ClockState withZip(final double newZip) {
+        if (startTS != -1) {
+            if (status == TimeStatus.RUNNING) {
+                long now = now();
+                return new ClockState(status, startTS, nanosAt(now), now,
+                        0, pauseTS, newZip, monotonic);
+            } else if (status == TimeStatus.IDLE
+                    || status == TimeStatus.STOPPED) {
+                return new ClockState(status, startTS, nanosAt(pauseTS),
+                        pauseTS, 0, pauseTS, newZip, monotonic);
+            }
+        }
+        return new ClockState(status, startTS, anchorNanos, initTS,
+                idleDuration, pauseTS, newZip, monotonic);
+    }
+
+    /**
+     * Move the simulated time of an as-fast-as-possible clock.
+     *
+     * @param ts the new simulated UTC time
+     * @return a copy of this snapshot anchored at {@code ts}
+     */
+    ClockState advancedTo(final long ts) {
+        return new ClockState(status, startTS, ts * NANOS_PER_MILLI, initTS,
+                idleDuration, pauseTS, zip, monotonic);
+    }
+
+    /**
+     * Switch the clock source, only meaningful before the time started.
+     *
+     * @param isMonotonic measure elapsed time with the monotonic clock
+     * @return a copy of this snapshot with the given clock source
+     */
+    ClockState withMonotonic(final boolean isMonotonic) {
+        return new ClockState(status, startTS, anchorNanos, initTS,
+                idleDuration, pauseTS, zip, isMonotonic);
+    }
+
+    /**
+     * @return a RUNNING copy of this snapshot starting the time now
+     * from the start time
+     */
+    ClockState started() {
+        return new ClockState(TimeStatus.RUNNING, startTS,
+                startTS * NANOS_PER_MILLI, now(), 0, pauseTS, zip, monotonic);
+    }
+
+    /**
+     * @param newStatus IDLE or STOPPED
+     * @return a copy of this snapshot with the time frozen now
+     */
+    ClockState frozen(final TimeStatus newStatus) {
+        return new ClockState(newStatus, startTS, anchorNanos, initTS,
+                idleDuration, now(), zip, monotonic);
+    }
+
+    /**
+     * Freeze the clock exactly at a given simulated time, rather than
+     * at the time reached when the freeze is applied.
+     *
+     * @param newStatus IDLE or STOPPED
+     * @param ts        the simulated UTC time to freeze at
+     * @return a copy of this snapshot with the time frozen now at ts
+     */
+    ClockState frozenAt(final TimeStatus newStatus, final long ts) {
+        long now = now();
+        return new ClockState(newStatus, startTS, ts * NANOS_PER_MILLI,
+                now, 0, now, zip, monotonic);
+    }
+
+    /**
+     * Change the zip of a running clock, re-anchoring the time
+     * function exactly at a given simulated time.
+     *
+     * @param newZip the new time compression factor
+     * @param ts     the simulated UTC time of the change
+     * @return a RUNNING copy of this snapshot at ts now, with the new zip
+     */
+    ClockState withZipAt(final double newZip, final long ts) {
+        return new ClockState(TimeStatus.RUNNING, startTS,
+                ts * NANOS_PER_MILLI, now(), 0, pauseTS, newZip, monotonic);
+    }
+
+    /**
+     * @return a RUNNING copy of this snapshot adding the current
+     * pause to the idle duration
+     */
+    ClockState resumed() {
+        return new ClockState(TimeStatus.RUNNING, startTS, anchorNanos,
+                initTS, idleDuration + now() - pauseTS, pauseTS,
+                zip, monotonic);
+    }
+
+    /**
+     * @return the {@link TimeStatus} of the clock
+     */
+    TimeStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the start time (-1 for actual time)
+     */
+    long getStartTS() {
+        return startTS;
+    }
+
+    /**
+     * @return true if the clock is in as-fast-as-possible mode
+     */
+    boolean isAsFastAsPossible() {
+        return zip == AFAP;
+    }
+
+    /**
+     * @return the time compression factor ({@link #AFAP} if
+     * as fast as possible)
+     */
+    double getZip() {
+        return zip;
+    }
+
+}
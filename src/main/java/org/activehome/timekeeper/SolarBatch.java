@@ -0,0 +1,368 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sunrise and sunset of many sites over a range of days, computed
+ * with {@link SolarCalculator#dailyEvents} in parallel (fork-join,
+ * split by sites, then by days). As for the Timekeeper, a day is the
+ * date in the zone time of the site and its sunrise and sunset are
+ * actual UTC instants; the flags are those of
+ * {@link SolarCalculator#sunriseSunset} ({@code SUNRISE}, {@code SUNSET},
+ * {@code SUN_UP}, {@code SUN_DOWN}), but not its times, which read the
+ * zone time as UTC. Results are primitive arrays, site major: the day
+ * {@code d} of the site {@code s} of a chunk is at
+ * {@code s * dayCount + d}.
+ * <p>
+ * Results are either written into arrays covering the whole
+ * site x day matrix ({@code #fill}), or streamed by chunks of
+ * sites and days ({@code #stream}) so that memory stays bounded
+ * for very large matrices, long ranges of days included.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class SolarBatch {
+
+    /**
+     * Default number of sites per chunk.
+     */
+    public static final int DEFAULT_CHUNK = 64;
+    /**
+     * Default number of days per chunk.
+     */
+    public static final int DEFAULT_CHUNK_DAYS = 366;
+
+    /**
+     * Receives the results of a chunk of sites and days. Chunks are
+     * delivered from the worker threads, in no particular order:
+     * implementations must be thread safe. The arrays are only valid
+     * during the call.
+     */
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        /**
+         * @param firstSite index of the first site of the chunk
+         * @param siteCount number of sites in the chunk
+         * @param firstDay  index of the first day of the chunk
+         *                  (from the first day of the range)
+         * @param dayCount  number of days per site in the chunk
+         * @param sunrise   sunrise times (site major)
+         * @param sunset    sunset times (site major)
+         * @param flags     {@code SolarCalculator} flags (site major)
+         */
+        void accept(int firstSite, int siteCount, int firstDay,
+                    int dayCount, long[] sunrise, long[] sunset,
+                    int[] flags);
+    }
+
+    /**
+     * Utility class.
+     */
+    private SolarBatch() {
+    }
+
+    /**
+     * Compute the whole site x day matrix in the common pool.
+     *
+     * @param lats          latitude of each site
+     * @param lons          longitude of each site
+     * @param offsetMinutes time zone offset of each site (minutes)
+     * @param fromEpochDay  first day (days since 1970-01-01)
+     * @param days          number of days
+     * @param sunrise       receives the sunrise times (sites x days)
+     * @param sunset        receives the sunset times (sites x days)
+     * @param flags         receives the flags (sites x days)
+     */
+    public static void fill(final double[] lats,
+                            final double[] lons,
+                            final int[] offsetMinutes,
+                            final long fromEpochDay,
+                            final int days,
+                            final long[] sunrise,
+                            final long[] sunset,
+                            final int[] flags) {
+        check(lats, lons, offsetMinutes);
+        long cells = (long) lats.length * days;
+        if (cells > Integer.MAX_VALUE || sunrise.length < cells
+                || sunset.length < cells || flags.length < cells) {
+            throw new IllegalArgumentException("Result arrays must hold "
+                    + cells + " values (sites x days).");
+        }
+        ForkJoinPool.commonPool().invoke(new Task(lats, lons, offsetMinutes,
+                fromEpochDay, 0, lats.length, 0, days, DEFAULT_CHUNK,
+                DEFAULT_CHUNK_DAYS,
+                (first, count, day, dayCount, rise, set, f) -> {
+                    for (int s = 0; s < count; s++) {
+                        int at = (first + s) * days + day;
+                        System.arraycopy(rise, s * dayCount, sunrise, at,
+                                dayCount);
+                        System.arraycopy(set, s * dayCount, sunset, at,
+                                dayCount);
+                        System.arraycopy(f, s * dayCount, flags, at,
+                                dayCount);
+                    }
+                }));
+    }
+
+    /**
+     * Compute the site x day matrix in the common pool,
+     * streaming the results by chunks of sites and days.
+     *
+     * @param lats          latitude of each site
+     * @param lons          longitude of each site
+     * @param offsetMinutes time zone offset of each site (minutes)
+     * @param fromEpochDay  first day (days since 1970-01-01)
+     * @param days          number of days
+     * @param chunkSites    maximum number of sites per chunk
+     * @param chunkDays     maximum number of days per chunk
+     * @param consumer      receives the results of each chunk
+     */
+    public static void stream(final double[] lats,
+                              final double[] lons,
+                              final int[] offsetMinutes,
+                              final long fromEpochDay,
+                              final int days,
+                              final int chunkSites,
+                              final int chunkDays,
+                              final ChunkConsumer consumer) {
+        stream(ForkJoinPool.commonPool(), lats, lons, offsetMinutes,
+                fromEpochDay, days, chunkSites, chunkDays, consumer);
+    }
+
+    /**
+     * Compute the site x day matrix in the given pool,
+     * streaming the results by chunks of sites and days.
+     *
+     * @param pool          the pool running the computation
+     * @param lats          latitude of each site
+     * @param lons          longitude of each site
+     * @param offsetMinutes time zone offset of each site (minutes)
+     * @param fromEpochDay  first day (days since 1970-01-01)
+     * @param days          number of days
+     * @param chunkSites    maximum number of sites per chunk
+     * @param chunkDays     maximum number of days per chunk
+     * @param consumer      receives the results of each chunk
+     */
+    public static void stream(final ForkJoinPool pool,
+                              final double[] lats,
+                              final double[] lons,
+                              final int[] offsetMinutes,
+                              final long fromEpochDay,
+                              final int days,
+                              final int chunkSites,
+                              final int chunkDays,
+                              final ChunkConsumer consumer) {
+        check(lats, lons, offsetMinutes);
+        if ((long) Math.max(1, chunkSites) * Math.max(1, chunkDays)
+                > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Chunk too large: "
+                    + chunkSites + " sites x " + chunkDays + " days.");
+        }
+        pool.invoke(new Task(lats, lons, offsetMinutes, fromEpochDay,
+                0, lats.length, 0, days, Math.max(1, chunkSites),
+                Math.max(1, chunkDays), consumer));
+    }
+
+    /**
+     * @param lats          latitude of each site
+     * @param lons          longitude of each site
+     * @param offsetMinutes time zone offset of each site (minutes)
+     */
+    private static void check(final double[] lats,
+                              final double[] lons,
+                              final int[] offsetMinutes) {
+        if (lats.length != lons.length
+                || lats.length != offsetMinutes.length) {
+            throw new IllegalArgumentException("Latitudes, longitudes and "
+                    + "offsets must have one value per site.");
+        }
+    }
+
+    /**
+     * Compute a range of sites and days, split in halves (sites first,
+     * then days) down to one chunk.
+     */
+    private static final class Task extends RecursiveAction {
+
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Latitude of each site.
+         */
+        private final double[] lats;
+        /**
+         * Longitude of each site.
+         */
+        private final double[] lons;
+        /**
+         * Time zone offset of each site (minutes).
+         */
+        private final int[] offsets;
+        /**
+         * First day (days since 1970-01-01).
+         */
+        private final long fromEpochDay;
+        /**
+         * First site of the range.
+         */
+        private final int from;
+        /**
+         * Last site (excluded) of the range.
+         */
+        private final int to;
+        /**
+         * First day of the range (from the first day).
+         */
+        private final int dayFrom;
+        /**
+         * Last day (excluded) of the range (from the first day).
+         */
+        private final int dayTo;
+        /**
+         * Maximum number of sites per chunk.
+         */
+        private final int chunk;
+        /**
+         * Maximum number of days per chunk.
+         */
+        private final int chunkDays;
+        /**
+         * Receives the results of each chunk.
+         */
+        private final transient ChunkConsumer consumer;
+
+        /**
+         * @param theLats     latitude of each site
+         * @param theLons     longitude of each site
+         * @param theOffsets  time zone offset of each site (minutes)
+         * @param theFromDay   first day (days since 1970-01-01)
+         * @param theFrom      first site of the range
+         * @param theTo        last site (excluded) of the range
+         * @param theDayFrom   first day of the range (from the first day)
+         * @param theDayTo     last day (excluded) of the range
+         * @param theChunk     maximum number of sites per chunk
+         * @param theChunkDays maximum number of days per chunk
+         * @param theConsumer  receives the results of each chunk
+         */
+        Task(final double[] theLats, final double[] theLons,
+             final int[] theOffsets, final long theFromDay,
+             final int theFrom, final int theTo,
+             final int theDayFrom, final int theDayTo,
+             final int theChunk, final int theChunkDays,
+             final ChunkConsumer theConsumer) {
+            lats = theLats;
+            lons = theLons;
+            offsets = theOffsets;
+            fromEpochDay = theFromDay;
+            from = theFrom;
+            to = theTo;
+            dayFrom = theDayFrom;
+            dayTo = theDayTo;
+            chunk = theChunk;
+            chunkDays = theChunkDays;
+            consumer = theConsumer;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunk) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Task(lats, lons, offsets, fromEpochDay,
+                                from, mid, dayFrom, dayTo, chunk, chunkDays,
+                                consumer),
+                        new Task(lats, lons, offsets, fromEpochDay,
+                                mid, to, dayFrom, dayTo, chunk, chunkDays,
+                                consumer));
+                return;
+            }
+            if (dayTo - dayFrom > chunkDays) {
+                int mid = (dayFrom + dayTo) >>> 1;
+                invokeAll(new Task(lats, lons, offsets, fromEpochDay,
+                                from, to, dayFrom, mid, chunk, chunkDays,
+                                consumer),
+                        new Task(lats, lons, offsets, fromEpochDay,
+                                from, to, mid, dayTo, chunk, chunkDays,
+                                consumer));
+                return;
+            }
+            int count = to - from;
+            int dayCount = dayTo - dayFrom;
+            long[] sunrise = new long[count * dayCount];
+            long[] sunset = new long[count * dayCount];
+            int[] flags = new int[count * dayCount];
+            long[] out = new long[SolarCalculator.EVENTS];
+            for (int s = 0; s < count; s++) {
+                int site = from + s;
+                for (int d = 0; d < dayCount; d++) {
+                    int i = s * dayCount + d;
+                    int events = SolarCalculator.dailyEvents(lats[site],
+                            lons[site], fromEpochDay + dayFrom + d,
+                            offsets[site], out);
+                    flags[i] = flags(events);
+                    if ((flags[i] & SolarCalculator.SUNRISE) != 0) {
+                        sunrise[i] = out[SolarDay.SUNRISE];
+                    }
+                    if ((flags[i] & SolarCalculator.SUNSET) != 0) {
+                        sunset[i] = out[SolarDay.SUNSET];
+                    }
+                }
+            }
+            consumer.accept(from, count, dayFrom, dayCount, sunrise, sunset,
+                    flags);
+        }
+
+        /**
+         * @param events the flags returned by
+         *               {@code SolarCalculator#dailyEvents}
+         * @return the matching flags of
+         * {@code SolarCalculator#sunriseSunset}
+         */
+        private static int flags(final int events) {
+            int flags = 0;
+            if ((events & (1 << SolarDay.SUNRISE)) != 0) {
+                flags |= SolarCalculator.SUNRISE;
+            }
+            if ((events & (1 << SolarDay.SUNSET)) != 0) {
+                flags |= SolarCalculator.SUNSET;
+            }
+            if ((events & SolarCalculator.DAY_UP) != 0) {
+                flags |= SolarCalculator.SUN_UP;
+            }
+            if ((events & SolarCalculator.DAY_DOWN) != 0) {
+                flags |= SolarCalculator.SUN_DOWN;
+            }
+            return flags;
+        }
+    }
+
+}
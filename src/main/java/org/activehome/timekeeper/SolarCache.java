@@ -0,0 +1,183 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Solar events already computed, by location, date (zone time) and
+ * time zone offset, keeping the most recently used days only.
+ * Coordinates are rounded to the micro degree (about 0.1 m).
+ * Thread safe.
+ *
+ * @author Jacky Bourgeois
+ */
+final class SolarCache {
+
+    /**
+     * Milliseconds in a day.
+     */
+    private static final long DAY = 86400000L;
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+    /**
+     * Rounding of the coordinates (micro degrees).
+     */
+    private static final double SCALE = 1e6;
+
+    /**
+     * Computed days, in access order (least recently used first).
+     */
+    private final LinkedHashMap<Key, SolarDay> days;
+
+    /**
+     * @param capacity maximum number of days kept
+     */
+    SolarCache(final int capacity) {
+        days = new LinkedHashMap<Key, SolarDay>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<Key, SolarDay> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param lat           latitude
+     * @param lon           longitude
+     * @param epochDay      days since 1970-01-01 (date in zone time)
+     * @param offsetMinutes time zone offset (minutes)
+     * @return the solar events of the day
+     */
+    SolarDay get(final double lat, final double lon,
+                 final long epochDay, final int offsetMinutes) {
+        Key key = new Key(lat, lon, epochDay, offsetMinutes);
+        synchronized (days) {
+            SolarDay day = days.get(key);
+            if (day != null) {
+                return day;
+            }
+        }
+        long[] out = new long[SolarCalculator.EVENTS];
+        int flags = SolarCalculator.dailyEvents(key.lat / SCALE,
+                key.lon / SCALE, epochDay, offsetMinutes, out);
+        SolarDay day = new SolarDay(epochDay, offsetMinutes, flags, out);
+        synchronized (days) {
+            days.put(key, day);
+        }
+        return day;
+    }
+
+    /**
+     * @param lat           latitude
+     * @param lon           longitude
+     * @param ts            UTC time
+     * @param offsetMinutes time zone offset (minutes)
+     * @return the solar events of the day (zone time) of {@code ts}
+     */
+    SolarDay at(final double lat, final double lon,
+                final long ts, final int offsetMinutes) {
+        return get(lat, lon, Math.floorDiv(ts + offsetMinutes * MINUTE, DAY),
+                offsetMinutes);
+    }
+
+    /**
+     * Compute in advance consecutive days.
+     *
+     * @param lat           latitude
+     * @param lon           longitude
+     * @param ts            UTC time in the first day
+     * @param count         number of days
+     * @param offsetMinutes time zone offset (minutes)
+     */
+    void prewarm(final double lat, final double lon, final long ts,
+                 final int count, final int offsetMinutes) {
+        long first = Math.floorDiv(ts + offsetMinutes * MINUTE, DAY);
+        for (int i = 0; i < count; i++) {
+            get(lat, lon, first + i, offsetMinutes);
+        }
+    }
+
+    /**
+     * Location, date and offset of a day.
+     */
+    private static final class Key {
+        /**
+         * Latitude in micro degrees.
+         */
+        private final long lat;
+        /**
+         * Longitude in micro degrees.
+         */
+        private final long lon;
+        /**
+         * Days since 1970-01-01 (zone time).
+         */
+        private final long epochDay;
+        /**
+         * Time zone offset in minutes.
+         */
+        private final int offset;
+
+        /**
+         * @param theLat      latitude
+         * @param theLon      longitude
+         * @param theEpochDay days since 1970-01-01 (zone time)
+         * @param theOffset   time zone offset (minutes)
+         */
+        Key(final double theLat, final double theLon,
+            final long theEpochDay, final int theOffset) {
+            lat = Math.round(theLat * SCALE);
+            lon = Math.round(theLon * SCALE);
+            epochDay = theEpochDay;
+            offset = theOffset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return lat == k.lat && lon == k.lon
+                    && epochDay == k.epochDay && offset == k.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = lat * 31 + lon;
+            h = h * 31 + epochDay;
+            h = h * 31 + offset;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+}
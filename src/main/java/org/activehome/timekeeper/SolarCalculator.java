@@ -0,0 +1,502 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+/**
+ * Stateless version of {@link SunsetSunrise} (no Date nor formatter):
+ * the same SUNUP.BAS computation (Sinnott, Sky &amp; Telescope,
+ * August 1994), performed in the same order on primitives only, so
+ * that results are bit-identical to the original class.
+ * <p>
+ * As in {@code SunsetSunrise}, the times of sunrise and sunset are
+ * the local (zone) clock times of the events, returned as UTC
+ * timestamps, and the day of interest is the UTC date. Dates are
+ * expected in the Gregorian calendar (after 15 October 1582).
+ *
+ * @author Jacky Bourgeois
+ */
+public final class SolarCalculator {
+
+    /**
+     * Flag: there is a sunrise this day, {@code out[0]} holds its time.
+     */
+    public static final int SUNRISE = 1;
+    /**
+     * Flag: there is a sunset this day, {@code out[1]} holds its time.
+     */
+    public static final int SUNSET = 2;
+    /**
+     * Flag: the sun is up all day.
+     */
+    public static final int SUN_UP = 4;
+    /**
+     * Flag: the sun is down all day.
+     */
+    public static final int SUN_DOWN = 8;
+
+    /**
+     * Number of daily terms filled by {@code #dailyTerms}.
+     */
+    public static final int TERMS = 5;
+    /**
+     * Sidereal angle covered in an hour (radians), SUNUP.BAS K1.
+     */
+    public static final double SIDEREAL_RATE = 15.0 * 1.0027379 * Math.PI
+            / 180.0;
+
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+    /**
+     * Milliseconds in an hour.
+     */
+    private static final long HOUR = 3600000L;
+    /**
+     * Milliseconds in a day.
+     */
+    private static final long DAY = 86400000L;
+
+    /**
+     * Number of daily events filled by {@code #dailyEvents}.
+     */
+    public static final int EVENTS = 9;
+    /**
+     * Flag of {@code #dailyEvents}: no sunrise nor sunset, sun up all day.
+     */
+    public static final int DAY_UP = 1 << EVENTS;
+    /**
+     * Flag of {@code #dailyEvents}: no sunrise nor sunset, sun down all day.
+     */
+    public static final int DAY_DOWN = 1 << (EVENTS + 1);
+    /**
+     * Cosine of the zenith distance of the astronomical, nautical and
+     * civil twilights, and of sunrise/sunset (refraction and Sun's
+     * radius included, as SUNUP.BAS).
+     */
+    private static final double[] COS_ZENITH = {
+            Math.cos(Math.toRadians(108)),
+            Math.cos(Math.toRadians(102)),
+            Math.cos(Math.toRadians(96)),
+            Math.cos(Math.PI * 90.833 / 180.0)};
+    /**
+     * Daily terms of each thread, so that computing a day allocates
+     * nothing once the thread has its array.
+     */
+    private static final ThreadLocal<double[]> TERMS_SCRATCH =
+            ThreadLocal.withInitial(() -> new double[TERMS]);
+
+    /**
+     * Utility class.
+     */
+    private SolarCalculator() {
+    }
+
+    /**
+     * Compute sunrise and sunset of a day, in the legacy convention of
+     * {@code SunsetSunrise}: the zone clock times of the events on the
+     * UTC date, read as UTC (minute precision). The Timekeeper and
+     * {@link SolarBatch} use the actual UTC instants of
+     * {@code #dailyEvents} instead.
+     *
+     * @param lat           latitude (degrees)
+     * @param lon           longitude (degrees)
+     * @param epochDay      days since 1970-01-01 (UTC date of interest)
+     * @param offsetMinutes time zone offset, in minutes east of UTC
+     * @param out           receives the sunrise (index 0) and the sunset
+     *                      (index 1), set only if the flag is returned
+     * @return a combination of {@link #SUNRISE}, {@link #SUNSET},
+     * {@link #SUN_UP} and {@link #SUN_DOWN}
+     */
+    public static int sunriseSunset(final double lat,
+                                    final double lon,
+                                    final long epochDay,
+                                    final int offsetMinutes,
+                                    final long[] out) {
+        double[] terms = TERMS_SCRATCH.get();
+        dailyTerms(lon, epochDay, offsetMinutes, terms, 0);
+        double dfT0 = terms[0];
+        double dfAA1 = terms[1];
+        double dfDD1 = terms[3];
+
+        // SUNUP.BAS 160 - 330
+        double dfZenith = Math.PI * 90.833 / 180.0;
+        double cosZenith = Math.cos(dfZenith);
+        double dfSinLat = Math.sin(lat * Math.PI / 180.0);
+        double dfCosLat = Math.cos(lat * Math.PI / 180.0);
+        double dfA0 = dfAA1;
+        double dfD0 = dfDD1;
+        double dfDA = terms[2];
+        double dfDD = terms[4];
+        double dfK1 = SIDEREAL_RATE;
+
+        double dfHourRise = 99.0;
+        double dfMinRise = 99.0;
+        double dfHourSet = 99.0;
+        double dfMinSet = 99.0;
+        double dfV2 = 0.0;
+        boolean bSunriseToday = false;
+        boolean bSunsetToday = false;
+
+        // SUNUP.BAS 210 - 610: test each hour for a horizon crossing
+        for (int iCount = 0; iCount < 24; iCount++) {
+            double dfC0 = (double) iCount;
+            double dfP = (dfC0 + 1.0) / 24.0;
+            double dfA2 = dfAA1 + dfP * dfDA;
+            double dfD2 = dfDD1 + dfP * dfDD;
+            double dfL0 = dfT0 + dfC0 * dfK1;
+            double dfL2 = dfL0 + dfK1;
+            double dfH0 = dfL0 - dfA0;
+            double dfH2 = dfL2 - dfA2;
+            double dfH1 = (dfH2 + dfH0) / 2.0;
+            double dfD1 = (dfD2 + dfD0) / 2.0;
+
+            double dfV0;
+            if (iCount == 0) {
+                dfV0 = dfSinLat * Math.sin(dfD0)
+                        + dfCosLat * Math.cos(dfD0) * Math.cos(dfH0)
+                        - cosZenith;
+            } else {
+                dfV0 = dfV2;
+            }
+            dfV2 = dfSinLat * Math.sin(dfD2)
+                    + dfCosLat * Math.cos(dfD2) * Math.cos(dfH2)
+                    - cosZenith;
+
+            if ((dfV0 >= 0.0 && dfV2 >= 0.0) || (dfV0 < 0.0 && dfV2 < 0.0)) {
+                dfA0 = dfA2;
+                dfD0 = dfD2;
+                continue;
+            }
+
+            double dfV1 = dfSinLat * Math.sin(dfD1)
+                    + dfCosLat * Math.cos(dfD1) * Math.cos(dfH1)
+                    - cosZenith;
+            double tempA = 2.0 * dfV2 - 4.0 * dfV1 + 2.0 * dfV0;
+            double tempB = 4.0 * dfV1 - 3.0 * dfV0 - dfV2;
+            double tempD = tempB * tempB - 4.0 * tempA * dfV0;
+            if (tempD < 0.0) {
+                dfA0 = dfA2;
+                dfD0 = dfD2;
+                continue;
+            }
+            tempD = Math.sqrt(tempD);
+
+            boolean bSunrise = dfV0 < 0.0 && dfV2 > 0.0;
+            boolean bSunset = dfV0 > 0.0 && dfV2 < 0.0;
+            bSunriseToday |= bSunrise;
+            bSunsetToday |= bSunset;
+
+            double tempE = (tempD - tempB) / (2.0 * tempA);
+            if (tempE > 1.0 || tempE < 0.0) {
+                tempE = (-tempD - tempB) / (2.0 * tempA);
+            }
+            if (bSunrise) {
+                dfHourRise = Math.floor(dfC0 + tempE + 1.0 / 120.0);
+                dfMinRise = Math.floor(
+                        (dfC0 + tempE + 1.0 / 120.0 - dfHourRise) * 60.0);
+            }
+            if (bSunset) {
+                dfHourSet = Math.floor(dfC0 + tempE + 1.0 / 120.0);
+                dfMinSet = Math.floor(
+                        (dfC0 + tempE + 1.0 / 120.0 - dfHourSet) * 60.0);
+            }
+            dfA0 = dfA2;
+            dfD0 = dfD2;
+        }
+
+        // hour and minute of the UTC date, read as GMT (hour 24 rolls over)
+        long midnight = epochDay * DAY;
+        int flags = 0;
+        if (bSunriseToday) {
+            out[0] = midnight + (int) dfHourRise * HOUR
+                    + (int) dfMinRise * MINUTE;
+            flags |= SUNRISE;
+        }
+        if (bSunsetToday) {
+            out[1] = midnight + (int) dfHourSet * HOUR
+                    + (int) dfMinSet * MINUTE;
+            flags |= SUNSET;
+        }
+        if (!bSunriseToday && !bSunsetToday) {
+            flags |= dfV2 < 0.0 ? SUN_DOWN : SUN_UP;
+        }
+        return flags;
+    }
+
+    /**
+     * Compute the daily terms of the Sun's position shared by sunrise,
+     * sunset and solar position: the local sidereal time at 0h zone
+     * time, the Sun's right ascension and declination at the start of
+     * the day and their change over the day (radians). At {@code h}
+     * hours (zone time), the hour angle is
+     * {@code T0 + h * SIDEREAL_RATE - (RA + h / 24 * dRA)} and the
+     * declination {@code DEC + h / 24 * dDEC}.
+     *
+     * @param lon           longitude (degrees)
+     * @param epochDay      days since 1970-01-01 (date of interest)
+     * @param offsetMinutes time zone offset, in minutes east of UTC
+     * @param terms         receives T0, RA, dRA, DEC, dDEC
+     * @param at            index of the first term in {@code terms}
+     */
+    public static void dailyTerms(final double lon,
+                                  final long epochDay,
+                                  final int offsetMinutes,
+                                  final double[] terms,
+                                  final int at) {
+        // civil date from the epoch day (proleptic Gregorian)
+        long z = epochDay + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int iDay = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int iMonth = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int iYear = (int) (yoe + era * 400 + (iMonth <= 2 ? 1 : 0));
+
+        // SUNUP.BAS 50, time zone positive west
+        double dfTimeZone = (offsetMinutes / 60.0) / 24.0;
+        dfTimeZone = -dfTimeZone;
+        double dfLon = lon / 360.0;
+
+        // SUNUP.BAS 1210 - 1290: Julian day
+        double dfJ = -Math.floor(7.0
+                * (Math.floor((iMonth + 9.0) / 12.0) + iYear) / 4.0)
+                + Math.floor(iMonth * 275.0 / 9.0)
+                + iDay
+                + 1721027.0
+                + iYear * 367.0;
+        if (iYear >= 1583) {
+            int iSign = (iMonth - 9.0) < 0.0 ? -1 : 1;
+            double dfA = Math.abs(iMonth - 9.0);
+            double dfJ3 = -Math.floor((Math.floor(Math.floor(iYear
+                    + (double) iSign * Math.floor(dfA / 7.0)) / 100.0)
+                    + 1.0) * 0.75);
+            dfJ = dfJ + dfJ3 + 2.0;
+        }
+        int iJulian = (int) dfJ - 1;
+
+        // SUNUP.BAS 60 - 90 and 410 - 460: local sidereal time
+        double dfT = (double) iJulian - 2451545.0 + 0.5;
+        double dfTT = dfT / 36525.0 + 1.0;
+        double dfT0 = (dfT * 8640184.813 / 36525.0
+                + 24110.5
+                + dfTimeZone * 86636.6
+                + dfLon * 86400.0)
+                / 86400.0;
+        dfT0 = dfT0 - Math.floor(dfT0);
+        dfT0 = dfT0 * 2.0 * Math.PI;
+        dfT = dfT + dfTimeZone;
+
+        // SUNUP.BAS 110 - 145: Sun's position at start and end of day
+        double dfAA1 = 0;
+        double dfAA2 = 0;
+        double dfDD1 = 0;
+        double dfDD2 = 0;
+        for (int iCount = 0; iCount <= 1; iCount++) {
+            double dfLL = 0.779072 + 0.00273790931 * dfT;
+            dfLL = dfLL - Math.floor(dfLL);
+            dfLL = dfLL * 2.0 * Math.PI;
+
+            double dfGG = 0.993126 + 0.0027377785 * dfT;
+            dfGG = dfGG - Math.floor(dfGG);
+            dfGG = dfGG * 2.0 * Math.PI;
+
+            double dfVV = 0.39785 * Math.sin(dfLL)
+                    - 0.01000 * Math.sin(dfLL - dfGG)
+                    + 0.00333 * Math.sin(dfLL + dfGG)
+                    - 0.00021 * Math.sin(dfLL) * dfTT;
+
+            double dfUU = 1
+                    - 0.03349 * Math.cos(dfGG)
+                    - 0.00014 * Math.cos(dfLL * 2.0)
+                    + 0.00008 * Math.cos(dfLL);
+
+            double dfWW = -0.00010
+                    - 0.04129 * Math.sin(dfLL * 2.0)
+                    + 0.03211 * Math.sin(dfGG)
+                    - 0.00104 * Math.sin(2.0 * dfLL - dfGG)
+                    - 0.00035 * Math.sin(2.0 * dfLL + dfGG)
+                    - 0.00008 * Math.sin(dfGG) * dfTT;
+
+            double dfSS = dfWW / Math.sqrt(dfUU - dfVV * dfVV);
+            double dfA5 = dfLL
+                    + Math.atan(dfSS / Math.sqrt(1.0 - dfSS * dfSS));
+
+            dfSS = dfVV / Math.sqrt(dfUU);
+            double dfD5 = Math.atan(dfSS / Math.sqrt(1 - dfSS * dfSS));
+
+            if (iCount == 0) {
+                dfAA1 = dfA5;
+                dfDD1 = dfD5;
+            } else {
+                dfAA2 = dfA5;
+                dfDD2 = dfD5;
+            }
+            dfT = dfT + 1.0;
+        }
+        if (dfAA2 < dfAA1) {
+            dfAA2 = dfAA2 + 2.0 * Math.PI;
+        }
+        terms[at] = dfT0;
+        terms[at + 1] = dfAA1;
+        terms[at + 2] = dfAA2 - dfAA1;
+        terms[at + 3] = dfDD1;
+        terms[at + 4] = dfDD2 - dfDD1;
+    }
+
+    /**
+     * Compute all solar events of a day in a single pass over its
+     * hours: for each hour, the Sun's altitude is interpolated as in
+     * SUNUP.BAS and tested against each zenith distance.
+     * Unlike {@code #sunriseSunset}, the day is the date in zone time
+     * ({@code epochDay} from the local midnight) and the events are
+     * actual UTC instants (millisecond precision). Events are, in
+     * {@code out}: astronomical, nautical and civil dawn, sunrise,
+     * solar noon, sunset, civil, nautical and astronomical dusk.
+     *
+     * @param lat           latitude (degrees)
+     * @param lon           longitude (degrees)
+     * @param epochDay      days since 1970-01-01 (date in zone time)
+     * @param offsetMinutes time zone offset, in minutes east of UTC
+     * @param out           receives the {@link #EVENTS} events,
+     *                      event {@code i} set only if bit {@code i}
+     *                      of the returned flags is set
+     * @return bits of the events that occur this day,
+     * plus {@link #DAY_UP} or {@link #DAY_DOWN} if no sunrise nor sunset
+     */
+    public static int dailyEvents(final double lat,
+                                  final double lon,
+                                  final long epochDay,
+                                  final int offsetMinutes,
+                                  final long[] out) {
+        double[] terms = TERMS_SCRATCH.get();
+        dailyTerms(lon, epochDay, offsetMinutes, terms, 0);
+        double sinLat = Math.sin(lat * Math.PI / 180.0);
+        double cosLat = Math.cos(lat * Math.PI / 180.0);
+        long midnight = epochDay * DAY - offsetMinutes * MINUTE;
+        int horizon = COS_ZENITH.length - 1;
+        int flags = 0;
+
+        double s0 = altitude(terms, sinLat, cosLat, 0);
+        for (int hour = 0; hour < 24; hour++) {
+            double s1 = altitude(terms, sinLat, cosLat, hour + 0.5);
+            double s2 = altitude(terms, sinLat, cosLat, hour + 1);
+            for (int k = 0; k < COS_ZENITH.length; k++) {
+                double v0 = s0 - COS_ZENITH[k];
+                double v1 = s1 - COS_ZENITH[k];
+                double v2 = s2 - COS_ZENITH[k];
+                int event;
+                if (v0 < 0.0 && v2 > 0.0) {
+                    event = k;
+                } else if (v0 > 0.0 && v2 < 0.0) {
+                    event = EVENTS - 1 - k;
+                } else {
+                    continue;
+                }
+                double a = 2.0 * v2 - 4.0 * v1 + 2.0 * v0;
+                double b = 4.0 * v1 - 3.0 * v0 - v2;
+                double d = b * b - 4.0 * a * v0;
+                if (d < 0.0) {
+                    continue;
+                }
+                d = Math.sqrt(d);
+                double e = (d - b) / (2.0 * a);
+                if (e > 1.0 || e < 0.0) {
+                    e = (-d - b) / (2.0 * a);
+                }
+                out[event] = midnight + Math.round((hour + e) * HOUR);
+                flags |= 1 << event;
+            }
+            s0 = s2;
+        }
+
+        // solar noon: the hour angle (linear over the day) crosses 0
+        double rate = SIDEREAL_RATE - terms[2] / 24.0;
+        double angle = -(terms[0] - terms[1]);
+        angle -= 2.0 * Math.PI * Math.floor(angle / (2.0 * Math.PI));
+        double noon = angle / rate;
+        if (noon < 24.0) {
+            out[EVENTS / 2] = midnight + Math.round(noon * HOUR);
+            flags |= 1 << (EVENTS / 2);
+        }
+
+        int rise = 1 << horizon;
+        int set = 1 << (EVENTS - 1 - horizon);
+        if ((flags & (rise | set)) == 0) {
+            flags |= s0 - COS_ZENITH[horizon] < 0.0 ? DAY_DOWN : DAY_UP;
+        }
+        return flags;
+    }
+
+    /**
+     * @param terms  the daily terms (see {@code #dailyTerms})
+     * @param sinLat sine of the latitude
+     * @param cosLat cosine of the latitude
+     * @param hour   hours since 0h zone time
+     * @return the cosine of the Sun's zenith distance at that hour
+     */
+    private static double altitude(final double[] terms,
+                                   final double sinLat,
+                                   final double cosLat,
+                                   final double hour) {
+        double p = hour / 24.0;
+        double hourAngle = terms[0] + hour * SIDEREAL_RATE
+                - (terms[1] + p * terms[2]);
+        double dec = terms[3] + p * terms[4];
+        return sinLat * Math.sin(dec)
+                + cosLat * Math.cos(dec) * Math.cos(hourAngle);
+    }
+
+    /**
+     * Same rule as {@code SunsetSunrise#isDaytime}, for any time.
+     *
+     * @param flags the flags returned by {@code #sunriseSunset}
+     * @param out   the times filled by {@code #sunriseSunset}
+     * @param ts    UTC time
+     * @return true if the sun is up at the given time
+     */
+    public static boolean isDaytime(final int flags,
+                                    final long[] out,
+                                    final long ts) {
+        boolean rise = (flags & SUNRISE) != 0;
+        boolean set = (flags & SUNSET) != 0;
+        if (rise && set) {
+            if (out[0] < out[1]) {
+                return ts >= out[0] && ts < out[1];
+            }
+            return ts >= out[0] || ts < out[1];
+        } else if (rise) {
+            return ts >= out[0];
+        } else if (set) {
+            return ts < out[1];
+        }
+        return (flags & SUN_UP) != 0;
+    }
+
+}
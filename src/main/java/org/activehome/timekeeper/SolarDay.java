@@ -0,0 +1,199 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+/**
+ * Solar events of a day at a location, as computed by
+ * {@link SolarCalculator#dailyEvents}: twilights, sunrise, solar
+ * noon and sunset, as UTC instants ordered by time.
+ *
+ * @author Jacky Bourgeois
+ */
+final class SolarDay {
+
+    /**
+     * Index of the sunrise among the events.
+     */
+    static final int SUNRISE = 3;
+    /**
+     * Index of the sunset among the events.
+     */
+    static final int SUNSET = 5;
+    /**
+     * Name of the events (metric 'time.' + name), by index.
+     */
+    static final String[] NAMES = {"astronomicalDawn", "nauticalDawn",
+            "civilDawn", "sunrise", "solarNoon", "sunset", "civilDusk",
+            "nauticalDusk", "astronomicalDusk"};
+
+    /**
+     * Milliseconds in a day.
+     */
+    private static final long DAY = 86400000L;
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+
+    /**
+     * The day, as days since 1970-01-01 (zone time).
+     */
+    private final long epochDay;
+    /**
+     * Time zone offset (minutes) of the day.
+     */
+    private final int offset;
+    /**
+     * Flags returned by {@code SolarCalculator#dailyEvents}.
+     */
+    private final int flags;
+    /**
+     * UTC time of all events, by index (meaningful if flagged).
+     */
+    private final long[] byEvent;
+    /**
+     * Index of the events occurring this day, ordered by time.
+     */
+    private final int[] events;
+
+    /**
+     * @param theEpochDay days since 1970-01-01 (zone time)
+     * @param theOffset   time zone offset (minutes)
+     * @param theFlags    flags returned by {@code SolarCalculator#dailyEvents}
+     * @param times       events filled by {@code SolarCalculator#dailyEvents}
+     */
+    SolarDay(final long theEpochDay, final int theOffset,
+             final int theFlags, final long[] times) {
+        epochDay = theEpochDay;
+        offset = theOffset;
+        flags = theFlags;
+        byEvent = times.clone();
+        events = new int[Integer.bitCount(flags
+                & ((1 << SolarCalculator.EVENTS) - 1))];
+        int n = 0;
+        for (int i = 0; i < SolarCalculator.EVENTS; i++) {
+            if (has(i)) {
+                int j = n++;
+                while (j > 0 && byEvent[events[j - 1]] > byEvent[i]) {
+                    events[j] = events[j - 1];
+                    j--;
+                }
+                events[j] = i;
+            }
+        }
+    }
+
+    /**
+     * @param event index of an event
+     * @return true if the event occurs this day
+     */
+    boolean has(final int event) {
+        return (flags & (1 << event)) != 0;
+    }
+
+    /**
+     * @param event index of an event
+     * @return UTC time of the event, meaningful if {@code #has}
+     */
+    long getTime(final int event) {
+        return byEvent[event];
+    }
+
+    /**
+     * @return the number of events occurring this day
+     */
+    int size() {
+        return events.length;
+    }
+
+    /**
+     * @param i position of the event in time order
+     * @return index of the event
+     */
+    int eventAt(final int i) {
+        return events[i];
+    }
+
+    /**
+     * @param i position of the event in time order
+     * @return UTC time of the event
+     */
+    long timeAt(final int i) {
+        return byEvent[events[i]];
+    }
+
+    /**
+     * @return the day, as days since 1970-01-01 (zone time)
+     */
+    long getEpochDay() {
+        return epochDay;
+    }
+
+    /**
+     * @return time zone offset (minutes) of the day
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return UTC time of the start of the day (local midnight)
+     */
+    long getStart() {
+        return epochDay * DAY - offset * MINUTE;
+    }
+
+    /**
+     * @return UTC time of the end of the day (next local midnight)
+     */
+    long getEnd() {
+        return getStart() + DAY;
+    }
+
+    /**
+     * Same rule as {@code SunsetSunrise#isDaytime}, for any time.
+     *
+     * @param ts UTC time
+     * @return true if the sun is up at the given time
+     */
+    boolean isDaytime(final long ts) {
+        boolean rise = has(SUNRISE);
+        boolean set = has(SUNSET);
+        if (rise && set) {
+            if (byEvent[SUNRISE] < byEvent[SUNSET]) {
+                return ts >= byEvent[SUNRISE] && ts < byEvent[SUNSET];
+            }
+            return ts >= byEvent[SUNRISE] || ts < byEvent[SUNSET];
+        } else if (rise) {
+            return ts >= byEvent[SUNRISE];
+        } else if (set) {
+            return ts < byEvent[SUNSET];
+        }
+        return (flags & SolarCalculator.DAY_UP) != 0;
+    }
+
+}
@@ -0,0 +1,156 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+/**
+ * Solar elevation and azimuth at a location, from the daily terms of
+ * {@link SolarCalculator}. Each day is sampled once into a table
+ * ({@code samples} intervals), then a query is a linear interpolation
+ * between two samples. Elevation is geometric (no refraction),
+ * azimuth is clockwise from the north, both in degrees.
+ * Thread safe.
+ *
+ * @author Jacky Bourgeois
+ */
+final class SolarPosition {
+
+    /**
+     * Milliseconds in a day.
+     */
+    private static final long DAY = 86400000L;
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+
+    /**
+     * Sine of the latitude.
+     */
+    private final double sinLat;
+    /**
+     * Cosine of the latitude.
+     */
+    private final double cosLat;
+    /**
+     * Longitude (degrees).
+     */
+    private final double lon;
+    /**
+     * Number of intervals sampled per day.
+     */
+    private final int samples;
+    /**
+     * Daily terms of the Sun's position (scratch).
+     */
+    private final double[] terms = new double[SolarCalculator.TERMS];
+    /**
+     * Elevation of the samples of the current day.
+     */
+    private final double[] elevation;
+    /**
+     * Azimuth of the samples of the current day (unwrapped, so that
+     * consecutive samples can be interpolated).
+     */
+    private final double[] azimuth;
+    /**
+     * Day (zone time, days since 1970-01-01) of the current table.
+     */
+    private long tableDay = Long.MIN_VALUE;
+    /**
+     * Time zone offset (minutes) of the current table.
+     */
+    private int tableOffset;
+
+    /**
+     * @param lat        latitude (degrees)
+     * @param theLon     longitude (degrees)
+     * @param theSamples number of intervals sampled per day
+     */
+    SolarPosition(final double lat, final double theLon,
+                  final int theSamples) {
+        sinLat = Math.sin(Math.toRadians(lat));
+        cosLat = Math.cos(Math.toRadians(lat));
+        lon = theLon;
+        samples = Math.max(24, theSamples);
+        elevation = new double[samples + 1];
+        azimuth = new double[samples + 1];
+    }
+
+    /**
+     * @param ts            UTC time
+     * @param offsetMinutes time zone offset, in minutes east of UTC
+     * @param out           receives the elevation (index 0)
+     *                      and the azimuth (index 1), in degrees
+     */
+    synchronized void position(final long ts,
+                               final int offsetMinutes,
+                               final double[] out) {
+        long local = ts + offsetMinutes * MINUTE;
+        long day = Math.floorDiv(local, DAY);
+        if (day != tableDay || offsetMinutes != tableOffset) {
+            fill(day, offsetMinutes);
+        }
+        double x = (double) (local - day * DAY) / DAY * samples;
+        int i = Math.min((int) x, samples - 1);
+        double f = x - i;
+        out[0] = elevation[i] + f * (elevation[i + 1] - elevation[i]);
+        double az = azimuth[i] + f * (azimuth[i + 1] - azimuth[i]);
+        out[1] = az - 360.0 * Math.floor(az / 360.0);
+    }
+
+    /**
+     * Sample a day.
+     *
+     * @param day           day (zone time, days since 1970-01-01)
+     * @param offsetMinutes time zone offset, in minutes east of UTC
+     */
+    private void fill(final long day, final int offsetMinutes) {
+        SolarCalculator.dailyTerms(lon, day, offsetMinutes, terms, 0);
+        double previous = 0;
+        for (int i = 0; i <= samples; i++) {
+            double p = (double) i / samples;
+            double hourAngle = terms[0] + p * 24 * SolarCalculator.SIDEREAL_RATE
+                    - (terms[1] + p * terms[2]);
+            double dec = terms[3] + p * terms[4];
+            double sinAlt = sinLat * Math.sin(dec)
+                    + cosLat * Math.cos(dec) * Math.cos(hourAngle);
+            elevation[i] = Math.toDegrees(
+                    Math.asin(Math.max(-1, Math.min(1, sinAlt))));
+            double az = Math.toDegrees(Math.atan2(Math.sin(hourAngle),
+                    Math.cos(hourAngle) * sinLat
+                            - Math.tan(dec) * cosLat)) + 180.0;
+            if (i > 0) {
+                az += 360.0 * Math.rint((previous - az) / 360.0);
+            }
+            azimuth[i] = az;
+            previous = az;
+        }
+        tableDay = day;
+        tableOffset = offsetMinutes;
+    }
+
+}
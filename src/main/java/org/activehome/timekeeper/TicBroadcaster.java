@@ -0,0 +1,143 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.client.TicReceiver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Broadcast of the Tics over UDP: each Tic is sent once, whatever
+ * the number of receivers, as a datagram to a multicast group or to
+ * a unicast address (e.g. loopback). A datagram is a sequence number
+ * followed by the binary record of the Tic, read by
+ * {@link TicReceiver}. The channel is non-blocking: a Tic that does
+ * not fit in the send buffer is counted as failed, never delayed.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TicBroadcaster {
+
+    /**
+     * The destination of the datagrams.
+     */
+    private final InetSocketAddress group;
+    /**
+     * The channel sending the datagrams.
+     */
+    private final DatagramChannel channel;
+    /**
+     * Buffer of the datagram, reused for each Tic.
+     */
+    private final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(TicReceiver.LENGTH);
+    /**
+     * Sequence number of the last Tic.
+     */
+    private long sequence;
+    /**
+     * Number of Tics that could not be sent.
+     */
+    private long failed;
+
+    /**
+     * @param theGroup      'address:port' of the group
+     * @param interfaceName the network interface sending to a multicast
+     *                      group, empty for the default one
+     * @throws IOException if the channel cannot be opened
+     */
+    TicBroadcaster(final String theGroup,
+                   final String interfaceName) throws IOException {
+        group = TicReceiver.address(theGroup);
+        InetAddress ip = group.getAddress();
+        channel = DatagramChannel.open(TicReceiver.family(ip));
+        if (ip.isMulticastAddress()) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            if (!interfaceName.trim().isEmpty()) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+                        TicReceiver.networkInterface(interfaceName));
+            }
+        }
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Send a Tic to the group.
+     *
+     * @param ts      the simulated time of the Tic
+     * @param zip     the actual zip of the Tic
+     * @param offset  the time zone offset of the Tic (minutes)
+     * @param status  the status of the Tic
+     * @param command the time command of the Tic
+     */
+    synchronized void send(final long ts,
+                           final double zip,
+                           final int offset,
+                           final TimeStatus status,
+                           final TimeCommand command) {
+        sequence++;
+        buffer.clear();
+        buffer.putLong(sequence);
+        TicCodec.put(buffer, ts, zip, offset, status, command);
+        buffer.flip();
+        try {
+            if (channel.send(buffer, group) == 0) {
+                failed++;
+            }
+        } catch (IOException e) {
+            failed++;
+        }
+    }
+
+    /**
+     * Close the channel.
+     *
+     * @throws IOException if the channel cannot be closed
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the group, number of Tics sent and failed
+     */
+    synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.add("group", group.toString());
+        stats.add("sent", sequence - failed);
+        stats.add("failed", failed);
+        return stats;
+    }
+
+}
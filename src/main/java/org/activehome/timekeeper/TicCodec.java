@@ -0,0 +1,290 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import com.eclipsesource.json.JsonObject;
+import org.activehome.time.Tic;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Compact binary wire format of the Tics, an alternative to JSON
+ * for fine-grained Tics sent to many components. A Tic is a fixed
+ * record of {@link #LENGTH} bytes (big endian):
+ * version (1), timestamp (8), zip (8, double), time zone offset
+ * (4, minutes), status (1), command (1); status and command are the
+ * ordinals of their enum. The zip is the actual one (fractional,
+ * positive infinity as fast as possible), see {@link TicRecord}.
+ * On the String-typed tic port, the record is carried in Base64.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class TicCodec {
+
+    /**
+     * Version of the record layout.
+     */
+    public static final byte VERSION = 1;
+    /**
+     * Size of a record, in bytes.
+     */
+    public static final int LENGTH = 23;
+
+    /**
+     * Utility class.
+     */
+    private TicCodec() {
+    }
+
+    /**
+     * @param tic the Tic to encode
+     * @return the record of the Tic
+     */
+    public static byte[] toBytes(final Tic tic) {
+        return toBytes(tic.getTS(), TicRecord.fromTicZip(tic.getZip()),
+                tic.getTimezone() * 60, tic.getStatus(), tic.getCommand());
+    }
+
+    /**
+     * @param ts      the simulated time of the Tic
+     * @param zip     the actual zip of the Tic
+     * @param offset  the time zone offset of the Tic (minutes)
+     * @param status  the status of the Tic
+     * @param command the time command of the Tic
+     * @return the record of the Tic
+     */
+    public static byte[] toBytes(final long ts,
+                                 final double zip,
+                                 final int offset,
+                                 final TimeStatus status,
+                                 final TimeCommand command) {
+        byte[] record = new byte[LENGTH];
+        put(ByteBuffer.wrap(record), ts, zip, offset, status, command);
+        return record;
+    }
+
+    /**
+     * Write the record of a Tic at the position of a buffer.
+     *
+     * @param buffer  the buffer, with at least {@link #LENGTH} bytes left
+     * @param ts      the simulated time of the Tic
+     * @param zip     the actual zip of the Tic
+     * @param offset  the time zone offset of the Tic (minutes)
+     * @param status  the status of the Tic
+     * @param command the time command of the Tic
+     * @return the buffer
+     */
+    public static ByteBuffer put(final ByteBuffer buffer,
+                                 final long ts,
+                                 final double zip,
+                                 final int offset,
+                                 final TimeStatus status,
+                                 final TimeCommand command) {
+        return buffer.put(VERSION)
+                .putLong(ts)
+                .putDouble(zip)
+                .putInt(offset)
+                .put((byte) status.ordinal())
+                .put((byte) command.ordinal());
+    }
+
+    /**
+     * @param record the record of a Tic
+     * @return the decoded Tic
+     * @throws IllegalArgumentException if the record is not a valid Tic
+     */
+    public static Tic fromBytes(final byte[] record) {
+        return readBytes(record).toTic();
+    }
+
+    /**
+     * Read the record of a Tic at the position of a buffer.
+     *
+     * @param buffer the buffer
+     * @return the decoded Tic
+     * @throws IllegalArgumentException if the record is not a valid Tic
+     */
+    public static Tic get(final ByteBuffer buffer) {
+        return read(buffer).toTic();
+    }
+
+    /**
+     * Read the record of a Tic at the position of a buffer,
+     * with its actual zip.
+     *
+     * @param buffer the buffer
+     * @return the decoded Tic
+     * @throws IllegalArgumentException if the record is not a valid Tic
+     */
+    public static TicRecord read(final ByteBuffer buffer) {
+        if (buffer.remaining() < LENGTH || buffer.get() != VERSION) {
+            throw new IllegalArgumentException("Not a Tic record (version "
+                    + VERSION + ", " + LENGTH + " bytes).");
+        }
+        long ts = buffer.getLong();
+        double zip = buffer.getDouble();
+        int offset = buffer.getInt();
+        TimeStatus status = valueOf(TimeStatus.values(), buffer.get());
+        TimeCommand command = valueOf(TimeCommand.values(), buffer.get());
+        return new TicRecord(ts, zip, offset, status, command);
+    }
+
+    /**
+     * @param ts      the simulated time of the Tic
+     * @param zip     the actual zip of the Tic
+     * @param offset  the time zone offset of the Tic (minutes)
+     * @param status  the status of the Tic
+     * @param command the time command of the Tic
+     * @return the record of the Tic, in Base64
+     */
+    public static String encode(final long ts,
+                                final double zip,
+                                final int offset,
+                                final TimeStatus status,
+                                final TimeCommand command) {
+        return Base64.getEncoder().encodeToString(
+                toBytes(ts, zip, offset, status, command));
+    }
+
+    /**
+     * @param tic the Tic to encode
+     * @return the record of the Tic, in Base64
+     */
+    public static String encode(final Tic tic) {
+        return Base64.getEncoder().encodeToString(toBytes(tic));
+    }
+
+    /**
+     * Decode a payload received from the tic port, whatever its format.
+     *
+     * @param payload a Tic, in JSON or Base64 record
+     * @return the decoded Tic
+     * @throws IllegalArgumentException if the payload is not a valid Tic
+     */
+    public static Tic decode(final String payload) {
+        if (isJson(payload)) {
+            return new Tic(JsonObject.readFrom(payload));
+        }
+        return fromBytes(Base64.getDecoder().decode(payload.trim()));
+    }
+
+    /**
+     * Decode a payload received from the tic port, whatever its format,
+     * with its actual zip.
+     *
+     * @param payload a Tic, in JSON or Base64 record
+     * @return the decoded Tic
+     * @throws IllegalArgumentException if the payload is not a valid Tic
+     */
+    public static TicRecord read(final String payload) {
+        if (isJson(payload)) {
+            return new TicRecord(JsonObject.readFrom(payload));
+        }
+        return readBytes(Base64.getDecoder().decode(payload.trim()));
+    }
+
+    /**
+     * @param payload a Tic received from the tic port
+     * @return true if the Tic is in JSON, false if it is a binary record
+     */
+    public static boolean isJson(final String payload) {
+        return payload.trim().startsWith("{");
+    }
+
+    /**
+     * Render a Tic as JSON: the fields of {@code Tic#toString}, the zip
+     * rounded to an integer and the offset in whole hours, followed by
+     * the actual zip in {@link TicRecord#ZIP_FACTOR} (omitted as fast as
+     * possible, JSON having no infinity) and the offset in minutes in
+     * {@link TicRecord#UTC_OFFSET}.
+     *
+     * @param ts      the simulated time of the Tic
+     * @param zip     the actual zip of the Tic
+     * @param offset  the time zone offset of the Tic (minutes)
+     * @param status  the status of the Tic
+     * @param command the time command of the Tic
+     * @return the JSON payload of the Tic
+     */
+    static String json(final long ts,
+                       final double zip,
+                       final int offset,
+                       final TimeStatus status,
+                       final TimeCommand command) {
+        String json = new Tic(ts, TicRecord.toTicZip(zip), offset / 60,
+                status, command).toString();
+        int end = json.lastIndexOf('}');
+        if (end < 0) {
+            return json;
+        }
+        StringBuilder fields = new StringBuilder(json.length() + 40);
+        fields.append(json, 0, end);
+        if (!Double.isInfinite(zip) && !Double.isNaN(zip)) {
+            fields.append(",\"").append(TicRecord.ZIP_FACTOR).append("\":");
+            if (zip == Math.rint(zip) && Math.abs(zip) < 1e15) {
+                fields.append((long) zip);
+            } else {
+                fields.append(zip);
+            }
+        }
+        fields.append(",\"").append(TicRecord.UTC_OFFSET).append("\":")
+                .append(offset);
+        return fields.append(json, end, json.length()).toString();
+    }
+
+    /**
+     * @param record the record of a Tic
+     * @return the decoded Tic, with its actual zip
+     * @throws IllegalArgumentException if the record is not a valid Tic
+     */
+    private static TicRecord readBytes(final byte[] record) {
+        if (record.length != LENGTH) {
+            throw new IllegalArgumentException("Not a Tic record (version "
+                    + VERSION + ", " + LENGTH + " bytes).");
+        }
+        return read(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * @param values  the values of the enum
+     * @param ordinal the ordinal read from the record
+     * @param <E>     the enum
+     * @return the matching value
+     */
+    private static <E extends Enum<E>> E valueOf(final E[] values,
+                                                 final byte ordinal) {
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IllegalArgumentException("Unknown "
+                    + values[0].getDeclaringClass().getSimpleName()
+                    + " in Tic record: " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+}
@@ -0,0 +1,419 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+import org.kevoree.api.Port;
+import org.kevoree.log.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery stage between the {@code Timekeeper} and its tic port.
+ * Tics wait in a bounded queue, sent by a dedicated thread, so that
+ * slow consumers cannot build an unbounded backlog: when the queue
+ * is full, the {@link Policy} decides what happens to the regular
+ * Tics. Tics announcing a change (time command, zip, time zone
+ * offset) are never dropped.
+ * The stage measures the delivery (latency, queue depth, failures)
+ * and, if adaptive, lowers the granularity of the regular Tics
+ * while consumers lag behind. A Kevoree port sends each message to
+ * all its bindings in one call: the queue, the metrics and the
+ * decimation are those of the port, set by its slowest consumer,
+ * and shared by all the bindings. As fast as possible, no Tic is dropped:
+ * the scheduler waits for the queue to drain before moving the
+ * simulated time on ({@link #awaitDrained()}).
+ *
+ * @author Jacky Bourgeois
+ */
+final class TicDispatcher implements Runnable {
+
+    /**
+     * What to do with regular Tics when consumers lag behind.
+     */
+    enum Policy {
+        /**
+         * Replace the pending regular Tic by the latest one.
+         */
+        COALESCE,
+        /**
+         * Drop the oldest pending regular Tic when the queue is full.
+         */
+        DROP_OLDEST,
+        /**
+         * Wait for space in the queue (slows down the scheduler),
+         * at most {@link #MAX_WAIT_MS}, then drop the regular Tic.
+         */
+        BLOCK
+    }
+
+    /**
+     * The port to send the Tics through.
+     */
+    private final Port port;
+    /**
+     * Maximum number of pending Tics.
+     */
+    private final int capacity;
+    /**
+     * What to do with regular Tics when consumers lag behind.
+     */
+    private final Policy policy;
+    /**
+     * Pending Tics.
+     */
+    private final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+    /**
+     * Maximum decimation of the regular Tics (1 Tic out of 64).
+     */
+    static final int MAX_STRIDE = 64;
+    /**
+     * Longest wait for space in a full queue, in milliseconds. The
+     * caller holds the lock of the Timekeeper: a longer wait would
+     * stall every request.
+     */
+    static final long MAX_WAIT_MS = 1000;
+    /**
+     * Weight of the last send in the average latency (1/8).
+     */
+    private static final int EWMA_SHIFT = 3;
+
+    /**
+     * Lower the granularity of regular Tics when consumers lag behind?
+     */
+    private final boolean adaptive;
+    /**
+     * Number of regular Tics replaced by a more recent one.
+     */
+    private long coalesced = 0;
+    /**
+     * Number of Tics dropped because the queue was full.
+     */
+    private long dropped = 0;
+    /**
+     * Only 1 regular Tic out of stride is queued (adaptive decimation).
+     */
+    private int stride = 1;
+    /**
+     * Number of regular Tics offered since the last one queued.
+     */
+    private int skipped = 0;
+    /**
+     * Number of regular Tics skipped by the decimation.
+     */
+    private long decimated = 0;
+    /**
+     * Number of Tics sent.
+     */
+    private long sent = 0;
+    /**
+     * Number of Tics that failed to be sent.
+     */
+    private long failed = 0;
+    /**
+     * Duration of the last send, in nanoseconds.
+     */
+    private long lastLatency = 0;
+    /**
+     * Moving average of the send duration, in nanoseconds.
+     */
+    private long avgLatency = 0;
+    /**
+     * Longest send duration, in nanoseconds.
+     */
+    private long maxLatency = 0;
+    /**
+     * Highest number of pending Tics.
+     */
+    private int maxDepth = 0;
+    /**
+     * Is a Tic being sent (taken from the queue, not yet recorded)?
+     */
+    private boolean sending = false;
+    /**
+     * The thread sending the Tics.
+     */
+    private Thread thread;
+
+    /**
+     * @param thePort     the port to send the Tics through
+     * @param theCapacity maximum number of pending Tics
+     * @param thePolicy   what to do with regular Tics when full
+     * @param isAdaptive  lower the granularity of regular Tics
+     *                    when consumers lag behind?
+     */
+    TicDispatcher(final Port thePort, final int theCapacity,
+                  final Policy thePolicy, final boolean isAdaptive) {
+        port = thePort;
+        capacity = Math.max(1, theCapacity);
+        policy = thePolicy;
+        adaptive = isAdaptive;
+    }
+
+    /**
+     * Start the thread sending the Tics.
+     *
+     * @param name the name of the thread
+     */
+    synchronized void start(final String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Stop the thread sending the Tics, dropping the pending ones.
+     */
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait until all the pending Tics have been sent, or the stage
+     * is stopped. Used as fast as possible, where the simulated time
+     * must not move on before the consumers received every Tic.
+     *
+     * @return true if there were Tics to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized boolean awaitDrained() throws InterruptedException {
+        boolean waited = false;
+        while (thread != null && (sending || !queue.isEmpty())) {
+            waited = true;
+            wait();
+        }
+        return waited;
+    }
+
+    /**
+     * Queue a Tic for delivery. When the queue is full and the policy
+     * cannot make room, wait at most {@link #MAX_WAIT_MS}: then a
+     * regular Tic is dropped, and a Tic announcing a change is queued
+     * beyond the capacity. Once the stage is stopped, Tics are ignored.
+     *
+     * @param payload the Tic to send
+     * @param regular true for a regular Tic (may be coalesced or dropped),
+     *                false for a Tic that must be delivered
+     */
+    synchronized void offer(final String payload, final boolean regular) {
+        if (thread == null) {
+            return;
+        }
+        if (regular && adaptive && decimate()) {
+            return;
+        }
+        if (regular && policy == Policy.COALESCE) {
+            Delivery last = queue.peekLast();
+            if (last != null && last.regular) {
+                queue.pollLast();
+                coalesced++;
+            }
+        }
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(MAX_WAIT_MS);
+        try {
+            while (queue.size() >= capacity && thread != null) {
+                long left = deadline - System.nanoTime();
+                if (policy == Policy.DROP_OLDEST && dropRegular()) {
+                    dropped++;
+                } else if (policy == Policy.COALESCE && dropRegular()) {
+                    coalesced++;
+                } else if (left > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } else if (regular) {
+                    dropped++;
+                    return;
+                } else {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (thread == null) {
+            return;
+        }
+        queue.add(new Delivery(payload, regular));
+        maxDepth = Math.max(maxDepth, queue.size());
+        notifyAll();
+    }
+
+    /**
+     * Adapt the stride to the lag of the consumers: doubled when
+     * the queue is half full, halved when it is empty.
+     *
+     * @return true if the regular Tic must be skipped
+     */
+    private boolean decimate() {
+        if (queue.size() * 2 >= capacity && stride < MAX_STRIDE) {
+            stride *= 2;
+        } else if (queue.isEmpty() && stride > 1) {
+            stride /= 2;
+        }
+        if (++skipped < stride) {
+            decimated++;
+            return true;
+        }
+        skipped = 0;
+        return false;
+    }
+
+    /**
+     * Record the outcome of a send.
+     *
+     * @param latency the duration of the send, in nanoseconds
+     * @param success true if the Tic was sent without error
+     */
+    private synchronized void record(final long latency,
+                                     final boolean success) {
+        if (success) {
+            sent++;
+        } else {
+            failed++;
+        }
+        sending = false;
+        notifyAll();
+        lastLatency = latency;
+        maxLatency = Math.max(maxLatency, latency);
+        if (sent + failed == 1) {
+            avgLatency = latency;
+        } else {
+            avgLatency += (latency - avgLatency) >> EWMA_SHIFT;
+        }
+    }
+
+    /**
+     * @return the delivery metrics of the port as a whole: number of
+     * bindings, queue depth, counters, stride and latency of a send
+     * to all the bindings (microseconds)
+     */
+    synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.add("bindings", port.getConnectedBindingsSize());
+        stats.add("policy", policy.name());
+        stats.add("queued", queue.size());
+        stats.add("maxQueued", maxDepth);
+        stats.add("capacity", capacity);
+        stats.add("sent", sent);
+        stats.add("failed", failed);
+        stats.add("coalesced", coalesced);
+        stats.add("dropped", dropped);
+        stats.add("decimated", decimated);
+        stats.add("stride", stride);
+        stats.add("latencyLastUs", lastLatency / 1000);
+        stats.add("latencyAvgUs", avgLatency / 1000);
+        stats.add("latencyMaxUs", maxLatency / 1000);
+        return stats;
+    }
+
+    /**
+     * Remove the oldest pending regular Tic.
+     *
+     * @return true if a regular Tic was pending
+     */
+    private boolean dropRegular() {
+        Iterator<Delivery> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().regular) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of regular Tics replaced by a more recent one
+     */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return the number of Tics dropped because the queue was full
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Delivery next;
+                synchronized (this) {
+                    while (queue.isEmpty()) {
+                        wait();
+                    }
+                    next = queue.poll();
+                    sending = true;
+                    notifyAll();
+                }
+                long begin = System.nanoTime();
+                boolean success = true;
+                try {
+                    port.send(next.payload, null);
+                } catch (RuntimeException e) {
+                    success = false;
+                    Log.error("Could not send Tic: " + e);
+                }
+                record(System.nanoTime() - begin, success);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A Tic waiting for delivery.
+     */
+    private static final class Delivery {
+        /**
+         * The Tic to send.
+         */
+        private final String payload;
+        /**
+         * Is it a regular Tic, which may be dropped?
+         */
+        private final boolean regular;
+
+        /**
+         * @param thePayload the Tic to send
+         * @param isRegular  is it a regular Tic, which may be dropped?
+         */
+        Delivery(final String thePayload, final boolean isRegular) {
+            payload = thePayload;
+            regular = isRegular;
+        }
+    }
+
+}
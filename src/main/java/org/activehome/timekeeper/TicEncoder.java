@@ -0,0 +1,163 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+
+/**
+ * Serialize Tics, rendering the JSON of a Tic only when its zip,
+ * time zone offset, status or command change. In between, the
+ * timestamp digits are patched into a pre-rendered template,
+ * in a reused buffer.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TicEncoder {
+
+    /**
+     * Timestamp rendered in the template, to locate the digits to patch.
+     */
+    private static final long SENTINEL = 7318264059182736451L;
+
+    /**
+     * Zip of the current template.
+     */
+    private double zip;
+    /**
+     * Time zone offset (minutes) of the current template.
+     */
+    private int offset;
+    /**
+     * Status of the current template.
+     */
+    private TimeStatus status;
+    /**
+     * Command of the current template.
+     */
+    private TimeCommand command;
+    /**
+     * JSON before the timestamp, null if no valid template.
+     */
+    private String prefix;
+    /**
+     * JSON after the timestamp.
+     */
+    private String suffix;
+    /**
+     * True if the template cannot be used for the current key
+     * (rendering not reproducible by patching the timestamp).
+     */
+    private boolean bypass;
+    /**
+     * Reused buffer to patch the timestamp into the template.
+     */
+    private final StringBuilder buffer = new StringBuilder(128);
+
+    /**
+     * Render a Tic as JSON, same output as {@link TicRecord#toString}.
+     *
+     * @param ts           the simulated time of the Tic
+     * @param theZip       the actual zip of the Tic
+     * @param theOffset    the time zone offset of the Tic (minutes)
+     * @param theStatus    the status of the Tic
+     * @param theCommand   the time command of the Tic
+     * @return the JSON payload of the Tic
+     */
+    synchronized String encode(final long ts,
+                               final double theZip,
+                               final int theOffset,
+                               final TimeStatus theStatus,
+                               final TimeCommand theCommand) {
+        if ((prefix == null && !bypass) || theZip != zip || theOffset != offset
+                || theStatus != status || theCommand != command) {
+            return render(ts, theZip, theOffset, theStatus, theCommand);
+        }
+        if (bypass) {
+            return TicCodec.json(ts, zip, offset, status, command);
+        }
+        return patch(ts);
+    }
+
+    /**
+     * Drop the current template, the next Tic is rendered in full.
+     */
+    synchronized void invalidate() {
+        prefix = null;
+        suffix = null;
+        bypass = false;
+    }
+
+    /**
+     * Build the template for a new key and check that patching
+     * reproduces the full rendering of this first Tic.
+     *
+     * @param ts           the simulated time of the Tic
+     * @param theZip       the actual zip of the Tic
+     * @param theOffset    the time zone offset of the Tic (minutes)
+     * @param theStatus    the status of the Tic
+     * @param theCommand   the time command of the Tic
+     * @return the JSON payload of the Tic
+     */
+    private String render(final long ts,
+                          final double theZip,
+                          final int theOffset,
+                          final TimeStatus theStatus,
+                          final TimeCommand theCommand) {
+        zip = theZip;
+        offset = theOffset;
+        status = theStatus;
+        command = theCommand;
+        String json = TicCodec.json(ts, zip, offset, status, command);
+        String template = TicCodec.json(SENTINEL, zip, offset, status,
+                command);
+        String digits = Long.toString(SENTINEL);
+        int index = template.indexOf(digits);
+        if (index >= 0 && index == template.lastIndexOf(digits)) {
+            prefix = template.substring(0, index);
+            suffix = template.substring(index + digits.length());
+            bypass = !patch(ts).equals(json);
+        } else {
+            bypass = true;
+        }
+        if (bypass) {
+            prefix = null;
+            suffix = null;
+        }
+        return json;
+    }
+
+    /**
+     * @param ts the timestamp to write into the template
+     * @return the JSON payload of the Tic
+     */
+    private String patch(final long ts) {
+        buffer.setLength(0);
+        return buffer.append(prefix).append(ts).append(suffix).toString();
+    }
+
+}
@@ -0,0 +1,223 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import org.activehome.time.Tic;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+
+/**
+ * A decoded Tic with its actual zip and time zone offset: the
+ * {@link Tic} type carries the zip as an integer, so fractional zips
+ * (x0.5, x2.5) are rounded in it, and the offset in whole hours, which
+ * does not fit zones such as +5:30 or +9:30. The Tics of the Timekeeper
+ * also carry the zip as a double and the offset in minutes, in the
+ * 'zipFactor' and 'utcOffset' fields of the JSON and in the binary
+ * record (see {@link TicCodec}); as fast as possible is positive
+ * infinity.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class TicRecord {
+
+    /**
+     * JSON field of the actual zip, next to the fields of the Tic.
+     */
+    public static final String ZIP_FACTOR = "zipFactor";
+    /**
+     * JSON field of the time zone offset in minutes, next to the
+     * fields of the Tic.
+     */
+    public static final String UTC_OFFSET = "utcOffset";
+
+    /**
+     * The simulated time of the Tic.
+     */
+    private final long ts;
+    /**
+     * The actual zip of the Tic.
+     */
+    private final double zip;
+    /**
+     * The time zone offset of the Tic (minutes).
+     */
+    private final int offset;
+    /**
+     * The status of the Tic.
+     */
+    private final TimeStatus status;
+    /**
+     * The time command of the Tic.
+     */
+    private final TimeCommand command;
+
+    /**
+     * @param theTS       the simulated time of the Tic
+     * @param theZip      the actual zip of the Tic
+     * @param theOffset   the time zone offset of the Tic (minutes)
+     * @param theStatus   the status of the Tic
+     * @param theCommand  the time command of the Tic
+     */
+    public TicRecord(final long theTS,
+                     final double theZip,
+                     final int theOffset,
+                     final TimeStatus theStatus,
+                     final TimeCommand theCommand) {
+        ts = theTS;
+        zip = theZip;
+        offset = theOffset;
+        status = theStatus;
+        command = theCommand;
+    }
+
+    /**
+     * @param tic a Tic without actual zip nor offset in minutes,
+     *            as sent by older Timekeepers
+     */
+    public TicRecord(final Tic tic) {
+        this(tic.getTS(), fromTicZip(tic.getZip()), tic.getTimezone() * 60,
+                tic.getStatus(), tic.getCommand());
+    }
+
+    /**
+     * @param json a Tic in JSON, with or without the actual zip
+     *             and offset in minutes
+     */
+    public TicRecord(final JsonObject json) {
+        this(new Tic(json), json.get(ZIP_FACTOR), json.get(UTC_OFFSET));
+    }
+
+    /**
+     * @param tic       the Tic read from the JSON
+     * @param zipFactor the actual zip read from the JSON, null if none
+     * @param utcOffset the offset in minutes read from the JSON,
+     *                  null if none
+     */
+    private TicRecord(final Tic tic,
+                      final JsonValue zipFactor,
+                      final JsonValue utcOffset) {
+        this(tic.getTS(), zipFactor != null && zipFactor.isNumber()
+                        ? zipFactor.asDouble() : fromTicZip(tic.getZip()),
+                utcOffset != null && utcOffset.isNumber()
+                        ? utcOffset.asInt() : tic.getTimezone() * 60,
+                tic.getStatus(), tic.getCommand());
+    }
+
+    /**
+     * @return the simulated time of the Tic
+     */
+    public long getTS() {
+        return ts;
+    }
+
+    /**
+     * @return the actual zip of the Tic, positive infinity
+     * in as fast as possible mode
+     */
+    public double getZip() {
+        return zip;
+    }
+
+    /**
+     * @return the time zone offset of the Tic in whole hours,
+     * as the {@link Tic} type
+     */
+    public int getTimezone() {
+        return offset / 60;
+    }
+
+    /**
+     * @return the time zone offset of the Tic (minutes)
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the status of the Tic
+     */
+    public TimeStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the time command of the Tic
+     */
+    public TimeCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return true if the time runs as fast as possible
+     */
+    public boolean isAsFastAsPossible() {
+        return zip == Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the Tic, with the zip rounded to an integer
+     */
+    public Tic toTic() {
+        return new Tic(ts, toTicZip(zip), offset / 60, status, command);
+    }
+
+    /**
+     * The {@link Tic} type carries the zip as an integer: fractional
+     * zips are rounded, with a minimum of 1, as fast as possible
+     * is the maximum integer.
+     *
+     * @param zip the actual zip
+     * @return the zip of the Tic
+     */
+    public static int toTicZip(final double zip) {
+        if (zip == Double.POSITIVE_INFINITY) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) Math.max(1, Math.round(zip));
+    }
+
+    /**
+     * @param ticZip the zip of a Tic
+     * @return the zip, positive infinity for as fast as possible
+     */
+    static double fromTicZip(final int ticZip) {
+        if (ticZip == Integer.MAX_VALUE) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ticZip;
+    }
+
+    /**
+     * @return the JSON of the Tic, with the actual zip and offset
+     */
+    @Override
+    public String toString() {
+        return TicCodec.json(ts, zip, offset, status, command);
+    }
+
+}
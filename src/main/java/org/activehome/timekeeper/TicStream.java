@@ -0,0 +1,424 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import com.eclipsesource.json.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server-Sent Events stream of the Tics, for the web views: browsers
+ * subscribe once with an {@code EventSource} on {@link #PATH} and
+ * receive every Tic as a 'tic' event, without polling. Each Tic is
+ * encoded once as a frame and queued for every subscriber, each
+ * written by its own thread so that a slow subscriber delays no one.
+ * A new subscriber first receives the last Tic, its anchor to
+ * extrapolate the time. Regular Tics waiting to be written are
+ * replaced by more recent ones, control Tics are always written:
+ * a subscriber with {@link #CAPACITY} control Tics pending is
+ * disconnected, its browser reconnects from the last Tic.
+ * <p>
+ * The stream is a second HTTP server, on its own port, without
+ * authentication: it is bound to the loopback interface unless
+ * another address is given. Browsers may only read it from the
+ * allowed origins (CORS); a request from another origin is refused,
+ * a request without origin (not from a browser) is served.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TicStream {
+
+    /**
+     * Path of the stream on the server.
+     */
+    static final String PATH = "/timekeeper/tics";
+    /**
+     * Maximum number of pending frames per subscriber.
+     */
+    private static final int CAPACITY = 64;
+    /**
+     * Delay before a browser reconnects, in milliseconds.
+     */
+    private static final int RETRY = 2000;
+    /**
+     * Period of the comments keeping idle connections alive,
+     * in milliseconds.
+     */
+    private static final long KEEP_ALIVE = 15000;
+    /**
+     * Comment sent to idle connections.
+     */
+    private static final byte[] PING = ":\n\n".getBytes(
+            StandardCharsets.UTF_8);
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+    /**
+     * The origins allowed to read the stream from a browser.
+     */
+    private final Set<String> origins;
+    /**
+     * The subscribers.
+     */
+    private final List<Subscriber> clients = new CopyOnWriteArrayList<>();
+    /**
+     * The last frame, sent first to new subscribers.
+     */
+    private byte[] last;
+    /**
+     * Number of frames written to a subscriber.
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * Number of regular frames replaced by a more recent one.
+     */
+    private final AtomicLong coalesced = new AtomicLong();
+    /**
+     * Number of subscribers disconnected for lagging behind.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Prefix of the names of the threads writing the frames.
+     */
+    private String name;
+    /**
+     * Number of subscribers so far, to name their threads.
+     */
+    private long subscribed = 0;
+    /**
+     * Is the stream stopped?
+     */
+    private boolean stopped = false;
+
+    /**
+     * @param address        the address of the server, empty for the
+     *                       loopback interface
+     * @param port           the port of the server (0 for any free port)
+     * @param allowedOrigins the origins allowed to read the stream from
+     *                       a browser ('http://host:port')
+     * @throws IOException if the address is unknown or the server
+     *                     cannot be bound
+     */
+    TicStream(final String address, final int port,
+              final Collection<String> allowedOrigins) throws IOException {
+        InetAddress host = address.trim().isEmpty()
+                ? InetAddress.getLoopbackAddress()
+                : InetAddress.getByName(address.trim());
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext(PATH, this::subscribe);
+        origins = new HashSet<>(allowedOrigins);
+    }
+
+    /**
+     * Start the server.
+     *
+     * @param threadName the prefix of the names of the threads
+     *                   writing the frames
+     */
+    synchronized void start(final String threadName) {
+        name = threadName;
+        server.start();
+    }
+
+    /**
+     * Stop the server, closing the connections.
+     */
+    void stop() {
+        server.stop(0);
+        synchronized (this) {
+            stopped = true;
+        }
+        for (Subscriber client : clients) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    /**
+     * @return the port of the server
+     */
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the address the server is bound to
+     */
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Queue a Tic for all subscribers, without waiting for any.
+     *
+     * @param json    the Tic in JSON
+     * @param regular true for a regular Tic (may be replaced), false
+     *                for a Tic announcing a change
+     */
+    synchronized void offer(final String json, final boolean regular) {
+        last = frame(json);
+        Frame frame = new Frame(last, regular);
+        for (Subscriber client : clients) {
+            client.offer(frame);
+        }
+    }
+
+    /**
+     * Open the stream of a new subscriber, starting with the last Tic.
+     *
+     * @param exchange the request of the subscriber
+     * @throws IOException if the response cannot be sent
+     */
+    private void subscribe(final HttpExchange exchange) throws IOException {
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null && !origins.contains(origin)) {
+            exchange.sendResponseHeaders(403, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/event-stream; charset=utf-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (origin != null) {
+            exchange.getResponseHeaders().set("Access-Control-Allow-Origin",
+                    origin);
+            exchange.getResponseHeaders().set("Vary", "Origin");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        Subscriber client = new Subscriber(exchange);
+        synchronized (this) {
+            if (stopped) {
+                exchange.close();
+                return;
+            }
+            String retry = "retry: " + RETRY + "\n\n";
+            client.offer(new Frame(retry.getBytes(StandardCharsets.UTF_8),
+                    false));
+            if (last != null) {
+                client.offer(new Frame(last, false));
+            }
+            clients.add(client);
+            Thread thread = new Thread(client, name + "-" + subscribed++);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @param json the Tic in JSON
+     * @return the 'tic' event of the Tic
+     */
+    private static byte[] frame(final String json) {
+        return ("event: tic\ndata: " + json + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the address, port, number of subscribers, frames sent,
+     * coalesced and subscribers dropped
+     */
+    JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.add("address", getAddress().getAddress().getHostAddress());
+        stats.add("port", getPort());
+        stats.add("clients", clients.size());
+        stats.add("sent", sent.get());
+        stats.add("coalesced", coalesced.get());
+        stats.add("dropped", dropped.get());
+        return stats;
+    }
+
+    /**
+     * A subscriber, with its pending frames and the thread writing
+     * them to its connection, outside of any lock.
+     */
+    private final class Subscriber implements Runnable {
+
+        /**
+         * The connection of the subscriber.
+         */
+        private final HttpExchange exchange;
+        /**
+         * Pending frames.
+         */
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        /**
+         * Is the connection closed?
+         */
+        private boolean closed = false;
+
+        /**
+         * @param theExchange the connection of the subscriber
+         */
+        private Subscriber(final HttpExchange theExchange) {
+            exchange = theExchange;
+        }
+
+        /**
+         * Queue a frame, replacing a pending regular frame by a more
+         * recent one, or the oldest regular frame if the queue is full.
+         * Disconnect the subscriber if the queue is full of control
+         * frames.
+         *
+         * @param frame the frame
+         */
+        private synchronized void offer(final Frame frame) {
+            if (closed) {
+                return;
+            }
+            if (frame.regular) {
+                Frame previous = queue.peekLast();
+                if (previous != null && previous.regular) {
+                    queue.pollLast();
+                    coalesced.incrementAndGet();
+                }
+            }
+            if (queue.size() >= CAPACITY) {
+                if (!dropRegular()) {
+                    dropped.incrementAndGet();
+                    shutdown();
+                    return;
+                }
+                coalesced.incrementAndGet();
+            }
+            queue.add(frame);
+            notifyAll();
+        }
+
+        /**
+         * Remove the oldest pending regular frame.
+         *
+         * @return true if a regular frame was pending
+         */
+        private boolean dropRegular() {
+            Iterator<Frame> it = queue.iterator();
+            while (it.hasNext()) {
+                if (it.next().regular) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the next frame, null if none for {@link #KEEP_ALIVE}
+         * @throws InterruptedException if the connection is closed
+         */
+        private synchronized Frame take() throws InterruptedException {
+            if (queue.isEmpty() && !closed) {
+                wait(KEEP_ALIVE);
+            }
+            if (closed) {
+                throw new InterruptedException();
+            }
+            return queue.poll();
+        }
+
+        /**
+         * Write the frames to the subscriber until its connection
+         * is closed, with a comment when idle.
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Frame frame = take();
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(frame == null ? PING : frame.bytes);
+                    out.flush();
+                    if (frame != null) {
+                        sent.incrementAndGet();
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        /**
+         * Stop writing, the thread of the subscriber closes
+         * the connection.
+         */
+        private synchronized void shutdown() {
+            closed = true;
+            queue.clear();
+            clients.remove(this);
+            notifyAll();
+        }
+
+        /**
+         * Stop writing and close the connection.
+         */
+        private void close() {
+            shutdown();
+            exchange.close();
+        }
+
+    }
+
+    /**
+     * A Tic waiting to be written.
+     */
+    private static final class Frame {
+
+        /**
+         * The encoded event.
+         */
+        private final byte[] bytes;
+        /**
+         * True for a regular Tic, which may be replaced.
+         */
+        private final boolean regular;
+
+        /**
+         * @param theBytes  the encoded event
+         * @param isRegular true for a regular Tic
+         */
+        private Frame(final byte[] theBytes, final boolean isRegular) {
+            bytes = theBytes;
+            regular = isRegular;
+        }
+
+    }
+
+}
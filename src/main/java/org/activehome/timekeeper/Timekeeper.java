@@ -24,7 +24,9 @@ package org.activehome.timekeeper;
  * #L%
  */
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 import org.activehome.com.Notif;
 import org.activehome.com.Request;
 import org.activehome.com.ShowIfErrorCallback;
@@ -32,7 +34,6 @@ import org.activehome.com.Status;
 import org.activehome.context.data.DataPoint;
 import org.activehome.service.Service;
 import org.activehome.service.RequestHandler;
-import org.activehome.time.Tic;
 import org.activehome.time.TimeCommand;
 import org.activehome.time.TimeStatus;
 import org.kevoree.annotation.ComponentType;
@@ -45,12 +46,17 @@ import org.kevoree.api.ModelService;
 import org.kevoree.api.handler.ModelListener;
 import org.kevoree.log.Log;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Manage the time for sync of distributed components and simulation.
@@ -61,6 +67,24 @@ import java.util.concurrent.TimeUnit;
         + "distributed components and simulation.")
 public class Timekeeper extends Service implements ModelListener {
 
+    /**
+     * Format of the tic period: a number and an optional unit.
+     */
+    private static final Pattern PERIOD_PATTERN =
+            Pattern.compile("(\\d+(?:\\.\\d+)?)\\s*(ms|s|min|h|d)?");
+    /**
+     * Number of days of sunrise/sunset kept in memory.
+     */
+    private static final int SOLAR_CACHE_SIZE = 1024;
+    /**
+     * Number of days of sunrise/sunset computed when starting.
+     */
+    private static final int SOLAR_PREWARM_DAYS = 366;
+    /**
+     * Number of samples per day of the solar position (5 minutes).
+     */
+    private static final int SOLAR_POSITION_SAMPLES = 288;
+
     /**
      * Where to find the sources (for the Active Home store).
      */
@@ -74,7 +98,8 @@ public class Timekeeper extends Service implements ModelListener {
     private String startDate;
     /**
      * Factor of time compression.
-     * x1 (default) means actual speed
+     * x1 (default) means actual speed, 'afap' jumps from
+     * event to event as fast as possible.
      */
     @Param(defaultValue = "x1")
     private String zipFactor;
@@ -95,11 +120,102 @@ public class Timekeeper extends Service implements ModelListener {
      */
     @Param(defaultValue = "-0.72878")
     private double longitude;
+    /**
+     * Period of the regular Tics, in simulation time, as a number
+     * followed by a unit: ms, s, min, h or d (e.g. '1s', '15min', '1h').
+     * Tics fall on the boundaries of the period in local time
+     * (e.g. every hour at :00).
+     */
+    @Param(defaultValue = "1h")
+    private String ticPeriod;
     /**
      * Generate a log for each tic.
      */
     @Param(defaultValue = "false")
     private boolean showTic;
+    /**
+     * Maximum number of Tics waiting for delivery on the tic port.
+     */
+    @Param(defaultValue = "64")
+    private int ticQueueSize;
+    /**
+     * What to do with regular Tics when consumers lag behind:
+     * 'coalesce' (keep the latest), 'drop-oldest' or 'block'
+     * (wait up to a second, then drop).
+     */
+    @Param(defaultValue = "coalesce")
+    private String ticOverflow;
+    /**
+     * Lower the granularity of the regular Tics (send 1 out of 2, 4...)
+     * while consumers lag behind, back to normal once they caught up.
+     * The tic port sends each Tic to all its bindings at once, so the
+     * lag is that of the slowest consumer and every binding receives
+     * the decimated Tics: only enable it if they all tolerate it.
+     */
+    @Param(defaultValue = "false")
+    private boolean adaptiveTics;
+    /**
+     * Measure the simulated time with the monotonic clock of the JVM
+     * (nanosecond resolution, not affected by system clock adjustments)
+     * rather than the system time.
+     */
+    @Param(defaultValue = "false")
+    private boolean monotonicClock;
+    /**
+     * Send the solar elevation and azimuth (degrees) to the context
+     * with each regular Tic.
+     */
+    @Param(defaultValue = "false")
+    private boolean solarPosition;
+    /**
+     * Wire format of the Tics: 'json' (default) or 'binary'
+     * (Base64 record, see {@link TicCodec}).
+     */
+    @Param(defaultValue = "json")
+    private String ticFormat;
+    /**
+     * File of the clock page, to share the time with the processes
+     * of the host through memory (see
+     * {@link org.activehome.timekeeper.client.ClockPage}),
+     * empty to disable.
+     */
+    @Param(defaultValue = "")
+    private String clockPage;
+    /**
+     * Broadcast each Tic once over UDP to 'address:port', a multicast
+     * group or a unicast address such as '127.0.0.1:4446' (see
+     * {@link org.activehome.timekeeper.client.TicReceiver}),
+     * empty to disable. A unicast address reaches a single receiver:
+     * for several local processes, use a multicast group
+     * (e.g. '239.255.0.1:4446').
+     */
+    @Param(defaultValue = "")
+    private String ticGroup;
+    /**
+     * Network interface sending the Tics to a multicast group,
+     * empty for the default one.
+     */
+    @Param(defaultValue = "")
+    private String ticGroupInterface;
+    /**
+     * Port of the Server-Sent Events stream of the Tics for the
+     * web views, 0 to disable. The stream is served by its own HTTP
+     * server on this extra port, without authentication.
+     */
+    @Param(defaultValue = "0")
+    private int ticStreamPort;
+    /**
+     * Address the tic stream is bound to: loopback (default), the
+     * address of an interface, or '0.0.0.0' for all interfaces.
+     */
+    @Param(defaultValue = "127.0.0.1")
+    private String ticStreamAddress;
+    /**
+     * Origins of the web views allowed to read the tic stream
+     * ('http://host:port', comma separated), none by default.
+     */
+    @Param(defaultValue = "")
+    private String ticStreamOrigins;
 
     /**
      * Port to push the {@code Tic}.
@@ -113,39 +229,33 @@ public class Timekeeper extends Service implements ModelListener {
     private ModelService modelService;
 
     /**
-     * Keep the current {@link TimeStatus}.
+     * Current snapshot of the clock (status, start time, zip...),
+     * replaced as a whole on each change so that readers never
+     * see a mix of old and new values.
      */
-    private TimeStatus status = TimeStatus.UNKNOWN;
+    private volatile ClockState clock = new ClockState(TimeStatus.UNKNOWN,
+            -1, 0, 0, 0, 0, 1, false);
     /**
      * Time zone of the system.
      */
     private TimeZone timezone;
     /**
-     * Time initialized when calling {@link #init}.
-     */
-    private long startTS = -1;
-    /**
-     * Actual system time used to compute the delta
-     * with Active Home time (same as start time if actual time).
+     * Offsets of the time zone, indexed by period.
      */
-    private long initTS;
+    private volatile TimezoneIndex zoneIndex;
     /**
-     * Time spent on pause to add to time delta in simulation mode.
-     * (Combining all idle time since start time)
+     * The tic frequency as number (in simulation time).
      */
-    private long idleDuration = 0;
-    /**
-     * When the current pause started.
-     */
-    private long pauseTS;
+    private long ticFrequency = HOUR;
     /**
-     * The time compression factor as number.
+     * The scheduled next regular Tic.
      */
-    private int zip = 1;
+    private TimingWheel.Timer ticTimer;
     /**
-     * The tic frequency as number.
+     * Incremented each time the regular Tics are rescheduled:
+     * a Tic of a previous chain does not schedule the next one.
      */
-    private long ticFrequency = HOUR;
+    private long ticChain;
     /**
      * Date/time format used for time parameters.
      */
@@ -155,13 +265,89 @@ public class Timekeeper extends Service implements ModelListener {
      */
     private Boolean dayTime;
     /**
-     * Scheduler used to send Tics.
+     * Sunrise and sunset already computed.
+     */
+    private final SolarCache solarCache = new SolarCache(SOLAR_CACHE_SIZE);
+    /**
+     * Solar events of the current day.
+     */
+    private SolarDay solarDay;
+    /**
+     * Position (in time order) of the next solar event of the day.
+     */
+    private int solarIndex;
+    /**
+     * Solar elevation and azimuth, sampled per day.
+     */
+    private SolarPosition solarPositions;
+    /**
+     * Scheduler used to send Tics, in simulation time.
+     */
+    private final VirtualScheduler scheduler = new VirtualScheduler(this);
+    /**
+     * Delivery stage of the Tics.
+     */
+    private volatile TicDispatcher dispatcher;
+    /**
+     * Serializer of the Tics, caching the JSON template.
+     */
+    private final TicEncoder ticEncoder = new TicEncoder();
+    /**
+     * True to send the Tics as binary records rather than JSON.
+     */
+    private boolean binaryTics;
+    /**
+     * Wakeups registered by other components.
+     */
+    private final WakeupQueue wakeups = new WakeupQueue();
+    /**
+     * The scheduled delivery of the next wakeups.
+     */
+    private TimingWheel.Timer wakeupTask;
+    /**
+     * Simulated time of the scheduled delivery of wakeups, null if none.
+     */
+    private Long armedWakeup;
+    /**
+     * Registered breakpoints by id.
+     */
+    private final TreeMap<Long, Breakpoint> breakpoints = new TreeMap<>();
+    /**
+     * Last breakpoint id given.
+     */
+    private long lastBreakpointId = 0;
+    /**
+     * The batch being applied, null if none.
+     */
+    private Batch batch;
+    /**
+     * Writer of the clock page, null if disabled.
+     */
+    private ClockPageWriter pageWriter;
+    /**
+     * Broadcast of the Tics over UDP, null if disabled.
      */
-    private ScheduledThreadPoolExecutor stpe;
+    private volatile TicBroadcaster broadcaster;
+    /**
+     * Server-Sent Events stream of the Tics, null if disabled.
+     */
+    private volatile TicStream stream;
+    /**
+     * Static files of the web views, templated with the id
+     * of the Timekeeper.
+     */
+    private final AssetCache assets = new AssetCache(
+            getClass().getClassLoader(), this::templateAsset);
+
+    /**
+     * The handler of all requests, stateless.
+     */
+    private final TimekeeperRequestHandler requestHandler =
+            new TimekeeperRequestHandler(this);
 
     @Override
     protected final RequestHandler getRequestHandler(final Request request) {
-        return new TimekeeperRequestHandler(this);
+        return requestHandler;
     }
 
     /**
@@ -169,14 +355,116 @@ public class Timekeeper extends Service implements ModelListener {
      * timezone, start time, zip, and tic frequency.
      */
     @Start
-    public final void start() {
+    public final synchronized void start() {
         super.start();
         modelService.registerModelListener(this);
         df.setTimeZone(TimeZone.getTimeZone("UTC"));
         timezone = TimeZone.getTimeZone(timezoneName);
+        zoneIndex = new TimezoneIndex(timezone.toZoneId());
+        openClockPage();
+        setClock(clock.withMonotonic(monotonicClock));
         setStartTime(startDate);
         setZip(zipFactor);
-        setTicFrequency();
+        setTicFrequency(ticPeriod);
+        long now = clock.getUTCTime();
+        solarCache.prewarm(latitude, longitude, now, SOLAR_PREWARM_DAYS,
+                getTimezoneOffset(now));
+        solarPositions = new SolarPosition(latitude, longitude,
+                SOLAR_POSITION_SAMPLES);
+        binaryTics = "binary".equalsIgnoreCase(ticFormat.trim());
+        dispatcher = new TicDispatcher(tic, ticQueueSize,
+                parseOverflowPolicy(ticOverflow), adaptiveTics);
+        dispatcher.start(getFullId() + "-timekeeper-tic");
+        openTicGroup();
+        openTicStream();
+        assets.clear();
+        scheduler.start(getFullId() + "-timekeeper-pool");
+    }
+
+    /**
+     * Map the clock page if a file is given in the clockPage param.
+     */
+    private void openClockPage() {
+        if (clockPage != null && !clockPage.trim().isEmpty()) {
+            try {
+                pageWriter = new ClockPageWriter(clockPage.trim());
+            } catch (IOException e) {
+                logError("Could not map the clock page '" + clockPage
+                        + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Publish the clock page as stopped and close it, if mapped.
+     */
+    private synchronized void closeClockPage() {
+        ClockPageWriter writer = pageWriter;
+        if (writer != null) {
+            pageWriter = null;
+            try {
+                writer.close(clock);
+            } catch (IOException e) {
+                logError("Could not close the clock page '" + clockPage
+                        + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Open the broadcast of the Tics if a group is given
+     * in the ticGroup param.
+     */
+    private void openTicGroup() {
+        if (ticGroup != null && !ticGroup.trim().isEmpty()) {
+            try {
+                broadcaster = new TicBroadcaster(ticGroup.trim(),
+                        ticGroupInterface);
+            } catch (IOException | IllegalArgumentException e) {
+                logError("Could not open the tic group '" + ticGroup
+                        + "': " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start the Server-Sent Events stream of the Tics if a port
+     * is given in the ticStreamPort param, on the ticStreamAddress,
+     * for the ticStreamOrigins.
+     */
+    private void openTicStream() {
+        if (ticStreamPort > 0) {
+            List<String> origins = new ArrayList<>();
+            for (String origin : ticStreamOrigins.split(",")) {
+                if (!origin.trim().isEmpty()) {
+                    origins.add(origin.trim());
+                }
+            }
+            try {
+                stream = new TicStream(ticStreamAddress, ticStreamPort,
+                        origins);
+                stream.start(getFullId() + "-timekeeper-stream");
+            } catch (IOException e) {
+                logError("Could not open the tic stream on "
+                        + ticStreamAddress + ":" + ticStreamPort + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @param policy 'coalesce', 'drop-oldest' (or 'drop_oldest') or 'block'
+     * @return the matching policy, COALESCE if unknown
+     */
+    private TicDispatcher.Policy parseOverflowPolicy(final String policy) {
+        try {
+            return TicDispatcher.Policy.valueOf(
+                    policy.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            logError("Unknown tic overflow policy '" + policy
+                    + "', Set coalesce instead.");
+            return TicDispatcher.Policy.COALESCE;
+        }
     }
 
     /**
@@ -185,12 +473,11 @@ public class Timekeeper extends Service implements ModelListener {
      *
      * @return true
      */
-    final boolean init() {
-        status = TimeStatus.INITIALIZED;
-        initExecutor();
-        sendTic(new Tic(getUTCTime(), zip, getTimezoneOffset(),
-                status, TimeCommand.INIT));
-        if (startTS == -1) {
+    final synchronized boolean init() {
+        setClock(clock.withStatus(TimeStatus.INITIALIZED));
+        clearScheduler();
+        sendTic(TimeCommand.INIT);
+        if (clock.getStartTS() == -1) {
             startTime();
         }
         return true;
@@ -202,16 +489,12 @@ public class Timekeeper extends Service implements ModelListener {
      *
      * @return true if the time was initialize before
      */
-    final boolean startTime() {
-        if (status == TimeStatus.INITIALIZED) {
-            initTS = System.currentTimeMillis();
-            idleDuration = 0;
-            status = TimeStatus.RUNNING;
-            sendTic(new Tic(getUTCTime(), zip, getTimezoneOffset(),
-                    status, TimeCommand.START));
-            stpe.scheduleAtFixedRate(this::tic, ticFrequency,
-                    ticFrequency, TimeUnit.MILLISECONDS);
-            checkSunsetSunrise();
+    final synchronized boolean startTime() {
+        if (clock.getStatus() == TimeStatus.INITIALIZED) {
+            setClock(clock.started());
+            scheduler.clockChanged();
+            sendTic(TimeCommand.START);
+            scheduleTics();
             return true;
         }
         return false;
@@ -219,19 +502,18 @@ public class Timekeeper extends Service implements ModelListener {
 
     /**
      * Stop sending regular Tics with a last one containing
-     * the time command PAUSE.
+     * the time command PAUSE. The scheduled events stay pending
+     * until the time resumes.
      *
      * @return true if the time was running
      */
-    final boolean pauseTime() {
-        if (startTS != -1) {
-            if (status == TimeStatus.RUNNING) {
+    final synchronized boolean pauseTime() {
+        if (clock.getStartTS() != -1) {
+            if (clock.getStatus() == TimeStatus.RUNNING) {
                 logInfo("Pausing time.");
-                stpe.shutdownNow();
-                pauseTS = System.currentTimeMillis();
-                status = TimeStatus.IDLE;
-                sendTic(new Tic(getUTCTime(), zip,
-                        getTimezoneOffset(), status, TimeCommand.PAUSE));
+                setClock(clock.frozen(TimeStatus.IDLE));
+                scheduler.clockChanged();
+                sendTic(TimeCommand.PAUSE);
                 return true;
             }
         } else {
@@ -246,18 +528,13 @@ public class Timekeeper extends Service implements ModelListener {
      *
      * @return true if the time was idled
      */
-    final boolean resumeTime() {
-        if (startTS != -1) {
-            if (status == TimeStatus.IDLE) {
+    final synchronized boolean resumeTime() {
+        if (clock.getStartTS() != -1) {
+            if (clock.getStatus() == TimeStatus.IDLE) {
                 logInfo("Resuming time.");
-                status = TimeStatus.RUNNING;
-                initExecutor();
-                idleDuration += System.currentTimeMillis() - pauseTS;
-                sendTic(new Tic(getUTCTime(), zip, getTimezoneOffset(),
-                        status, TimeCommand.RESUME));
-                stpe.scheduleAtFixedRate(this::tic, ticFrequency,
-                        ticFrequency, TimeUnit.MILLISECONDS);
-                checkSunsetSunrise();
+                setClock(clock.resumed());
+                scheduler.clockChanged();
+                sendTic(TimeCommand.RESUME);
                 return true;
             }
         } else {
@@ -272,15 +549,18 @@ public class Timekeeper extends Service implements ModelListener {
      *
      * @return true if time was running or idled
      */
-    final boolean stopTime() {
-        if (startTS != -1) {
+    final synchronized boolean stopTime() {
+        if (clock.getStartTS() != -1) {
+            TimeStatus status = clock.getStatus();
             if (status == TimeStatus.RUNNING || status == TimeStatus.IDLE) {
                 logInfo("Stopping time.");
-                pauseTS = System.currentTimeMillis();
-                status = TimeStatus.STOPPED;
-                sendTic(new Tic(getUTCTime(), zip,
-                        getTimezoneOffset(), status, TimeCommand.STOP));
-                stpe.shutdownNow();
+                if (status == TimeStatus.RUNNING) {
+                    setClock(clock.frozen(TimeStatus.STOPPED));
+                } else {
+                    setClock(clock.withStatus(TimeStatus.STOPPED));
+                }
+                sendTic(TimeCommand.STOP);
+                clearScheduler();
                 return true;
             }
         } else {
@@ -290,112 +570,758 @@ public class Timekeeper extends Service implements ModelListener {
     }
 
     /**
-     * Send Tic through tic port.
+     * Schedule the regular Tics and the next solar event.
+     */
+    private void scheduleTics() {
+        scheduleNextTic(clock.getUTCTime());
+        scheduleOffsetChange(clock.getUTCTime());
+        scheduleSolarEvents();
+        armWakeups();
+        armBreakpoints();
+    }
+
+    /**
+     * Drop all scheduled events (Tics, solar events, wakeup
+     * delivery). Registered wakeups are kept, to be scheduled again.
+     */
+    private void clearScheduler() {
+        scheduler.clear();
+        ticTimer = null;
+        ticChain++;
+        wakeupTask = null;
+        armedWakeup = null;
+        for (Breakpoint breakpoint : breakpoints.values()) {
+            breakpoint.setTimer(null);
+        }
+    }
+
+    /**
+     * Begin a batch: save the state to restore if the batch fails,
+     * and hold back the Tics of its commands until it ends.
+     * The caller holds the lock of the Timekeeper until
+     * {@link #endBatch(boolean)}.
+     *
+     * @throws IllegalStateException if a batch is already applied
+     */
+    final synchronized void beginBatch() {
+        if (batch != null) {
+            throw new IllegalStateException("A batch cannot contain"
+                    + " a batch.");
+        }
+        batch = new Batch(clock, timezone, zoneIndex, ticFrequency,
+                new TreeMap<>(breakpoints), lastBreakpointId,
+                wakeups.copy());
+    }
+
+    /**
+     * End a batch. Applied, a single Tic announces the final state,
+     * with the command of the last Tic held back. Failed, the state
+     * saved at the beginning is restored and the events scheduled
+     * again, without any Tic.
+     *
+     * @param applied true if all the commands of the batch were applied
+     */
+    final synchronized void endBatch(final boolean applied) {
+        Batch ended = batch;
+        batch = null;
+        if (ended == null) {
+            return;
+        }
+        if (applied) {
+            if (ended.command != null) {
+                sendTic(ended.command);
+            }
+            return;
+        }
+        timezone = ended.timezone;
+        zoneIndex = ended.zoneIndex;
+        ticFrequency = ended.ticFrequency;
+        breakpoints.clear();
+        breakpoints.putAll(ended.breakpoints);
+        lastBreakpointId = ended.lastBreakpointId;
+        wakeups.restore(ended.wakeups);
+        ticEncoder.invalidate();
+        setClock(ended.clock);
+        clearScheduler();
+        scheduler.clockChanged();
+        if (clock.getStatus() == TimeStatus.RUNNING
+                || clock.getStatus() == TimeStatus.IDLE) {
+            scheduleTics();
+        }
+    }
+
+    /**
+     * Move the simulated time forward to the next scheduled event,
+     * in as-fast-as-possible mode only.
+     *
+     * @param ts the simulated time of the next event
+     */
+    final synchronized void advanceTo(final long ts) {
+        if (clock.isAsFastAsPossible()
+                && clock.getStatus() == TimeStatus.RUNNING
+                && ts > clock.getUTCTime()) {
+            setClock(clock.advancedTo(ts));
+        }
+    }
+
+    /**
+     * Wait for the Tics sent so far to be delivered on the tic port,
+     * before moving the simulated time on as fast as possible
+     * (each regular Tic must reach the consumers).
+     *
+     * @return true if there were Tics to wait for
+     * @throws InterruptedException if interrupted while waiting
+     */
+    final boolean awaitDelivery() throws InterruptedException {
+        TicDispatcher stage = dispatcher;
+        return stage != null && stage.awaitDrained();
+    }
+
+    /**
+     * @return the current snapshot of the clock
+     */
+    final ClockState getClockState() {
+        return clock;
+    }
+
+    /**
+     * Replace the snapshot of the clock, published to the clock page
+     * if enabled. Called under the lock of the Timekeeper.
      *
-     * @param aTic to send
+     * @param state the new snapshot of the clock
      */
-    private void sendTic(final Tic aTic) {
-        if (tic != null && tic.getConnectedBindingsSize() > 0) {
-            tic.send(aTic.toString(), null);
+    private void setClock(final ClockState state) {
+        clock = state;
+        if (pageWriter != null) {
+            pageWriter.publish(state);
         }
     }
 
     /**
+     * Register a wakeup: the component will be notified when the
+     * simulated time reaches the given time.
+     *
+     * @param dest       the component to notify
+     * @param ts         the simulated UTC time of the wakeup
+     * @param callbackId the id to send back with the notification
+     * @return the id of the wakeup (to cancel it)
+     */
+    final synchronized long scheduleWakeup(final String dest,
+                                           final long ts,
+                                           final String callbackId) {
+        long id = wakeups.add(dest, ts, callbackId);
+        armWakeups();
+        return id;
+    }
+
+    /**
+     * Cancel a wakeup, and the scheduled delivery if no other wakeup
+     * is due at its time.
      *
+     * @param id the id of the wakeup to cancel
+     * @return true if the wakeup was pending
+     */
+    final synchronized boolean cancelWakeup(final long id) {
+        if (!wakeups.cancel(id)) {
+            return false;
+        }
+        Long next = wakeups.next();
+        if (armedWakeup != null && (next == null || next > armedWakeup)) {
+            if (wakeupTask != null) {
+                scheduler.cancel(wakeupTask);
+            }
+            wakeupTask = null;
+            armedWakeup = null;
+            armWakeups();
+        }
+        return true;
+    }
+
+    /**
+     * Schedule the delivery of the next wakeups, unless the delivery
+     * is already scheduled early enough.
+     */
+    private void armWakeups() {
+        Long next = wakeups.next();
+        if (next == null
+                || (armedWakeup != null && armedWakeup <= next)) {
+            return;
+        }
+        if (wakeupTask != null) {
+            scheduler.cancel(wakeupTask);
+        }
+        armedWakeup = next;
+        wakeupTask = scheduleAt(() -> deliverWakeups(next), next);
+    }
+
+    /**
+     * Notify the components of the wakeups which are due, with a single
+     * notification per destination for wakeups at the same time.
+     *
+     * @param ts the simulated time the delivery was scheduled for
+     */
+    private synchronized void deliverWakeups(final long ts) {
+        if (armedWakeup != null && armedWakeup == ts) {
+            armedWakeup = null;
+            wakeupTask = null;
+        }
+        Map<Long, Map<String, List<String>>> due =
+                wakeups.pollDue(Math.max(ts, clock.getUTCTime()));
+        for (Map.Entry<Long, Map<String, List<String>>> entry
+                : due.entrySet()) {
+            for (Map.Entry<String, List<String>> byDest
+                    : entry.getValue().entrySet()) {
+                JsonArray callbackIds = new JsonArray();
+                byDest.getValue().forEach(callbackIds::add);
+                sendDataPoint(byDest.getKey(), "time.wakeup",
+                        entry.getKey(), callbackIds.toString());
+            }
+        }
+        armWakeups();
+    }
+
+    /**
+     * Notify a component with a DataPoint. Package-private so that
+     * the tests can record the notifications.
+     *
+     * @param dest   the component to notify
+     * @param metric the metric of the DataPoint
+     * @param ts     the simulated time of the DataPoint
+     * @param value  the value of the DataPoint
+     */
+    void sendDataPoint(final String dest,
+                       final String metric,
+                       final long ts,
+                       final String value) {
+        sendNotif(new Notif(getFullId(), dest, ts,
+                new DataPoint(metric, ts, value)));
+    }
+
+    /**
+     * Register a control command to apply at a simulated time.
+     *
+     * @param at      the simulated time: local date/time
+     *                'yyyy-MM-dd HH:mm:ss', 'yyyy-MM-dd HH:mm' or
+     *                'yyyy-MM-dd', UNIX timestamp, a duration from now
+     *                ('+30d', '+2h') or the next solar event
+     *                ('sunset', 'civilDawn', 'solarNoon'...)
+     * @param command 'pause', 'stop' or a zip ('x1', '2.5', 'afap')
+     * @return the id of the breakpoint (to cancel it)
+     * @throws IllegalArgumentException if the time or command cannot
+     *                                  be parsed or the time is past
+     */
+    final synchronized long addBreakpoint(final String at,
+                                          final String command) {
+        if (clock.getStartTS() == -1) {
+            throw new IllegalArgumentException(
+                    "You cannot control the actual time! (breakpoint)");
+        }
+        long ts = parseBreakpointTime(at.trim());
+        if (ts < clock.getUTCTime()) {
+            throw new IllegalArgumentException("Breakpoint '" + at
+                    + "' is in the past.");
+        }
+        Breakpoint breakpoint;
+        String name = command.trim().toLowerCase();
+        if (name.equals("pause")) {
+            breakpoint = new Breakpoint(++lastBreakpointId, ts,
+                    Breakpoint.Command.PAUSE, 0);
+        } else if (name.equals("stop")) {
+            breakpoint = new Breakpoint(++lastBreakpointId, ts,
+                    Breakpoint.Command.STOP, 0);
+        } else if (name.equals("afap")
+                || name.matches("x?\\d+(\\.\\d+)?")) {
+            breakpoint = new Breakpoint(++lastBreakpointId, ts,
+                    Breakpoint.Command.ZIP, parseZip(name));
+        } else {
+            throw new IllegalArgumentException("Unknown breakpoint command '"
+                    + command + "' (pause, stop or zip).");
+        }
+        breakpoints.put(breakpoint.getId(), breakpoint);
+        armBreakpoints();
+        return breakpoint.getId();
+    }
+
+    /**
+     * @param id the id of the breakpoint to cancel
+     * @return true if the breakpoint was pending
      */
-    private void tic() {
+    final synchronized boolean cancelBreakpoint(final long id) {
+        Breakpoint breakpoint = breakpoints.remove(id);
+        if (breakpoint == null) {
+            return false;
+        }
+        if (breakpoint.getTimer() != null) {
+            scheduler.cancel(breakpoint.getTimer());
+        }
+        return true;
+    }
+
+    /**
+     * @return the pending breakpoints (id, ts, command, zip) as Json
+     */
+    final synchronized JsonArray getBreakpoints() {
+        JsonArray json = new JsonArray();
+        for (Breakpoint breakpoint : breakpoints.values()) {
+            json.add(breakpoint.toJson());
+        }
+        return json;
+    }
+
+    /**
+     * Schedule the breakpoints which are not scheduled yet, once
+     * the time started. Breakpoints already past are dropped.
+     */
+    private void armBreakpoints() {
+        TimeStatus status = clock.getStatus();
+        if (status != TimeStatus.RUNNING && status != TimeStatus.IDLE) {
+            return;
+        }
+        long now = clock.getUTCTime();
+        Iterator<Breakpoint> it = breakpoints.values().iterator();
+        while (it.hasNext()) {
+            Breakpoint breakpoint = it.next();
+            if (breakpoint.getTimer() == null) {
+                if (breakpoint.getTS() < now) {
+                    logInfo("Dropping past breakpoint " + breakpoint.toJson());
+                    it.remove();
+                } else {
+                    breakpoint.setTimer(scheduleAt(
+                            () -> applyBreakpoint(breakpoint),
+                            breakpoint.getTS()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a breakpoint. A pause or stop freezes the clock exactly at
+     * the time of the breakpoint, so that the Tic of the command
+     * carries that time: as the breakpoint fires a little after its
+     * time, a reader of the time between the two sees the time go
+     * back by this delay (times the zip) when the clock freezes.
+     * A zip change never goes back: the clock is re-anchored at the
+     * time of the breakpoint or at the time reached, if later.
+     *
+     * @param breakpoint the breakpoint reached
+     */
+    private synchronized void applyBreakpoint(final Breakpoint breakpoint) {
+        if (breakpoints.remove(breakpoint.getId()) == null
+                || clock.getStatus() != TimeStatus.RUNNING) {
+            return;
+        }
+        long ts = breakpoint.getTS();
+        logInfo("Breakpoint " + breakpoint.toJson());
+        switch (breakpoint.getCommand()) {
+            case PAUSE:
+                setClock(clock.frozenAt(TimeStatus.IDLE, ts));
+                scheduler.clockChanged();
+                sendTic(TimeCommand.PAUSE);
+                break;
+            case STOP:
+                setClock(clock.frozenAt(TimeStatus.STOPPED, ts));
+                sendTic(TimeCommand.STOP);
+                clearScheduler();
+                break;
+            default:
+                setClock(clock.withZipAt(breakpoint.getZip(),
+                        Math.max(ts, clock.getUTCTime())));
+                scheduler.clockChanged();
+                sendTic(TimeCommand.CARRYON);
+        }
+    }
+
+    /**
+     * @param at the simulated time of a breakpoint, see
+     *           {@code #addBreakpoint}
+     * @return the simulated UTC time
+     * @throws IllegalArgumentException if the time cannot be parsed
+     */
+    private long parseBreakpointTime(final String at) {
+        long now = clock.getUTCTime();
+        if (at.startsWith("+")) {
+            long duration = parsePeriod(at.substring(1).trim());
+            if (duration < 0) {
+                throw new IllegalArgumentException("Could not parse"
+                        + " duration '" + at + "'.");
+            }
+            return now + duration;
+        } else if (at.matches("\\d+")) {
+            return Long.parseLong(at);
+        }
+        for (int event = 0; event < SolarDay.NAMES.length; event++) {
+            if (SolarDay.NAMES[event].equalsIgnoreCase(at)) {
+                return nextSolarEvent(event, now);
+            }
+        }
+        for (String pattern : new String[]{"yyyy-MM-dd HH:mm:ss",
+                "yyyy-MM-dd HH:mm", "yyyy-MM-dd"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            format.setLenient(false);
+            try {
+                long local = format.parse(at).getTime();
+                return local - getTimezoneOffset(local) * MINUTE;
+            } catch (ParseException e) {
+                continue;
+            }
+        }
+        throw new IllegalArgumentException("Could not parse breakpoint"
+                + " time '" + at + "'.");
+    }
+
+    /**
+     * @param event the solar event (index in {@link SolarDay#NAMES})
+     * @param ts    the simulated time from which to look for the event
+     * @return the simulated time of the first event after ts
+     * @throws IllegalArgumentException if the event does not occur
+     *                                  within a year (polar regions)
+     */
+    private long nextSolarEvent(final int event, final long ts) {
+        SolarDay day = solarCache.at(latitude, longitude, ts,
+                getTimezoneOffset(ts));
+        for (int i = 0; i <= SOLAR_PREWARM_DAYS; i++) {
+            if (day.has(event) && day.getTime(event) > ts) {
+                return day.getTime(event);
+            }
+            day = solarCache.get(latitude, longitude,
+                    day.getEpochDay() + 1, day.getOffset());
+        }
+        throw new IllegalArgumentException("No " + SolarDay.NAMES[event]
+                + " within a year.");
+    }
+
+    /**
+     * Schedule the notification of the next offset change of the
+     * time zone (e.g. daylight saving time), if any.
+     *
+     * @param ts the simulated time from which to look for the change
+     */
+    private void scheduleOffsetChange(final long ts) {
+        long next = zoneIndex.nextTransition(ts);
+        if (next != TimezoneIndex.NONE) {
+            scheduleAt(() -> offsetChanged(next), next);
+        }
+    }
+
+    /**
+     * Notify the context of the new offset with a DataPoint
+     * 'time.utcOffset' (minutes), send a Tic carrying the new
+     * offset, then schedule the next change.
+     *
+     * @param ts the simulated time of the change
+     */
+    private synchronized void offsetChanged(final long ts) {
+        sendDataPoint(getNode() + ".context", "time.utcOffset", ts,
+                getTimezoneOffset(ts) + "");
+        sendTic(clock, ts, TimeCommand.CARRYON, false);
+        scheduleOffsetChange(ts);
+    }
+
+    /**
+     * Send a regular Tic and schedule the next one, unless the Tics
+     * have been rescheduled in the meantime (e.g. new tic period).
+     * A Tic due before a pause, but run after it, is not sent: the
+     * Tic of the pause already announced a later time, the next Tic
+     * follows the time of the pause.
+     *
+     * @param chain the chain of this Tic
+     * @param ts    the simulated time of this Tic
+     */
+    private synchronized void ticAt(final long chain, final long ts) {
+        if (chain == ticChain) {
+            if (clock.getStatus() == TimeStatus.RUNNING) {
+                tic(ts);
+                scheduleNextTic(ts);
+            } else {
+                scheduleNextTic(Math.max(ts, clock.getUTCTime()));
+            }
+        }
+    }
+
+    /**
+     * Schedule the next regular Tic on the first period boundary
+     * (in local time) after the given time. Each boundary is computed
+     * from the simulated time, so the Tics never drift.
+     *
+     * @param ts the simulated time from which to look for the next Tic
+     */
+    private synchronized void scheduleNextTic(final long ts) {
+        long offset = getTimezoneOffset(ts) * MINUTE;
+        long next = Math.floorDiv(ts + offset, ticFrequency) * ticFrequency
+                + ticFrequency - offset;
+        long chain = ticChain;
+        ticTimer = scheduleAt(() -> ticAt(chain, next), next);
+    }
+
+    /**
+     * Schedule an action at a given simulated time.
+     *
+     * @param action the action to execute
+     * @param ts     the simulated UTC time of the action
+     * @return the timer of the action, to cancel it
+     */
+    private TimingWheel.Timer scheduleAt(final Runnable action,
+                                         final long ts) {
+        return scheduler.schedule(ts, action);
+    }
+
+    /**
+     * Change the zip while the time is running or idle, keeping
+     * the simulated time continuous. The scheduled events stay
+     * as they are, only the pace of the scheduler changes.
+     *
+     * @param newZip the new time compression factor
+     */
+    private void changeZip(final double newZip) {
+        setClock(clock.withZip(newZip));
+        scheduler.clockChanged();
+        sendTic(TimeCommand.CARRYON);
+    }
+
+    /**
+     * Send a Tic announcing a change (command, zip...) through tic port,
+     * built from a single snapshot of the clock. It is never dropped.
+     *
+     * @param command the time command of the Tic
+     */
+    private void sendTic(final TimeCommand command) {
+        if (batch != null) {
+            batch.command = command;
+            return;
+        }
+        ClockState state = clock;
+        sendTic(state, state.getUTCTime(), command, false);
+    }
+
+    /**
+     * Send a Tic through tic port, via the delivery stage,
+     * in JSON or binary record depending on the ticFormat param,
+     * and to the tic group and tic stream if enabled.
+     *
+     * @param state     the snapshot of the clock
+     * @param ts        the simulated time of the Tic
+     * @param command   the time command of the Tic
+     * @param regular   true for a regular Tic, which may be coalesced,
+     *                  decimated or dropped when consumers lag behind;
+     *                  false for a Tic announcing a change
+     */
+    private void sendTic(final ClockState state,
+                         final long ts,
+                         final TimeCommand command,
+                         final boolean regular) {
+        TicBroadcaster group = broadcaster;
+        TicStream subscribers = stream;
+        boolean bound = tic != null && tic.getConnectedBindingsSize() > 0;
+        if (group != null || subscribers != null || bound) {
+            double zip = state.getZip();
+            int offset = getTimezoneOffset(ts);
+            boolean droppable = regular && !state.isAsFastAsPossible();
+            if (group != null) {
+                group.send(ts, zip, offset, state.getStatus(), command);
+            }
+            String json = null;
+            if (subscribers != null || bound && !binaryTics) {
+                json = ticEncoder.encode(ts, zip, offset,
+                        state.getStatus(), command);
+            }
+            if (subscribers != null) {
+                subscribers.offer(json, regular);
+            }
+            if (bound) {
+                if (binaryTics) {
+                    dispatcher.offer(TicCodec.encode(ts, zip, offset,
+                            state.getStatus(), command), droppable);
+                } else {
+                    dispatcher.offer(json, droppable);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a regular Tic.
+     *
+     * @param ts the simulated time of the Tic (period boundary)
+     */
+    private void tic(final long ts) {
         if (showTic) {
             logInfo("Tic");
         }
-        if (tic != null && tic.getConnectedBindingsSize() > 0) {
-            Tic nextTic = new Tic(getUTCTime(), zip,
-                    getTimezoneOffset(), status, TimeCommand.CARRYON);
-            tic.send(nextTic.toString(), null);
+        sendTic(clock, ts, TimeCommand.CARRYON, true);
+        if (solarPosition) {
+            sendSolarPosition(ts);
         }
     }
 
     /**
+     * Send the solar elevation and azimuth to the context,
+     * as DataPoints 'time.solarElevation' and 'time.solarAzimuth'.
      *
+     * @param ts the simulated time of the position
      */
-    private void checkSunsetSunrise() {
-        SunsetSunrise sunsetSunrise = new SunsetSunrise(latitude, longitude,
-                new Date(getUTCTime()), getTimezoneOffset());
-        if (dayTime == null || !dayTime.equals(sunsetSunrise.isDaytime())) {
-            dayTime = sunsetSunrise.isDaytime();
-            DataPoint dpDayTime = new DataPoint("time.dayTime", getUTCTime(),
-                    dayTime + "");
-            sendNotif(new Notif(getFullId(), getNode() + ".context",
-                    getUTCTime(), dpDayTime));
+    private void sendSolarPosition(final long ts) {
+        double[] position = new double[2];
+        solarPositions.position(ts, getTimezoneOffset(ts), position);
+        sendDataPoint(getNode() + ".context", "time.solarElevation", ts,
+                Math.round(position[0] * 100) / 100.0 + "");
+        sendDataPoint(getNode() + ".context", "time.solarAzimuth", ts,
+                Math.round(position[1] * 100) / 100.0 + "");
+    }
+
+    /**
+     * Load the solar events of the current day and schedule the next
+     * one, notifying the context of the current day time.
+     * The following days are all computed with the same offset, so
+     * that days follow each other without gap nor overlap.
+     */
+    private void scheduleSolarEvents() {
+        long now = clock.getUTCTime();
+        solarDay = solarCache.at(latitude, longitude, now,
+                getTimezoneOffset(now));
+        solarIndex = 0;
+        while (solarIndex < solarDay.size()
+                && solarDay.timeAt(solarIndex) < now) {
+            solarIndex++;
         }
+        notifyDayTime(solarDay.isDaytime(now), now);
+        scheduleNextSolarEvent();
+    }
 
-        long nextCheck;
-        if (getUTCTime() < sunsetSunrise.getSunrise().getTime()) {
-            nextCheck = (sunsetSunrise.getSunrise().getTime() - getUTCTime());
-        } else if (dayTime) {
-            nextCheck = (sunsetSunrise.getSunset().getTime() - getUTCTime());
+    /**
+     * Send the next solar event of the day as DataPoint
+     * ('time.sunrise', 'time.civilDusk'...), with day time changes
+     * at sunrise and sunset, then schedule the following one.
+     */
+    private synchronized void solarEvent() {
+        if (solarIndex < solarDay.size()) {
+            int event = solarDay.eventAt(solarIndex);
+            long ts = solarDay.timeAt(solarIndex);
+            solarIndex++;
+            sendDataPoint(getNode() + ".context",
+                    "time." + SolarDay.NAMES[event], ts, ts + "");
+            if (event == SolarDay.SUNRISE || event == SolarDay.SUNSET) {
+                notifyDayTime(event == SolarDay.SUNRISE, ts);
+            }
+        }
+        scheduleNextSolarEvent();
+    }
+
+    /**
+     * Schedule the next solar event, computing the next day once
+     * all events of the current day are sent. A day without event
+     * (polar day or night) is skipped at its end. Day time only
+     * changes at sunrise and sunset.
+     */
+    private void scheduleNextSolarEvent() {
+        if (solarIndex >= solarDay.size()) {
+            solarDay = solarCache.get(latitude, longitude,
+                    solarDay.getEpochDay() + 1, solarDay.getOffset());
+            solarIndex = 0;
+        }
+        if (solarIndex < solarDay.size()) {
+            scheduleAt(this::solarEvent, solarDay.timeAt(solarIndex));
         } else {
-            SunsetSunrise nextSS = new SunsetSunrise(latitude, longitude,
-                    new Date(getUTCTime() + DAY), getTimezoneOffset());
-            nextCheck = (nextSS.getSunrise().getTime() - getUTCTime());
+            scheduleAt(this::solarEvent, solarDay.getEnd());
+        }
+    }
+
+    /**
+     * Notify the context with a DataPoint 'time.dayTime' if the
+     * day time changed.
+     *
+     * @param isDaytime is it day time now?
+     * @param ts        the simulated time of the change
+     */
+    private void notifyDayTime(final boolean isDaytime, final long ts) {
+        if (dayTime == null || !dayTime.equals(isDaytime)) {
+            dayTime = isDaytime;
+            sendDataPoint(getNode() + ".context", "time.dayTime", ts,
+                    dayTime + "");
         }
-        stpe.schedule(this::checkSunsetSunrise,
-                nextCheck / zip, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Get the current UTC time: emulated idle/running or actual.
+     * Wait-free: computed from a single snapshot of the clock.
      *
      * @return UNIX timestamp.
      */
     public final long getUTCTime() {
-        if (startTS != -1) {
-            if (status == TimeStatus.RUNNING) {
-                return startTS + (System.currentTimeMillis()
-                        - initTS - idleDuration) * zip;
-            } else if (status == TimeStatus.IDLE
-                    || status == TimeStatus.STOPPED) {
-                return startTS + (pauseTS - initTS - idleDuration) * zip;
-            }
-            return startTS;
-        }
-        return System.currentTimeMillis();
+        return clock.getUTCTime();
+    }
+
+    /**
+     * Get the current UTC time in nanoseconds. Sub-millisecond
+     * resolution requires the monotonic clock.
+     *
+     * @return UNIX timestamp in nanoseconds.
+     */
+    public final long getUTCTimeNanos() {
+        return clock.getUTCTimeNanos();
     }
 
     /**
-     * @return the number of hours to shift in order
+     * @param ts the UTC time at which the offset applies
+     * @return the number of minutes to shift in order
      * to get the time zone from UTC time.
      */
-    private int getTimezoneOffset() {
-        return (int) (timezone.getOffset(getUTCTime()) / HOUR);
+    private int getTimezoneOffset(final long ts) {
+        return zoneIndex.offsetMinutes(ts);
     }
 
     /**
      * Set new time properties and call {@code #init}.
+     * If only the zip and/or tic period change while the time is
+     * running or idle, the time continues without init.
      *
      * @param properties The new properties to set up.
      * @return {@code #getProperties} showing the new status of all properties.
      */
-    public final JsonObject setProperties(final JsonObject properties) {
+    public final synchronized JsonObject setProperties(
+            final JsonObject properties) {
+        ticEncoder.invalidate();
+        boolean live = properties.get("timezone") == null
+                && properties.get("start") == null
+                && (clock.getStatus() == TimeStatus.RUNNING
+                || clock.getStatus() == TimeStatus.IDLE);
+        if (live) {
+            if (properties.get("ticPeriod") != null) {
+                setTicFrequency(properties.get("ticPeriod"));
+                if (ticTimer != null) {
+                    scheduler.cancel(ticTimer);
+                }
+                ticChain++;
+                scheduleNextTic(clock.getUTCTime());
+            }
+            if (properties.get("zip") != null) {
+                changeZip(parseZip(properties.get("zip")));
+            }
+            return getProperties();
+        }
+
         if (properties.get("timezone") != null) {
             timezone = TimeZone.getTimeZone(
                     properties.get("timezone").asString());
+            zoneIndex = new TimezoneIndex(timezone.toZoneId());
         }
 
         if (properties.get("start") != null) {
             if (properties.get("start").isString()) {
                 setStartTime(properties.get("start").asString());
             } else if (properties.get("start").isNumber()) {
-                startTS = properties.get("start").asLong();
+                setClock(clock.withStartTS(
+                        properties.get("start").asLong()));
             }
         }
 
-        if (properties.get("zip").isString()) {
-            setZip(properties.get("zip").asString());
-        } else if (properties.get("zip").isNumber()) {
-            setZip(properties.get("zip").asDouble() + "");
+        if (properties.get("zip") != null) {
+            setClock(clock.withZip(parseZip(properties.get("zip"))));
         }
 
-        setTicFrequency();
+        if (properties.get("ticPeriod") != null) {
+            setTicFrequency(properties.get("ticPeriod"));
+        }
         init();
 
         return getProperties();
@@ -411,13 +1337,14 @@ public class Timekeeper extends Service implements ModelListener {
      */
     private void setStartTime(final String start) {
         if (start.compareTo("actual") == 0) {
-            startTS = System.currentTimeMillis();
+            setClock(clock.withStartTS(System.currentTimeMillis()));
         } else {
             try {
                 long localStart = df.parse(start).getTime();
-                startTS = localStart - timezone.getOffset(localStart);
+                setClock(clock.withStartTS(localStart
+                        - getTimezoneOffset(localStart) * MINUTE));
             } catch (ParseException e) {
-                startTS = 0;
+                setClock(clock.withStartTS(0));
                 logError("Could not parse start parameter '"
                         + start + "', Set 0 instead.");
             }
@@ -425,49 +1352,226 @@ public class Timekeeper extends Service implements ModelListener {
     }
 
     /**
-     * Set the time compression factor. The String can be a number
-     * alone or starting with 'x'.
+     * Set the time compression factor.
      *
      * @param aZipFactor the time compression factor
      */
     private void setZip(final String aZipFactor) {
+        setClock(clock.withZip(parseZip(aZipFactor)));
+    }
+
+    /**
+     * @param aZipFactor the time compression factor, as number or String
+     * @return the zip as number, 1 if it cannot be parsed
+     */
+    private static double parseZip(final JsonValue aZipFactor) {
+        if (aZipFactor.isNumber()) {
+            return validZip(aZipFactor.asDouble());
+        }
+        return parseZip(aZipFactor.asString());
+    }
+
+    /**
+     * Parse the time compression factor. The String can be a number
+     * alone or starting with 'x', with decimals (e.g. 'x0.5', 'x2.5'),
+     * or 'afap' for as fast as possible.
+     *
+     * @param aZipFactor the time compression factor
+     * @return the zip as number, 1 if it cannot be parsed
+     */
+    private static double parseZip(final String aZipFactor) {
+        if (aZipFactor.trim().equalsIgnoreCase("afap")) {
+            return ClockState.AFAP;
+        }
         try {
-            zip = Integer.valueOf(aZipFactor.replace("x", ""));
-            if (zip == 0) {
-                zip = 1;
-            }
+            return validZip(Double.valueOf(aZipFactor.replace("x", "")));
         } catch (NumberFormatException e) {
-            zip = 1;
+            return 1;
         }
     }
 
     /**
-     * Set the tic frequency to one tic per hour.
-     * (in simulation time)
+     * @param zip a time compression factor
+     * @return the zip if it is a positive number, 1 otherwise
      */
-    private void setTicFrequency() {
-        ticFrequency = HOUR / zip;
+    private static double validZip(final double zip) {
+        if (zip > 0 && !Double.isInfinite(zip)) {
+            return zip;
+        }
+        return 1;
+    }
+
+    /**
+     * Set the tic frequency (in simulation time), one tic
+     * per hour if the period cannot be parsed.
+     *
+     * @param period a number of milliseconds (as returned by
+     *               {@code #getProperties}), or a String
+     *               number followed by a unit: ms, s, min, h or d
+     */
+    private void setTicFrequency(final JsonValue period) {
+        if (period.isNumber()) {
+            setTicFrequency(Math.round(period.asDouble()) + "");
+        } else {
+            setTicFrequency(period.asString());
+        }
+    }
+
+    /**
+     * Set the tic frequency (in simulation time), one tic
+     * per hour if the period cannot be parsed.
+     *
+     * @param period a number followed by a unit: ms, s, min, h or d
+     */
+    private void setTicFrequency(final String period) {
+        long duration = parsePeriod(period);
+        if (duration >= 0) {
+            ticFrequency = Math.max(1, duration);
+        } else {
+            ticFrequency = HOUR;
+            logError("Could not parse tic period '" + period
+                    + "', Set 1h instead.");
+        }
+    }
+
+    /**
+     * @param period a number followed by a unit: ms, s, min, h or d
+     * @return the duration in milliseconds, -1 if it cannot be parsed
+     */
+    private static long parsePeriod(final String period) {
+        Matcher matcher = PERIOD_PATTERN.matcher(period.trim());
+        if (!matcher.matches()) {
+            return -1;
+        }
+        long unit = 1;
+        if (matcher.group(2) != null) {
+            switch (matcher.group(2)) {
+                case "s":
+                    unit = SECOND;
+                    break;
+                case "min":
+                    unit = MINUTE;
+                    break;
+                case "h":
+                    unit = HOUR;
+                    break;
+                case "d":
+                    unit = DAY;
+                    break;
+                default:
+                    unit = 1;
+            }
+        }
+        return (long) (Double.valueOf(matcher.group(1)) * unit);
     }
 
     /**
      * @return return a Json with the start date, zip and status.
      */
     public final JsonObject getProperties() {
+        ClockState state = clock;
         JsonObject prop = new JsonObject();
-        prop.add("startDate", startTS);
-        prop.add("zip", zip);
-        prop.add("status", status.name());
+        prop.add("startDate", state.getStartTS());
+        if (state.isAsFastAsPossible()) {
+            prop.add("zip", "afap");
+        } else {
+            prop.add("zip", state.getZip());
+        }
+        prop.add("status", state.getStatus().name());
+        prop.add("ticPeriod", ticFrequency);
+        prop.add("ticFormat", binaryTics ? "binary" : "json");
+        if (dispatcher != null) {
+            prop.add("ticsCoalesced", dispatcher.getCoalesced());
+            prop.add("ticsDropped", dispatcher.getDropped());
+        }
         return prop;
     }
 
+    /**
+     * @return the port of the Server-Sent Events stream of the Tics,
+     * 0 if disabled
+     */
+    final int getTicStreamPort() {
+        TicStream subscribers = stream;
+        if (subscribers == null) {
+            return 0;
+        }
+        return subscribers.getPort();
+    }
+
+    /**
+     * @param fileName a static file of the web views
+     * @return the file, read and templated at the first call
+     */
+    final AssetCache.Asset getAsset(final String fileName) {
+        return assets.get(fileName);
+    }
+
+    /**
+     * Fill the templates of the Timekeeper view: its id and
+     * the port of the tic stream.
+     *
+     * @param fileName the name of the file
+     * @param content  the content of the file
+     * @return the templated content
+     */
+    private String templateAsset(final String fileName,
+                                 final String content) {
+        if (fileName.compareTo("timekeeper-view.html") == 0) {
+            return content.replace("${id}", getId())
+                    .replace("${ticStream}", getTicStreamPort() + "");
+        }
+        return content;
+    }
+
+    /**
+     * @return the metrics of the Tic delivery on the tic port as a whole
+     * (queue depth, counters, decimation, send latency to all the bindings)
+     * and of the tic group and stream if enabled,
+     * null if the component is not started
+     */
+    public final JsonObject getDeliveryStats() {
+        TicDispatcher current = dispatcher;
+        if (current == null) {
+            return null;
+        }
+        JsonObject stats = current.getStats();
+        TicBroadcaster group = broadcaster;
+        if (group != null) {
+            stats.add("broadcast", group.getStats());
+        }
+        TicStream subscribers = stream;
+        if (subscribers != null) {
+            stats.add("stream", subscribers.getStats());
+        }
+        return stats;
+    }
+
     /**
      * When stopping the component, stop the scheduled thread.
      */
     @Stop
     public final void stop() {
-        if (stpe != null) {
-            stpe.shutdownNow();
+        scheduler.stop();
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+        TicBroadcaster group = broadcaster;
+        if (group != null) {
+            broadcaster = null;
+            try {
+                group.close();
+            } catch (IOException e) {
+                logError("Could not close the tic group: " + e.getMessage());
+            }
+        }
+        TicStream subscribers = stream;
+        if (subscribers != null) {
+            stream = null;
+            subscribers.stop();
         }
+        closeClockPage();
+        assets.clear();
     }
 
     @Override
@@ -479,25 +1583,78 @@ public class Timekeeper extends Service implements ModelListener {
                             new Object[]{"/timekeeper", getFullId(), true}),
                     new ShowIfErrorCallback());
         }
-        if (status == null || status.equals(Status.UNKNOWN)) {
+        if (clock.getStatus().equals(Status.UNKNOWN)) {
             init();
         } else {
-            sendTic(new Tic(getUTCTime(), zip,
-                    getTimezoneOffset(), status, TimeCommand.CARRYON));
+            sendTic(TimeCommand.CARRYON);
         }
         super.modelUpdated();
     }
 
     /**
-     * Create a dedicated thread for scheduled events.
+     * State of the Timekeeper saved at the beginning of a batch,
+     * and the command of the last Tic held back since.
      */
-    private void initExecutor() {
-        stpe = new ScheduledThreadPoolExecutor(1, r -> {
-            return new Thread(r, getFullId() + "-timekeeper-pool");
-        });
+    private static final class Batch {
+        /**
+         * The snapshot of the clock.
+         */
+        private final ClockState clock;
+        /**
+         * The time zone.
+         */
+        private final TimeZone timezone;
+        /**
+         * The offsets of the time zone.
+         */
+        private final TimezoneIndex zoneIndex;
+        /**
+         * The tic frequency.
+         */
+        private final long ticFrequency;
+        /**
+         * The registered breakpoints by id.
+         */
+        private final TreeMap<Long, Breakpoint> breakpoints;
+        /**
+         * The last breakpoint id given.
+         */
+        private final long lastBreakpointId;
+        /**
+         * The registered wakeups.
+         */
+        private final WakeupQueue wakeups;
+        /**
+         * The command of the last Tic held back, null if none.
+         */
+        private TimeCommand command;
+
+        /**
+         * @param theClock            the snapshot of the clock
+         * @param theTimezone         the time zone
+         * @param theZoneIndex        the offsets of the time zone
+         * @param theTicFrequency     the tic frequency
+         * @param theBreakpoints      a copy of the breakpoints by id
+         * @param theLastBreakpointId the last breakpoint id given
+         * @param theWakeups          a copy of the wakeups
+         */
+        Batch(final ClockState theClock,
+              final TimeZone theTimezone,
+              final TimezoneIndex theZoneIndex,
+              final long theTicFrequency,
+              final TreeMap<Long, Breakpoint> theBreakpoints,
+              final long theLastBreakpointId,
+              final WakeupQueue theWakeups) {
+            clock = theClock;
+            timezone = theTimezone;
+            zoneIndex = theZoneIndex;
+            ticFrequency = theTicFrequency;
+            breakpoints = theBreakpoints;
+            lastBreakpointId = theLastBreakpointId;
+            wakeups = theWakeups;
+        }
     }
 
 }
 
 
-
@@ -25,15 +25,19 @@ package org.activehome.timekeeper;
  */
 
 
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import org.activehome.service.RequestHandler;
-import org.activehome.tools.file.FileHelper;
-import org.activehome.tools.file.TypeMime;
 
 /**
  * Methods of the timekeeper accessible from other
  * components through {@code Service#getRequest}.
+ * A single instance serves all requests of a Timekeeper.
+ * {@link #handle} calls them by name without reflection, but only
+ * for {@link #batch}: the requests of other components are still
+ * dispatched by the reflective lookup of {@code Service}, which is
+ * outside this module.
  *
  * @author Jacky Bourgeois
  */
@@ -62,6 +66,16 @@ public class TimekeeperRequestHandler implements RequestHandler {
         return service.getUTCTime();
     }
 
+    /**
+     * Get the current UTC time in nanoseconds: emulated idle/running
+     * or actual.
+     *
+     * @return UNIX timestamp in nanoseconds.
+     */
+    public final long getTimeNanos() {
+        return service.getUTCTimeNanos();
+    }
+
     /**
      * Switch the status to INITIALIZED and send a Tic
      * which contains the time command INIT.
@@ -112,6 +126,81 @@ public class TimekeeperRequestHandler implements RequestHandler {
         return service.resumeTime();
     }
 
+    /**
+     * Ask to be notified when the simulated time reaches a given time.
+     * The notification is a Notif containing a DataPoint 'time.wakeup'
+     * with the callback ids (Json array) of all wakeups of the
+     * destination due at that time.
+     *
+     * @param dest       the component to notify
+     * @param ts         the simulated UTC time of the wakeup
+     * @param callbackId the id to send back with the notification
+     * @return the id of the wakeup, to cancel it
+     */
+    public final long scheduleAt(final String dest,
+                                 final long ts,
+                                 final String callbackId) {
+        return service.scheduleWakeup(dest, ts, callbackId);
+    }
+
+    /**
+     * Cancel a wakeup registered with {@code #scheduleAt}.
+     *
+     * @param id the id of the wakeup
+     * @return true if the wakeup was pending
+     */
+    public final boolean cancel(final long id) {
+        return service.cancelWakeup(id);
+    }
+
+    /**
+     * Register a control command to apply exactly at a simulated time:
+     * the Tic of the command carries that time, whatever the zip.
+     *
+     * @param at      the simulated time: local date/time
+     *                ('yyyy-MM-dd HH:mm:ss', 'yyyy-MM-dd HH:mm' or
+     *                'yyyy-MM-dd'), UNIX timestamp, a duration from now
+     *                ('+30d', '+2h') or the next solar event
+     *                ('sunset', 'sunrise', 'civilDusk'...)
+     * @param command 'pause', 'stop' or a zip ('x1', '2.5', 'afap')
+     * @return the id of the breakpoint, to cancel it
+     */
+    public final long breakAt(final String at, final String command) {
+        return service.addBreakpoint(at, command);
+    }
+
+    /**
+     * Cancel a breakpoint registered with {@code #breakAt}.
+     *
+     * @param id the id of the breakpoint
+     * @return true if the breakpoint was pending
+     */
+    public final boolean cancelBreakpoint(final long id) {
+        return service.cancelBreakpoint(id);
+    }
+
+    /**
+     * @return the pending breakpoints as Json array of
+     * id, ts, command (and zip)
+     */
+    public final JsonArray getBreakpoints() {
+        return service.getBreakpoints();
+    }
+
+    /**
+     * Metrics of the Tic delivery on the tic port, for the port as a
+     * whole, not per binding: number of connected bindings, pending and
+     * maximum queued Tics, sent, failed, coalesced, dropped and decimated
+     * Tics, current stride (1 regular Tic out of stride is sent), last,
+     * average and maximum latency of a send to all the bindings
+     * (microseconds).
+     *
+     * @return the metrics as Json
+     */
+    public final JsonObject getDeliveryStats() {
+        return service.getDeliveryStats();
+    }
+
     /**
      * @return an String containing a html view of the timekeeper
      */
@@ -128,24 +217,33 @@ public class TimekeeperRequestHandler implements RequestHandler {
     }
 
     /**
-     * Serve content file as string.
+     * Serve content file as string, from memory after the first call.
      *
      * @param fileName the file to serve
      * @return a json containing the file as string
-     * in 'content' and the type of the file in 'mime'
+     * in 'content', the type of the file in 'mime'
+     * and its entity tag in 'etag'
      */
     public final JsonValue file(final String fileName) {
-        String content = FileHelper.fileToString(
-                fileName, getClass().getClassLoader());
-        if (fileName.compareTo("timekeeper-view.html") == 0) {
-            content = content.replaceAll("\\$\\{id\\}", service.getId());
+        return service.getAsset(fileName).getJson();
+    }
+
+    /**
+     * Serve content file unless the client already holds it.
+     *
+     * @param fileName    the file to serve
+     * @param ifNoneMatch the entity tags held by the client
+     *                    (If-None-Match header)
+     * @return 'notModified' true with the 'mime' and 'etag' of the file
+     * if one of the tags matches, as {@code #file} otherwise
+     */
+    public final JsonValue fileIfChanged(final String fileName,
+                                         final String ifNoneMatch) {
+        AssetCache.Asset asset = service.getAsset(fileName);
+        if (asset.matches(ifNoneMatch)) {
+            return asset.getNotModified();
         }
-        JsonObject json = new JsonObject();
-        json.add("content", content);
-        json.add("mime", TypeMime.valueOf(
-                fileName.substring(fileName.lastIndexOf(".") + 1,
-                        fileName.length())).getDesc());
-        return json;
+        return asset.getJson();
     }
 
     /**
@@ -153,7 +251,8 @@ public class TimekeeperRequestHandler implements RequestHandler {
      * Properties can be
      * - timezone (e.g 'Europe/Amsterdam' or 'UTC')
      * - start (e.g 'yyyy-MM-dd HH:mm:ss', 'actual' or UNIX timestamp)
-     * - zip (e.g 1 or 'x1')
+     * - zip (e.g 1, 'x1', 'x2.5' or 'afap'), changed on the fly if alone
+     * - ticPeriod (e.g '1s', '15min' or '1h'), changed on the fly if alone
      *
      * @param properties properties as Json
      * @return {@code #getProperties} showing the new status of all properties.
@@ -169,4 +268,257 @@ public class TimekeeperRequestHandler implements RequestHandler {
         return service.getProperties();
     }
 
+    /**
+     * Apply a list of commands in order, as one step: the batch holds
+     * the lock of the Timekeeper, which the commands changing its state
+     * and its scheduled events (Tics, wakeups, breakpoints, offset
+     * changes, solar events) also take, so none of them runs between
+     * two commands. The Tics of the commands are held back: once all
+     * are applied, a single Tic announces the final state, with the
+     * command of the last one. The reads without lock (getTime,
+     * getTimeNanos, getProperties, getDeliveryStats) may still observe
+     * the state between two commands.
+     * A command is the name of a method ('getTime') or an object with
+     * the name in 'method' and the parameters in 'params' (Json array).
+     * The batch stops at the first failing command, whose result is
+     * an object with the message in 'error': the following commands
+     * are not applied, and the clock, time zone, tic period,
+     * breakpoints and wakeups are restored as before the batch,
+     * without any Tic. A batch cannot contain a batch.
+     *
+     * @param commands the commands as Json array
+     * @return the results of the commands, in order, the last one
+     * being the error if the batch failed
+     */
+    public final JsonArray batch(final JsonArray commands) {
+        JsonArray results = new JsonArray();
+        synchronized (service) {
+            service.beginBatch();
+            boolean applied = false;
+            try {
+                applied = applyAll(commands, results);
+            } finally {
+                service.endBatch(applied);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Apply the commands of a batch in order, up to the first failing one.
+     *
+     * @param commands the commands as Json array
+     * @param results  receives the result of each command, or the error
+     * @return true if all the commands were applied
+     */
+    private boolean applyAll(final JsonArray commands,
+                             final JsonArray results) {
+        for (JsonValue command : commands) {
+            try {
+                results.add(toJson(apply(command)));
+            } catch (RuntimeException e) {
+                JsonObject error = new JsonObject();
+                error.add("error", e.getMessage() + "");
+                results.add(error);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param command a command of a batch
+     * @return the result of the command
+     * @throws IllegalArgumentException if the command is not valid
+     */
+    private Object apply(final JsonValue command) {
+        if (command.isString()) {
+            return handle(command.asString(), new Object[0]);
+        }
+        JsonObject object = command.asObject();
+        JsonValue method = object.get("method");
+        if (method == null || !method.isString()) {
+            throw new IllegalArgumentException("Missing method in "
+                    + command + ".");
+        }
+        JsonValue params = object.get("params");
+        Object[] values = new Object[0];
+        if (params != null && params.isArray()) {
+            values = params.asArray().values().toArray();
+        }
+        return handle(method.asString(), values);
+    }
+
+    /**
+     * @param result the result of a method
+     * @return the result as Json
+     */
+    private static JsonValue toJson(final Object result) {
+        if (result == null) {
+            return JsonValue.NULL;
+        } else if (result instanceof JsonValue) {
+            return (JsonValue) result;
+        } else if (result instanceof Boolean) {
+            return JsonValue.valueOf((Boolean) result);
+        } else if (result instanceof Long || result instanceof Integer) {
+            return JsonValue.valueOf(((Number) result).longValue());
+        }
+        return JsonValue.valueOf(result.toString());
+    }
+
+    /**
+     * Answer a time request by name, through a switch, without boxing
+     * or allocating.
+     *
+     * @param method 'getTime' or 'getTimeNanos'
+     * @return the current UTC time, in milliseconds or nanoseconds
+     * @throws IllegalArgumentException if the method is not a time request
+     */
+    final long handleTime(final String method) {
+        switch (method) {
+            case "getTime":
+                return getTime();
+            case "getTimeNanos":
+                return getTimeNanos();
+            default:
+                throw new IllegalArgumentException("Not a time request '"
+                        + method + "'.");
+        }
+    }
+
+    /**
+     * Call a method of the handler by name, through a switch instead
+     * of a reflective lookup. The parameters are converted from their
+     * Json or text form when needed. The time requests answer as Json
+     * numbers, through {@link #handleTime} without boxing.
+     *
+     * @param method the name of the method
+     * @param params the parameters of the method
+     * @return the result of the method (boxed if primitive)
+     * @throws IllegalArgumentException if the method is unknown
+     *                                  or the parameters do not match
+     */
+    final Object handle(final String method, final Object[] params) {
+        switch (method) {
+            case "getTime":
+            case "getTimeNanos":
+                return JsonValue.valueOf(handleTime(method));
+            case "initTime":
+                return initTime();
+            case "startTime":
+                return startTime();
+            case "stopTime":
+                return stopTime();
+            case "pauseTime":
+                return pauseTime();
+            case "resumeTime":
+                return resumeTime();
+            case "scheduleAt":
+                return scheduleAt(asString(params, 0), asLong(params, 1),
+                        asString(params, 2));
+            case "cancel":
+                return cancel(asLong(params, 0));
+            case "breakAt":
+                return breakAt(asString(params, 0), asString(params, 1));
+            case "cancelBreakpoint":
+                return cancelBreakpoint(asLong(params, 0));
+            case "getBreakpoints":
+                return getBreakpoints();
+            case "getDeliveryStats":
+                return getDeliveryStats();
+            case "html":
+                return html();
+            case "file":
+                return file(asString(params, 0));
+            case "fileIfChanged":
+                return fileIfChanged(asString(params, 0),
+                        asString(params, 1));
+            case "setProperties":
+                return setProperties(asObject(params, 0));
+            case "getProperties":
+                return getProperties();
+            case "batch":
+                return batch(asArray(params, 0));
+            default:
+                throw new IllegalArgumentException("Unknown method '"
+                        + method + "'.");
+        }
+    }
+
+    /**
+     * @param params the parameters of a request
+     * @param index  the index of the parameter
+     * @return the parameter
+     * @throws IllegalArgumentException if the parameter is missing
+     */
+    private static Object param(final Object[] params, final int index) {
+        if (params == null || params.length <= index) {
+            throw new IllegalArgumentException("Missing parameter "
+                    + index + ".");
+        }
+        return params[index];
+    }
+
+    /**
+     * @param params the parameters of a request
+     * @param index  the index of the parameter
+     * @return the parameter as text
+     */
+    private static String asString(final Object[] params, final int index) {
+        Object param = param(params, index);
+        if (param instanceof JsonValue && ((JsonValue) param).isString()) {
+            return ((JsonValue) param).asString();
+        }
+        return param == null ? null : param.toString();
+    }
+
+    /**
+     * @param params the parameters of a request
+     * @param index  the index of the parameter
+     * @return the parameter as number
+     */
+    private static long asLong(final Object[] params, final int index) {
+        Object param = param(params, index);
+        if (param instanceof Number) {
+            return ((Number) param).longValue();
+        } else if (param instanceof JsonValue
+                && ((JsonValue) param).isNumber()) {
+            return ((JsonValue) param).asLong();
+        }
+        try {
+            return Long.parseLong(asString(params, index));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + index
+                    + " is not a number.", e);
+        }
+    }
+
+    /**
+     * @param params the parameters of a request
+     * @param index  the index of the parameter
+     * @return the parameter as Json array
+     */
+    private static JsonArray asArray(final Object[] params,
+                                     final int index) {
+        Object param = param(params, index);
+        if (param instanceof JsonArray) {
+            return (JsonArray) param;
+        }
+        return JsonArray.readFrom(asString(params, index));
+    }
+
+    /**
+     * @param params the parameters of a request
+     * @param index  the index of the parameter
+     * @return the parameter as Json object
+     */
+    private static JsonObject asObject(final Object[] params,
+                                       final int index) {
+        Object param = param(params, index);
+        if (param instanceof JsonObject) {
+            return (JsonObject) param;
+        }
+        return JsonObject.readFrom(asString(params, index));
+    }
+
 }
@@ -0,0 +1,161 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+
+/**
+ * Offsets of a time zone, built once from the zone rules into sorted
+ * arrays: the start of each period of constant offset and its offset
+ * in minutes (half and quarter hour zones included). A lookup checks
+ * the last period found, then falls back to a binary search.
+ * Beyond the indexed years, the zone rules are used directly.
+ * Thread safe.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TimezoneIndex {
+
+    /**
+     * No more transition.
+     */
+    static final long NONE = Long.MAX_VALUE;
+    /**
+     * Last year indexed.
+     */
+    private static final int LAST_YEAR = 2200;
+
+    /**
+     * The time zone rules.
+     */
+    private final ZoneRules rules;
+    /**
+     * Start (UTC) of each period, the first one is unbounded.
+     */
+    private final long[] starts;
+    /**
+     * Offset (minutes) of each period.
+     */
+    private final int[] offsets;
+    /**
+     * End (UTC) of the last indexed transition year.
+     */
+    private final long end;
+    /**
+     * Position of the period of the last lookup.
+     */
+    private volatile int last = 0;
+
+    /**
+     * @param zone the time zone to index
+     */
+    TimezoneIndex(final ZoneId zone) {
+        rules = zone.getRules();
+        end = Instant.parse(LAST_YEAR + "-01-01T00:00:00Z").toEpochMilli();
+        long[] theStarts = new long[64];
+        int[] theOffsets = new int[64];
+        theStarts[0] = Long.MIN_VALUE;
+        theOffsets[0] = minutes(rules.getOffset(Instant.ofEpochMilli(
+                Long.MIN_VALUE / 2)).getTotalSeconds());
+        int n = 1;
+        ZoneOffsetTransition transition = rules.nextTransition(
+                Instant.ofEpochMilli(Long.MIN_VALUE / 2));
+        while (transition != null
+                && transition.getInstant().toEpochMilli() < end) {
+            if (n == theStarts.length) {
+                theStarts = Arrays.copyOf(theStarts, n * 2);
+                theOffsets = Arrays.copyOf(theOffsets, n * 2);
+            }
+            theStarts[n] = transition.getInstant().toEpochMilli();
+            theOffsets[n] = minutes(transition.getOffsetAfter()
+                    .getTotalSeconds());
+            n++;
+            transition = rules.nextTransition(transition.getInstant());
+        }
+        starts = Arrays.copyOf(theStarts, n);
+        offsets = Arrays.copyOf(theOffsets, n);
+    }
+
+    /**
+     * @param ts UTC time
+     * @return the offset from UTC, in minutes, at that time
+     */
+    int offsetMinutes(final long ts) {
+        if (ts >= end) {
+            return minutes(rules.getOffset(Instant.ofEpochMilli(ts))
+                    .getTotalSeconds());
+        }
+        int i = last;
+        if (ts < starts[i] || (i + 1 < starts.length && ts >= starts[i + 1])) {
+            i = find(ts);
+            last = i;
+        }
+        return offsets[i];
+    }
+
+    /**
+     * @param ts UTC time
+     * @return the UTC time of the first offset change after
+     * {@code ts}, {@code #NONE} if none
+     */
+    long nextTransition(final long ts) {
+        if (ts < end) {
+            int i = find(ts) + 1;
+            if (i < starts.length) {
+                return starts[i];
+            }
+        }
+        ZoneOffsetTransition transition = rules.nextTransition(
+                Instant.ofEpochMilli(Math.max(ts, end - 1)));
+        if (transition == null) {
+            return NONE;
+        }
+        return transition.getInstant().toEpochMilli();
+    }
+
+    /**
+     * @param ts UTC time
+     * @return the position of the period containing {@code ts}
+     */
+    private int find(final long ts) {
+        int i = Arrays.binarySearch(starts, ts);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    /**
+     * @param seconds offset in seconds
+     * @return offset in minutes
+     */
+    private static int minutes(final int seconds) {
+        return seconds / 60;
+    }
+
+}
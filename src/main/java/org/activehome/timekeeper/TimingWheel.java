@@ -0,0 +1,498 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel keyed in simulated time (milliseconds).
+ * Six levels of 64 slots cover about two years ahead of the current
+ * time, farther timers wait in an overflow list. Insert and cancel
+ * are O(1), finding the next expiration is O(levels) thanks to a
+ * bitmap of the occupied slots per level.
+ * Not thread safe: accessed under the {@code VirtualScheduler} lock.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TimingWheel {
+
+    /**
+     * Number of bits of time per level (64 slots).
+     */
+    private static final int SLOT_BITS = 6;
+    /**
+     * Number of slots per level.
+     */
+    private static final int SLOTS = 1 << SLOT_BITS;
+    /**
+     * Number of levels.
+     */
+    private static final int LEVELS = 6;
+    /**
+     * Index of the list of timers which are already due.
+     */
+    private static final int READY = LEVELS * SLOTS;
+    /**
+     * Index of the list of timers beyond the range of the wheel.
+     */
+    private static final int OVERFLOW = READY + 1;
+    /**
+     * Value of {@link #nextExpiration()} when there is no timer.
+     */
+    static final long NONE = Long.MAX_VALUE;
+
+    /**
+     * First timer of each list (wheel slots, ready, overflow).
+     */
+    private final Timer[] heads = new Timer[OVERFLOW + 1];
+    /**
+     * Last timer of each list (wheel slots, ready, overflow).
+     */
+    private final Timer[] tails = new Timer[OVERFLOW + 1];
+    /**
+     * Bitmap of the non empty slots, per level.
+     */
+    private final long[] occupied = new long[LEVELS];
+    /**
+     * Origin of the wheel time, set on reset.
+     */
+    private long origin;
+    /**
+     * Current time of the wheel, relative to origin.
+     */
+    private long elapsed;
+    /**
+     * Earliest time (relative) of the overflow timers, NONE if unknown.
+     */
+    private long overflowMin = NONE;
+
+    /**
+     * @param now the current simulated time
+     */
+    TimingWheel(final long now) {
+        origin = now;
+    }
+
+    /**
+     * Drop all timers and restart the wheel at the given time.
+     *
+     * @param now the current simulated time
+     */
+    void reset(final long now) {
+        for (int i = 0; i < heads.length; i++) {
+            for (Timer t = heads[i]; t != null; t = t.next) {
+                t.list = -1;
+            }
+            heads[i] = null;
+            tails[i] = null;
+        }
+        for (int i = 0; i < LEVELS; i++) {
+            occupied[i] = 0;
+        }
+        origin = now;
+        elapsed = 0;
+        overflowMin = NONE;
+    }
+
+    /**
+     * @param when   the simulated time of the action
+     * @param action the action to execute
+     * @return the timer, to cancel it
+     */
+    Timer schedule(final long when, final Runnable action) {
+        Timer timer = new Timer(when, action);
+        insert(timer);
+        return timer;
+    }
+
+    /**
+     * Put back a timer collected by {@link #poll} but not executed,
+     * unless it has been cancelled in the meantime.
+     *
+     * @param timer the timer to put back
+     */
+    void reschedule(final Timer timer) {
+        if (!timer.cancelled && timer.list < 0) {
+            insert(timer);
+        }
+    }
+
+    /**
+     * Cancel a timer, pending or collected by {@link #poll}
+     * but not executed yet.
+     *
+     * @param timer the timer to cancel
+     * @return true if the timer was pending
+     */
+    boolean cancel(final Timer timer) {
+        timer.cancelled = true;
+        if (timer.list < 0) {
+            return false;
+        }
+        if (timer.list == OVERFLOW && timer.when - origin == overflowMin) {
+            overflowMin = NONE;
+        }
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * @return the simulated time from which the next timers are due,
+     * {@link #NONE} if there is no timer
+     */
+    long nextExpiration() {
+        long next = nextRelative();
+        if (next == NONE) {
+            return NONE;
+        }
+        return origin + next;
+    }
+
+    /**
+     * Move the wheel to the given time, collecting the timers due
+     * on the way, by time then scheduling order.
+     *
+     * @param now the current simulated time
+     * @param due the list to fill with the due timers
+     */
+    void poll(final long now, final List<Timer> due) {
+        long relNow = now - origin;
+        while (true) {
+            if (heads[READY] != null) {
+                drain(READY, due);
+                continue;
+            }
+            long wheelNext = nextInWheel();
+            long overNext = overflowMin();
+            long next = Math.min(wheelNext, overNext);
+            if (next == NONE || next > relNow) {
+                break;
+            }
+            elapsed = next;
+            if (overNext <= wheelNext) {
+                cascade(OVERFLOW, due);
+                overflowMin = NONE;
+            } else {
+                cascadeSlot(due);
+            }
+        }
+        if (relNow > elapsed) {
+            elapsed = relNow;
+        }
+    }
+
+    /**
+     * @return the next expiration relative to origin, NONE if none
+     */
+    private long nextRelative() {
+        if (heads[READY] != null) {
+            return elapsed;
+        }
+        return Math.min(nextInWheel(), overflowMin());
+    }
+
+    /**
+     * @return the start (relative) of the first occupied slot,
+     * NONE if the wheel is empty
+     */
+    private long nextInWheel() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] != 0) {
+                return slotStart(level, nextSlot(level));
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param level the level
+     * @return the next occupied slot of the level, from the current time
+     */
+    private int nextSlot(final int level) {
+        int nowSlot = (int) ((elapsed >>> (level * SLOT_BITS)) & (SLOTS - 1));
+        long rotated = Long.rotateRight(occupied[level], nowSlot);
+        return (Long.numberOfTrailingZeros(rotated) + nowSlot) & (SLOTS - 1);
+    }
+
+    /**
+     * @param level the level
+     * @param slot  the slot of the level
+     * @return the start (relative) of the slot
+     */
+    private long slotStart(final int level, final int slot) {
+        int shift = level * SLOT_BITS;
+        long levelRange = 1L << (shift + SLOT_BITS);
+        long levelStart = elapsed & ~(levelRange - 1);
+        long start = levelStart + ((long) slot << shift);
+        if (start < elapsed) {
+            start += levelRange;
+        }
+        return start;
+    }
+
+    /**
+     * Take the timers of the first occupied slot, which starts
+     * at the current time: collect the due ones and move the others
+     * down to a lower level.
+     *
+     * @param due the list to fill with the due timers
+     */
+    private void cascadeSlot(final List<Timer> due) {
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] != 0) {
+                int slot = nextSlot(level);
+                cascade(level * SLOTS + slot, due);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Empty a list, collecting the due timers and re-inserting the others.
+     *
+     * @param list the index of the list
+     * @param due  the list to fill with the due timers
+     */
+    private void cascade(final int list, final List<Timer> due) {
+        Timer timer = heads[list];
+        heads[list] = null;
+        tails[list] = null;
+        if (list < READY) {
+            occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+        }
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.list = -1;
+            if (timer.when - origin <= elapsed) {
+                due.add(timer);
+            } else {
+                insert(timer);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * Collect all timers of a list as due.
+     *
+     * @param list the index of the list
+     * @param due  the list to fill with the due timers
+     */
+    private void drain(final int list, final List<Timer> due) {
+        Timer timer = heads[list];
+        heads[list] = null;
+        tails[list] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            timer.list = -1;
+            due.add(timer);
+            timer = next;
+        }
+    }
+
+    /**
+     * @return the earliest time (relative) of the overflow timers
+     */
+    private long overflowMin() {
+        if (overflowMin == NONE && heads[OVERFLOW] != null) {
+            for (Timer t = heads[OVERFLOW]; t != null; t = t.next) {
+                overflowMin = Math.min(overflowMin, t.when - origin);
+            }
+        }
+        return overflowMin;
+    }
+
+    /**
+     * Put a timer in the list matching its time.
+     *
+     * @param timer the timer to insert
+     */
+    private void insert(final Timer timer) {
+        long when = timer.when - origin;
+        if (when <= elapsed) {
+            linkReady(timer);
+            return;
+        }
+        int level = levelFor(elapsed, when);
+        if (level >= LEVELS) {
+            link(timer, OVERFLOW);
+            if (overflowMin != NONE) {
+                overflowMin = Math.min(overflowMin, when);
+            }
+            return;
+        }
+        int slot = (int) ((when >>> (level * SLOT_BITS)) & (SLOTS - 1));
+        link(timer, level * SLOTS + slot);
+        occupied[level] |= 1L << slot;
+    }
+
+    /**
+     * @param now  the current time (relative)
+     * @param when the time of the timer (relative)
+     * @return the level of the highest group of bits which differs
+     */
+    private static int levelFor(final long now, final long when) {
+        long masked = (now ^ when) | (SLOTS - 1);
+        int significant = 63 - Long.numberOfLeadingZeros(masked);
+        return significant / SLOT_BITS;
+    }
+
+    /**
+     * Append a timer to a list.
+     *
+     * @param timer the timer
+     * @param list  the index of the list
+     */
+    private void link(final Timer timer, final int list) {
+        timer.list = list;
+        timer.next = null;
+        timer.prev = tails[list];
+        if (tails[list] == null) {
+            heads[list] = timer;
+        } else {
+            tails[list].next = timer;
+        }
+        tails[list] = timer;
+    }
+
+    /**
+     * Insert a timer in the ready list, keeping it sorted by time
+     * (timers scheduled in the past are usually scheduled in order,
+     * so this is mostly an append).
+     *
+     * @param timer the timer
+     */
+    private void linkReady(final Timer timer) {
+        Timer after = tails[READY];
+        while (after != null && after.when > timer.when) {
+            after = after.prev;
+        }
+        if (after == tails[READY]) {
+            link(timer, READY);
+            return;
+        }
+        timer.list = READY;
+        timer.prev = after;
+        if (after == null) {
+            timer.next = heads[READY];
+            heads[READY] = timer;
+        } else {
+            timer.next = after.next;
+            after.next = timer;
+        }
+        timer.next.prev = timer;
+    }
+
+    /**
+     * Remove a timer from its list.
+     *
+     * @param timer the timer
+     */
+    private void unlink(final Timer timer) {
+        int list = timer.list;
+        if (timer.prev == null) {
+            heads[list] = timer.next;
+        } else {
+            timer.prev.next = timer.next;
+        }
+        if (timer.next == null) {
+            tails[list] = timer.prev;
+        } else {
+            timer.next.prev = timer.prev;
+        }
+        if (list < READY && heads[list] == null) {
+            occupied[list / SLOTS] &= ~(1L << (list % SLOTS));
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.list = -1;
+    }
+
+    /**
+     * An action scheduled at a simulated time.
+     */
+    static final class Timer {
+        /**
+         * The simulated time of the action.
+         */
+        private final long when;
+        /**
+         * The action to execute.
+         */
+        private final Runnable action;
+        /**
+         * The list containing the timer, -1 if not pending.
+         */
+        private int list = -1;
+        /**
+         * Has the timer been cancelled?
+         */
+        private boolean cancelled = false;
+        /**
+         * Previous timer in the list.
+         */
+        private Timer prev;
+        /**
+         * Next timer in the list.
+         */
+        private Timer next;
+
+        /**
+         * @param theWhen   the simulated time of the action
+         * @param theAction the action to execute
+         */
+        Timer(final long theWhen, final Runnable theAction) {
+            when = theWhen;
+            action = theAction;
+        }
+
+        /**
+         * @return the simulated time of the action
+         */
+        long getWhen() {
+            return when;
+        }
+
+        /**
+         * @return the action to execute
+         */
+        Runnable getAction() {
+            return action;
+        }
+
+        /**
+         * @return true if the timer has been cancelled
+         */
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+}
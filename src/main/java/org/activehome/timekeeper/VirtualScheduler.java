@@ -0,0 +1,260 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeStatus;
+import org.kevoree.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single thread executing actions at given simulated times, held
+ * in a {@link TimingWheel}. The thread follows the clock of the
+ * {@code Timekeeper}: it sleeps while the time is not running, waits
+ * for the actual time matching the next timer at the current zip, or
+ * jumps straight to it in as-fast-as-possible mode. Pausing or changing
+ * the zip only requires {@link #clockChanged()}, the timers stay as they
+ * are. As fast as possible, the time only jumps once the Tics sent so
+ * far have been delivered. The timers due together run one by one,
+ * each only if the time is still running and reached it, otherwise
+ * it goes back to the wheel.
+ *
+ * @author Jacky Bourgeois
+ */
+final class VirtualScheduler implements Runnable {
+
+    /**
+     * The timekeeper providing the clock.
+     */
+    private final Timekeeper timekeeper;
+    /**
+     * Pending actions by simulated time.
+     */
+    private final TimingWheel wheel;
+    /**
+     * Guard the wheel.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signaled when the timers or the clock change.
+     */
+    private final Condition changed = lock.newCondition();
+    /**
+     * The thread executing the actions.
+     */
+    private Thread thread;
+    /**
+     * The thread executing the actions, kept after {@code #stop}
+     * for the actions still running.
+     */
+    private volatile Thread worker;
+    /**
+     * Incremented each time the actions are dropped.
+     */
+    private long generation = 0;
+    /**
+     * Generation of the actions being executed: once they are dropped,
+     * the actions they schedule are dropped as well.
+     */
+    private long executing = 0;
+
+    /**
+     * @param theTimekeeper the timekeeper providing the clock
+     */
+    VirtualScheduler(final Timekeeper theTimekeeper) {
+        timekeeper = theTimekeeper;
+        wheel = new TimingWheel(theTimekeeper.getUTCTime());
+    }
+
+    /**
+     * Start the thread executing the actions.
+     *
+     * @param name the name of the thread
+     */
+    void start(final String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Stop the thread executing the actions.
+     */
+    void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Schedule an action. An action scheduled by an action which has
+     * been dropped in the meantime ({@code #clear}) is dropped too.
+     *
+     * @param ts     the simulated UTC time of the action
+     * @param action the action to execute
+     * @return the timer, to cancel the action
+     */
+    TimingWheel.Timer schedule(final long ts, final Runnable action) {
+        lock.lock();
+        try {
+            if (Thread.currentThread() == worker && executing != generation) {
+                return new TimingWheel.Timer(ts, action);
+            }
+            TimingWheel.Timer timer = wheel.schedule(ts, action);
+            changed.signal();
+            return timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timer the timer of the action to cancel
+     * @return true if the action was pending
+     */
+    boolean cancel(final TimingWheel.Timer timer) {
+        lock.lock();
+        try {
+            return wheel.cancel(timer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop all pending actions, restarting from the current simulated
+     * time (e.g. the time line has been reset).
+     */
+    void clear() {
+        lock.lock();
+        try {
+            wheel.reset(timekeeper.getUTCTime());
+            generation++;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the thread to take into account a new status or zip.
+     */
+    void clockChanged() {
+        lock.lock();
+        try {
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check that a due timer may still run, as the previous actions
+     * of its batch may have changed the clock (e.g. a breakpoint
+     * pausing the time before the next Tics): the actions must not
+     * have been dropped nor cancelled, the time must be running and
+     * reached the timer. A timer which cannot run yet goes back to
+     * the wheel.
+     *
+     * @param timer the due timer
+     * @return true if the action of the timer can run
+     */
+    private boolean claim(final TimingWheel.Timer timer) {
+        lock.lock();
+        try {
+            if (executing != generation || timer.isCancelled()) {
+                return false;
+            }
+            ClockState state = timekeeper.getClockState();
+            if (state.getStatus() != TimeStatus.RUNNING
+                    || timer.getWhen() > state.getUTCTime()) {
+                wheel.reschedule(timer);
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        worker = Thread.currentThread();
+        List<TimingWheel.Timer> due = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long jumpTo = TimingWheel.NONE;
+                lock.lockInterruptibly();
+                try {
+                    ClockState state = timekeeper.getClockState();
+                    long next = wheel.nextExpiration();
+                    if (state.getStatus() != TimeStatus.RUNNING
+                            || next == TimingWheel.NONE) {
+                        changed.await();
+                        continue;
+                    }
+                    long now = state.getUTCTime();
+                    if (next <= now) {
+                        wheel.poll(now, due);
+                        executing = generation;
+                    } else if (state.isAsFastAsPossible()) {
+                        jumpTo = next;
+                    } else {
+                        double wait = (next * ClockState.NANOS_PER_MILLI
+                                - state.getUTCTimeNanos()) / state.getZip();
+                        changed.awaitNanos(Math.max(1, (long) Math.ceil(wait)));
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (jumpTo != TimingWheel.NONE) {
+                    if (!timekeeper.awaitDelivery()) {
+                        timekeeper.advanceTo(jumpTo);
+                    }
+                    continue;
+                }
+                for (TimingWheel.Timer timer : due) {
+                    if (!claim(timer)) {
+                        continue;
+                    }
+                    try {
+                        timer.getAction().run();
+                    } catch (RuntimeException e) {
+                        Log.error("Timekeeper action failed: " + e);
+                    }
+                }
+                due.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Wakeups registered by other components at a given simulated time,
+ * ordered by time. Not thread safe: accessed under the
+ * {@code Timekeeper} lock.
+ *
+ * @author Jacky Bourgeois
+ */
+final class WakeupQueue {
+
+    /**
+     * Pending wakeups by simulated time, then registration order.
+     */
+    private final TreeMap<Long, List<Wakeup>> byTS = new TreeMap<>();
+    /**
+     * Pending wakeups by id, to cancel them.
+     */
+    private final HashMap<Long, Wakeup> byId = new HashMap<>();
+    /**
+     * Last wakeup id given.
+     */
+    private long lastId = 0;
+
+    /**
+     * Register a new wakeup.
+     *
+     * @param dest       the component to notify
+     * @param ts         the simulated UTC time of the wakeup
+     * @param callbackId the id to send back with the notification
+     * @return the id of the wakeup (to cancel it)
+     */
+    long add(final String dest, final long ts, final String callbackId) {
+        Wakeup wakeup = new Wakeup(++lastId, dest, ts, callbackId);
+        byTS.computeIfAbsent(ts, k -> new ArrayList<>()).add(wakeup);
+        byId.put(wakeup.id, wakeup);
+        return wakeup.id;
+    }
+
+    /**
+     * @return a copy of the registered wakeups
+     */
+    WakeupQueue copy() {
+        WakeupQueue copy = new WakeupQueue();
+        copy.restore(this);
+        return copy;
+    }
+
+    /**
+     * Replace the registered wakeups by those of a copy.
+     *
+     * @param saved the wakeups to restore
+     */
+    void restore(final WakeupQueue saved) {
+        byTS.clear();
+        byId.clear();
+        for (Map.Entry<Long, List<Wakeup>> entry : saved.byTS.entrySet()) {
+            byTS.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        byId.putAll(saved.byId);
+        lastId = saved.lastId;
+    }
+
+    /**
+     * @param id the id of the wakeup
+     * @return true if the wakeup was pending
+     */
+    boolean cancel(final long id) {
+        Wakeup wakeup = byId.remove(id);
+        if (wakeup == null) {
+            return false;
+        }
+        List<Wakeup> list = byTS.get(wakeup.ts);
+        list.remove(wakeup);
+        if (list.isEmpty()) {
+            byTS.remove(wakeup.ts);
+        }
+        return true;
+    }
+
+    /**
+     * @return the simulated time of the next wakeup, null if none
+     */
+    Long next() {
+        if (byTS.isEmpty()) {
+            return null;
+        }
+        return byTS.firstKey();
+    }
+
+    /**
+     * Remove the wakeups due at the given time, batched per time
+     * and destination.
+     *
+     * @param ts the current simulated time
+     * @return for each due time, the callback ids by destination
+     */
+    Map<Long, Map<String, List<String>>> pollDue(final long ts) {
+        Map<Long, Map<String, List<String>>> due = new LinkedHashMap<>();
+        Iterator<Map.Entry<Long, List<Wakeup>>> it =
+                byTS.headMap(ts, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, List<Wakeup>> entry = it.next();
+            Map<String, List<String>> byDest = new LinkedHashMap<>();
+            for (Wakeup wakeup : entry.getValue()) {
+                byDest.computeIfAbsent(wakeup.dest, k -> new ArrayList<>())
+                        .add(wakeup.callbackId);
+                byId.remove(wakeup.id);
+            }
+            due.put(entry.getKey(), byDest);
+            it.remove();
+        }
+        return due;
+    }
+
+    /**
+     * A component to notify at a given simulated time.
+     */
+    private static final class Wakeup {
+        /**
+         * The id of the wakeup.
+         */
+        private final long id;
+        /**
+         * The component to notify.
+         */
+        private final String dest;
+        /**
+         * The simulated UTC time of the wakeup.
+         */
+        private final long ts;
+        /**
+         * The id to send back with the notification.
+         */
+        private final String callbackId;
+
+        /**
+         * @param theId         the id of the wakeup
+         * @param theDest       the component to notify
+         * @param theTS         the simulated UTC time of the wakeup
+         * @param theCallbackId the id to send back with the notification
+         */
+        Wakeup(final long theId, final String theDest, final long theTS,
+               final String theCallbackId) {
+            id = theId;
+            dest = theDest;
+            ts = theTS;
+            callbackId = theCallbackId;
+        }
+    }
+
+}
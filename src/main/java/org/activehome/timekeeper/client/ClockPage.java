@@ -0,0 +1,327 @@
+package org.activehome.timekeeper.client;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeStatus;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of the clock page published by a Timekeeper in a memory-mapped
+ * file, for the processes of the same host to read the simulated time
+ * without any message. The page holds the anchor of the clock:
+ * the simulated time at a reading of {@link System#nanoTime()} (the
+ * monotonic clock of the host), the zip and the status, so that the
+ * current time is computed locally.
+ * The anchor reading is compared with the {@link System#nanoTime()}
+ * of the reader, so the page assumes every JVM of the host reads the
+ * same monotonic clock: the Java specification leaves the origin of
+ * nanoTime arbitrary, but HotSpot reads the monotonic clock of the
+ * operating system (CLOCK_MONOTONIC on Linux, mach_absolute_time on
+ * macOS, QueryPerformanceCounter on Windows), shared by all the
+ * processes of the host. Readers on another JVM implementation must
+ * not rely on the page while the clock is running.
+ * The page is guarded by a sequence lock: the writer makes the
+ * sequence odd while updating the anchor, readers retry until they
+ * read the same even sequence before and after the anchor. The writer
+ * also stores a check of the sequence and anchor, since mapped buffers
+ * give no ordering guarantee between processes: a reader never accepts
+ * an anchor mixing two updates.
+ * Layout (native byte order), see the offsets below:
+ * magic, version, sequence, start time, anchor, anchor reading, zip,
+ * status, check.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class ClockPage {
+
+    /**
+     * Magic number of the page ('AHTK').
+     */
+    public static final int MAGIC = 0x4148544B;
+    /**
+     * Version of the page layout.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Size of the page, in bytes.
+     */
+    public static final int SIZE = 64;
+    /**
+     * Offset of the magic number (int).
+     */
+    public static final int MAGIC_OFFSET = 0;
+    /**
+     * Offset of the layout version (int).
+     */
+    public static final int VERSION_OFFSET = 4;
+    /**
+     * Offset of the sequence (long), odd while the page is updated,
+     * 0 until the first update.
+     */
+    public static final int SEQUENCE_OFFSET = 8;
+    /**
+     * Offset of the start time (long), -1 to follow the actual time.
+     */
+    public static final int START_OFFSET = 16;
+    /**
+     * Offset of the simulated UTC time (long, nanoseconds)
+     * at the anchor reading.
+     */
+    public static final int ANCHOR_OFFSET = 24;
+    /**
+     * Offset of the anchor reading of {@link System#nanoTime()} (long),
+     * by the writer, on the monotonic clock of the host.
+     */
+    public static final int READING_OFFSET = 32;
+    /**
+     * Offset of the zip (double), infinite if as fast as possible.
+     */
+    public static final int ZIP_OFFSET = 40;
+    /**
+     * Offset of the ordinal of the {@link TimeStatus} (int).
+     */
+    public static final int STATUS_OFFSET = 48;
+    /**
+     * Offset of the check of the sequence and anchor (long),
+     * see {@link #check}.
+     */
+    public static final int CHECK_OFFSET = 56;
+    /**
+     * Number of nanoseconds in a millisecond.
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /**
+     * Multiplier of the check (golden ratio).
+     */
+    private static final long CHECK_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /**
+     * The mapped page.
+     */
+    private final MappedByteBuffer page;
+
+    /**
+     * @param thePage the mapped page
+     */
+    private ClockPage(final MappedByteBuffer thePage) {
+        page = thePage;
+    }
+
+    /**
+     * Map the clock page published by a Timekeeper.
+     *
+     * @param path the file of the page (clockPage param of the Timekeeper)
+     * @return the reader of the page
+     * @throws IOException if the file cannot be mapped
+     *                     or is not a clock page
+     */
+    public static ClockPage open(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            if (channel.size() < SIZE) {
+                throw new IOException(path + " is not a clock page");
+            }
+            MappedByteBuffer page = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            page.order(ByteOrder.nativeOrder());
+            if (page.getInt(MAGIC_OFFSET) != MAGIC
+                    || page.getInt(VERSION_OFFSET) != VERSION) {
+                throw new IOException(path + " is not a clock page"
+                        + " of version " + VERSION);
+            }
+            return new ClockPage(page);
+        }
+    }
+
+    /**
+     * Get the current UTC time from the page: emulated idle/running
+     * or actual.
+     *
+     * @return UNIX timestamp, 0 until the page is published.
+     */
+    public long getUTCTime() {
+        return Math.floorDiv(getUTCTimeNanos(), NANOS_PER_MILLI);
+    }
+
+    /**
+     * Get the current UTC time from the page in nanoseconds.
+     *
+     * @return UNIX timestamp in nanoseconds, 0 until the page
+     * is published.
+     */
+    public long getUTCTimeNanos() {
+        Snapshot snapshot = read();
+        if (snapshot.seq == 0) {
+            return 0;
+        } else if (snapshot.start == -1) {
+            return System.currentTimeMillis() * NANOS_PER_MILLI;
+        } else if (snapshot.status != TimeStatus.RUNNING.ordinal()
+                || Double.isInfinite(snapshot.zip)) {
+            return snapshot.anchor;
+        }
+        long elapsed = System.nanoTime() - snapshot.reading;
+        return snapshot.anchor + (long) (elapsed * snapshot.zip);
+    }
+
+    /**
+     * @return the zip of the clock, infinite if as fast as possible
+     */
+    public double getZip() {
+        return read().zip;
+    }
+
+    /**
+     * @return the status of the clock, UNKNOWN until the page
+     * is published
+     */
+    public TimeStatus getStatus() {
+        Snapshot snapshot = read();
+        if (snapshot.seq == 0) {
+            return TimeStatus.UNKNOWN;
+        }
+        return TimeStatus.values()[snapshot.status];
+    }
+
+    /**
+     * @return the number of updates of the page, to detect clock changes
+     */
+    public long getGeneration() {
+        return page.getLong(SEQUENCE_OFFSET) >>> 1;
+    }
+
+    /**
+     * Read the anchor between two updates of the page: retry until
+     * the sequence is even and unchanged after the anchor, and the
+     * anchor matches the check of the update.
+     *
+     * @return a consistent snapshot of the page
+     */
+    private Snapshot read() {
+        while (true) {
+            long seq = page.getLong(SEQUENCE_OFFSET);
+            long start = page.getLong(START_OFFSET);
+            long anchor = page.getLong(ANCHOR_OFFSET);
+            long reading = page.getLong(READING_OFFSET);
+            long zipBits = page.getLong(ZIP_OFFSET);
+            int status = page.getInt(STATUS_OFFSET);
+            if (seq == 0 || (seq & 1) == 0
+                    && seq == page.getLong(SEQUENCE_OFFSET)
+                    && page.getLong(CHECK_OFFSET)
+                    == check(seq, start, anchor, reading, zipBits, status)) {
+                return new Snapshot(seq, start, anchor, reading,
+                        Double.longBitsToDouble(zipBits), status);
+            }
+        }
+    }
+
+    /**
+     * Check written with each update of the page, a hash of the
+     * sequence and anchor.
+     *
+     * @param seq     the sequence of the update (even)
+     * @param start   the start time
+     * @param anchor  the anchor
+     * @param reading the anchor reading
+     * @param zipBits the bits of the zip
+     * @param status  the status ordinal
+     * @return the check of the update
+     */
+    public static long check(final long seq,
+                             final long start,
+                             final long anchor,
+                             final long reading,
+                             final long zipBits,
+                             final int status) {
+        long hash = seq;
+        hash = (hash ^ start) * CHECK_MULTIPLIER;
+        hash = (hash ^ anchor) * CHECK_MULTIPLIER;
+        hash = (hash ^ reading) * CHECK_MULTIPLIER;
+        hash = (hash ^ zipBits) * CHECK_MULTIPLIER;
+        hash = (hash ^ status) * CHECK_MULTIPLIER;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Consistent copy of the anchor of the page.
+     */
+    private static final class Snapshot {
+
+        /**
+         * The sequence of the update, 0 if unpublished.
+         */
+        private final long seq;
+        /**
+         * The start time, -1 to follow the actual time.
+         */
+        private final long start;
+        /**
+         * The simulated UTC time (nanoseconds) at the reading.
+         */
+        private final long anchor;
+        /**
+         * The reading of {@link System#nanoTime()} of the writer.
+         */
+        private final long reading;
+        /**
+         * The zip, infinite if as fast as possible.
+         */
+        private final double zip;
+        /**
+         * The ordinal of the status.
+         */
+        private final int status;
+
+        /**
+         * @param theSeq     the sequence of the update
+         * @param theStart   the start time
+         * @param theAnchor  the anchor
+         * @param theReading the anchor reading
+         * @param theZip     the zip
+         * @param theStatus  the status ordinal
+         */
+        private Snapshot(final long theSeq,
+                         final long theStart,
+                         final long theAnchor,
+                         final long theReading,
+                         final double theZip,
+                         final int theStatus) {
+            seq = theSeq;
+            start = theStart;
+            anchor = theAnchor;
+            reading = theReading;
+            zip = theZip;
+            status = theStatus;
+        }
+
+    }
+
+}
@@ -0,0 +1,284 @@
+package org.activehome.timekeeper.client;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.Tic;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.TicCodec;
+import org.activehome.timekeeper.TicRecord;
+
+/**
+ * Local source of the Active Home time for the components receiving
+ * the Tics, to read the current time without a getTime request to the
+ * Timekeeper. The time is extrapolated from the last Tic with
+ * {@link System#nanoTime()} at the actual zip of the Tic
+ * (see {@link TicRecord}), fractional zips included.
+ * The anchor is reset on control commands (INIT, START, PAUSE...) and
+ * on zip or status changes, which may take the time back. A regular
+ * Tic only moves the time forward: when the extrapolation is behind the
+ * Tic (as fast as possible mode, late extrapolation), the time jumps
+ * to the Tic; when it is ahead of the Tic by more than the maximum
+ * drift, in actual time (transport latency of the Tics, local clock
+ * running fast), the time holds at the value reached until the Tic
+ * catches up with it. Between control commands, the time read never
+ * goes back.
+ * The local time uses the offset of the Tics in minutes (+5:30, +9:30).
+ * Reads are wait-free and do not allocate; Tics may come from
+ * any thread.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class TicClock {
+
+    /**
+     * Number of nanoseconds in a millisecond.
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+    /**
+     * Number of milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+    /**
+     * Default maximum drift ahead of the Tics, in actual milliseconds.
+     */
+    public static final long DEFAULT_MAX_DRIFT = 50;
+
+    /**
+     * Maximum drift ahead of the Tics before resync,
+     * in actual milliseconds.
+     */
+    private final long maxDrift;
+    /**
+     * The last anchor of the time, replaced as a whole.
+     */
+    private volatile Anchor anchor = new Anchor(0, System.nanoTime(), 1,
+            0, TimeStatus.UNKNOWN, 0);
+    /**
+     * Number of Tics received.
+     */
+    private volatile long tics;
+    /**
+     * Number of Tics that reset the anchor.
+     */
+    private volatile long resyncs;
+
+    /**
+     * Clock resynchronized when the extrapolation runs ahead of the
+     * Tics by more than {@link #DEFAULT_MAX_DRIFT} milliseconds.
+     */
+    public TicClock() {
+        this(DEFAULT_MAX_DRIFT);
+    }
+
+    /**
+     * @param theMaxDrift maximum drift ahead of the Tics before resync,
+     *                    in actual milliseconds (scaled by the zip)
+     */
+    public TicClock(final long theMaxDrift) {
+        maxDrift = Math.max(0, theMaxDrift);
+    }
+
+    /**
+     * Update the clock with a payload received from the tic port,
+     * in JSON or binary record.
+     *
+     * @param payload the Tic
+     * @throws IllegalArgumentException if the payload is not a valid Tic
+     */
+    public void onTic(final String payload) {
+        onTic(TicCodec.read(payload));
+    }
+
+    /**
+     * Update the clock with a received Tic, its zip rounded
+     * to an integer.
+     *
+     * @param tic the Tic
+     */
+    public void onTic(final Tic tic) {
+        onTic(new TicRecord(tic));
+    }
+
+    /**
+     * Update the clock with a received Tic.
+     *
+     * @param tic the Tic, with its actual zip
+     */
+    public synchronized void onTic(final TicRecord tic) {
+        long now = System.nanoTime();
+        Anchor current = anchor;
+        tics++;
+        long ahead = current.timeAt(now) - tic.getTS();
+        if (tic.getCommand() != TimeCommand.CARRYON
+                || tic.getZip() != current.zip
+                || tic.getStatus() != current.status
+                || ahead < 0) {
+            anchor = new Anchor(tic.getTS(), now, tic.getZip(),
+                    tic.getOffset(), tic.getStatus(), tic.getTS());
+            resyncs++;
+        } else if (ahead > maxDrift * current.zip) {
+            anchor = new Anchor(tic.getTS(), now, tic.getZip(),
+                    tic.getOffset(), tic.getStatus(), tic.getTS() + ahead);
+            resyncs++;
+        } else if (tic.getOffset() != current.offset) {
+            anchor = new Anchor(current.ts, current.nanos, current.zip,
+                    tic.getOffset(), current.status, current.floor);
+        }
+    }
+
+    /**
+     * Get the current UTC time, extrapolated from the last Tic.
+     *
+     * @return UNIX timestamp, 0 before the first Tic.
+     */
+    public long getUTCTime() {
+        return anchor.timeAt(System.nanoTime());
+    }
+
+    /**
+     * @return the current time in the time zone of the Timekeeper
+     */
+    public long getLocalTime() {
+        Anchor current = anchor;
+        return current.timeAt(System.nanoTime())
+                + current.offset * MINUTE;
+    }
+
+    /**
+     * @return the actual zip of the last Tic, positive infinity
+     * as fast as possible
+     */
+    public double getZip() {
+        return anchor.zip;
+    }
+
+    /**
+     * @return the time zone offset (in whole hours) of the last Tic
+     */
+    public int getTimezone() {
+        return anchor.offset / 60;
+    }
+
+    /**
+     * @return the time zone offset (in minutes) of the last Tic
+     */
+    public int getOffset() {
+        return anchor.offset;
+    }
+
+    /**
+     * @return the time status of the last Tic
+     */
+    public TimeStatus getStatus() {
+        return anchor.status;
+    }
+
+    /**
+     * @return the number of Tics received
+     */
+    public long getTics() {
+        return tics;
+    }
+
+    /**
+     * @return the number of Tics that reset the time anchor
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * Time received in a Tic and the local time of its reception.
+     */
+    private static final class Anchor {
+
+        /**
+         * Simulated UTC time of the Tic.
+         */
+        private final long ts;
+        /**
+         * {@link System#nanoTime()} at the reception of the Tic.
+         */
+        private final long nanos;
+        /**
+         * The zip of the Tic.
+         */
+        private final double zip;
+        /**
+         * The time zone offset of the Tic (in minutes).
+         */
+        private final int offset;
+        /**
+         * The time status of the Tic.
+         */
+        private final TimeStatus status;
+        /**
+         * The time already read when the Tic came behind it: the time
+         * holds there until the Tic catches up.
+         */
+        private final long floor;
+
+        /**
+         * @param theTS       the time of the Tic
+         * @param theNanos    the local time of reception
+         * @param theZip      the zip of the Tic
+         * @param theOffset   the time zone offset of the Tic (minutes)
+         * @param theStatus   the time status of the Tic
+         * @param theFloor    the minimum time to read
+         */
+        private Anchor(final long theTS,
+                       final long theNanos,
+                       final double theZip,
+                       final int theOffset,
+                       final TimeStatus theStatus,
+                       final long theFloor) {
+            ts = theTS;
+            nanos = theNanos;
+            zip = theZip;
+            offset = theOffset;
+            status = theStatus;
+            floor = theFloor;
+        }
+
+        /**
+         * The time only flows while running, and not in as fast
+         * as possible mode where it jumps from Tic to Tic.
+         *
+         * @param now a reading of {@link System#nanoTime()}
+         * @return the simulated time at {@code now}
+         */
+        private long timeAt(final long now) {
+            if (status != TimeStatus.RUNNING || Double.isInfinite(zip)) {
+                return ts;
+            }
+            return Math.max(floor,
+                    ts + (long) ((now - nanos) * zip / NANOS_PER_MILLI));
+        }
+
+    }
+
+}
@@ -0,0 +1,251 @@
+package org.activehome.timekeeper.client;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.Tic;
+import org.activehome.timekeeper.TicCodec;
+import org.activehome.timekeeper.TicRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receiver of the Tics broadcast by a Timekeeper over UDP (ticGroup
+ * param), to a multicast group or a unicast address such as loopback.
+ * Each datagram is a sequence number ({@link #HEADER} bytes) followed
+ * by the binary record of the Tic (see {@link TicCodec}); gaps in the
+ * sequence are counted as missed Tics. A sequence going back means the
+ * Timekeeper restarted: the receiver follows the new sequence.
+ * Several receivers can join a multicast group on the same host, but
+ * only one can bind a unicast address: to share the Tics between local
+ * processes, use a multicast group rather than loopback.
+ *
+ * @author Jacky Bourgeois
+ */
+public final class TicReceiver implements Closeable {
+
+    /**
+     * Size of the header of a datagram (sequence number), in bytes.
+     */
+    public static final int HEADER = 8;
+    /**
+     * Size of a datagram, in bytes.
+     */
+    public static final int LENGTH = HEADER + TicCodec.LENGTH;
+
+    /**
+     * The channel receiving the datagrams.
+     */
+    private final DatagramChannel channel;
+    /**
+     * Buffer of the last datagram, one byte larger than a Tic:
+     * a datagram that does not fit is truncated silently, so
+     * oversized datagrams must fill it to be told apart.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(LENGTH + 1);
+    /**
+     * Sequence number of the last Tic, 0 before the first one.
+     */
+    private volatile long sequence;
+    /**
+     * Number of Tics received.
+     */
+    private volatile long received;
+    /**
+     * Number of Tics missed (gaps in the sequence).
+     */
+    private volatile long missed;
+
+    /**
+     * Receive the Tics sent to a group, joined on the default
+     * multicast interface.
+     *
+     * @param group 'address:port' as the ticGroup param of the Timekeeper
+     * @throws IOException if the channel cannot be opened
+     */
+    public TicReceiver(final String group) throws IOException {
+        this(group, "");
+    }
+
+    /**
+     * Receive the Tics sent to a group. A multicast group is joined,
+     * shared with the other receivers of the host. A unicast address
+     * is bound, exclusively: a second receiver fails to open.
+     *
+     * @param group         'address:port' as the ticGroup param
+     *                      of the Timekeeper
+     * @param interfaceName the network interface joining a multicast
+     *                      group, empty for the default one
+     * @throws IOException if the channel cannot be opened
+     */
+    public TicReceiver(final String group,
+                       final String interfaceName) throws IOException {
+        InetSocketAddress address = address(group);
+        InetAddress ip = address.getAddress();
+        channel = DatagramChannel.open(family(ip));
+        if (ip.isMulticastAddress()) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(address.getPort()));
+            channel.join(ip, networkInterface(interfaceName));
+        } else {
+            channel.bind(address);
+        }
+    }
+
+    /**
+     * Wait for the next Tic.
+     *
+     * @return the Tic, with the zip rounded to an integer
+     * @throws IOException if the channel is closed or the datagram
+     *                     is not a Tic
+     */
+    public Tic receive() throws IOException {
+        return receiveRecord().toTic();
+    }
+
+    /**
+     * Wait for the next Tic, with its actual zip.
+     *
+     * @return the Tic
+     * @throws IOException if the channel is closed or the datagram
+     *                     is not a Tic
+     */
+    public TicRecord receiveRecord() throws IOException {
+        while (true) {
+            buffer.clear();
+            channel.receive(buffer);
+            buffer.flip();
+            if (buffer.remaining() == LENGTH) {
+                long seq = buffer.getLong();
+                try {
+                    TicRecord tic = TicCodec.read(buffer);
+                    if (sequence != 0 && seq > sequence + 1) {
+                        missed += seq - sequence - 1;
+                    }
+                    sequence = seq;
+                    received++;
+                    return tic;
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the last Tic, 0 before the first one
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of Tics received
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return the number of Tics missed
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Close the channel, releasing a thread waiting for a Tic.
+     *
+     * @throws IOException if the channel cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @param group 'address:port'
+     * @return the socket address of the group
+     * @throws IllegalArgumentException if the port is missing
+     */
+    public static InetSocketAddress address(final String group) {
+        int colon = group.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Missing port in '"
+                    + group + "' (address:port).");
+        }
+        String host = group.substring(0, colon).trim();
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host,
+                Integer.parseInt(group.substring(colon + 1).trim()));
+    }
+
+    /**
+     * @param ip an address of the group
+     * @return the protocol family of the address
+     */
+    public static StandardProtocolFamily family(final InetAddress ip) {
+        if (ip instanceof Inet6Address) {
+            return StandardProtocolFamily.INET6;
+        }
+        return StandardProtocolFamily.INET;
+    }
+
+    /**
+     * @param name the name of a network interface, empty for the
+     *             interface of the local host address
+     * @return the network interface
+     * @throws IOException if the interface does not exist
+     */
+    public static NetworkInterface networkInterface(final String name)
+            throws IOException {
+        NetworkInterface ni;
+        if (name == null || name.trim().isEmpty()) {
+            ni = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+            if (ni == null) {
+                ni = NetworkInterface.getByInetAddress(
+                        InetAddress.getLoopbackAddress());
+            }
+        } else {
+            ni = NetworkInterface.getByName(name.trim());
+        }
+        if (ni == null) {
+            throw new IOException("Unknown network interface '" + name + "'.");
+        }
+        return ni;
+    }
+
+}
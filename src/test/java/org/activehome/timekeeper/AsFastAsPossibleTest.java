@@ -0,0 +1,99 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeCommand;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * As fast as possible, the time only moves on once the consumers
+ * received the Tics: none is coalesced, dropped or decimated.
+ *
+ * @author Jacky Bourgeois
+ */
+public class AsFastAsPossibleTest {
+
+    /**
+     * One hour, in milliseconds.
+     */
+    private static final long HOUR = 3600000L;
+
+    /**
+     * A slow consumer (1 ms per Tic) still receives one Tic
+     * per period, whatever the queue policy.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 30000)
+    public void deliversOneTicPerPeriod() throws Exception {
+        for (String overflow : new String[]{"coalesce", "drop-oldest"}) {
+            List<String> sent = Collections.synchronizedList(
+                    new ArrayList<>());
+            Timekeeper timekeeper = TimekeeperFixture.start(
+                    TimekeeperFixture.params(
+                            "startDate", "2016-01-01 00:00:00",
+                            "zipFactor", "afap",
+                            "timezoneName", "UTC",
+                            "ticPeriod", "1h",
+                            "ticFormat", "binary",
+                            "ticQueueSize", "4",
+                            "ticOverflow", overflow),
+                    TimekeeperFixture.port(sent, 1));
+            try {
+                timekeeper.init();
+                timekeeper.startTime();
+                Thread.sleep(300);
+                timekeeper.pauseTime();
+            } finally {
+                timekeeper.stop();
+            }
+
+            long last = -1;
+            int regular = 0;
+            synchronized (sent) {
+                for (String payload : sent) {
+                    TicRecord tic = TicCodec.read(payload);
+                    if (tic.getCommand() == TimeCommand.CARRYON) {
+                        if (last != -1) {
+                            assertEquals(overflow, HOUR, tic.getTS() - last);
+                        }
+                        last = tic.getTS();
+                        regular++;
+                    }
+                }
+            }
+            assertTrue(overflow + ": " + regular + " Tics", regular > 10);
+        }
+    }
+
+}
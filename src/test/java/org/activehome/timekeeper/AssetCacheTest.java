@@ -0,0 +1,100 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+import com.eclipsesource.json.JsonObject;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Files are templated once, and each response is a copy the caller
+ * may modify.
+ *
+ * @author Jacky Bourgeois
+ */
+public class AssetCacheTest {
+
+    /**
+     * The file served.
+     */
+    private static final String FILE = "timekeeper-view.html";
+
+    /**
+     * A response modified by a caller leaves the next ones intact.
+     */
+    @Test
+    public void servesCopiesOfTheCachedFile() {
+        AtomicInteger templated = new AtomicInteger();
+        AssetCache cache = new AssetCache(getClass().getClassLoader(),
+                (name, content) -> {
+                    templated.incrementAndGet();
+                    return "<p>" + name + "</p>";
+                });
+        AssetCache.Asset asset = cache.get(FILE);
+        assertSame(asset, cache.get(FILE));
+        assertEquals(1, templated.get());
+
+        JsonObject first = asset.getJson();
+        JsonObject second = asset.getJson();
+        assertNotSame(first, second);
+        first.set("content", "changed");
+        assertEquals("<p>" + FILE + "</p>",
+                asset.getJson().get("content").asString());
+
+        String etag = second.get("etag").asString();
+        assertTrue(asset.matches(etag));
+        assertTrue(asset.matches("W/" + etag));
+        assertFalse(asset.matches("\"other\""));
+        JsonObject notModified = asset.getNotModified();
+        notModified.set("etag", "changed");
+        assertEquals(etag, asset.getNotModified().get("etag").asString());
+    }
+
+    /**
+     * Clearing the cache templates the files again.
+     */
+    @Test
+    public void templatesAgainOnceCleared() {
+        AtomicInteger templated = new AtomicInteger();
+        AssetCache cache = new AssetCache(getClass().getClassLoader(),
+                (name, content) -> name + templated.incrementAndGet());
+        assertEquals(FILE + 1,
+                cache.get(FILE).getJson().get("content").asString());
+        cache.clear();
+        assertEquals(FILE + 2,
+                cache.get(FILE).getJson().get("content").asString());
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A breakpoint due with other timers in the same batch of the
+ * scheduler: the Tics after it wait until the time resumes.
+ *
+ * @author Jacky Bourgeois
+ */
+public class BreakpointTest {
+
+    /**
+     * 2016-01-01 00:00 UTC.
+     */
+    private static final long START = 1451606400000L;
+    /**
+     * One second, the tic period.
+     */
+    private static final long SECOND = 1000L;
+    /**
+     * One hour, in milliseconds.
+     */
+    private static final long HOUR = 3600000L;
+
+    /**
+     * With a Tic due every 28 microseconds, the scheduler collects
+     * the breakpoint with the next Tic, due 14 microseconds later:
+     * no Tic goes out between the pause and the resume, and the Tics
+     * carry on after the breakpoint without gap.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 30000)
+    public void pausesBeforeTheTicsOfTheSameBatch() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Timekeeper timekeeper = TimekeeperFixture.start(
+                TimekeeperFixture.params(
+                        "startDate", "2016-01-01 00:00:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "UTC",
+                        "ticPeriod", "1s",
+                        "ticFormat", "binary",
+                        "ticQueueSize", "1000000",
+                        "ticOverflow", "block",
+                        "adaptiveTics", "false"),
+                TimekeeperFixture.port(sent, 0));
+        long breakpoint = START + HOUR + SECOND / 2;
+        try {
+            timekeeper.init();
+            timekeeper.addBreakpoint(breakpoint + "", "pause");
+            timekeeper.startTime();
+            while (timekeeper.getClockState().getStatus()
+                    != TimeStatus.IDLE) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(100);
+            timekeeper.resumeTime();
+            Thread.sleep(50);
+            timekeeper.pauseTime();
+            timekeeper.awaitDelivery();
+        } finally {
+            timekeeper.stop();
+        }
+
+        List<TicRecord> tics = new ArrayList<>();
+        synchronized (sent) {
+            for (String payload : sent) {
+                tics.add(TicCodec.read(payload));
+            }
+        }
+        int paused = -1;
+        long last = -1;
+        for (int i = 0; i < tics.size(); i++) {
+            TicRecord tic = tics.get(i);
+            if (tic.getCommand() == TimeCommand.PAUSE && paused == -1) {
+                paused = i;
+                assertEquals(breakpoint, tic.getTS());
+                assertEquals(TimeCommand.RESUME,
+                        tics.get(i + 1).getCommand());
+            } else if (tic.getCommand() == TimeCommand.CARRYON) {
+                if (last != -1) {
+                    assertEquals(SECOND, tic.getTS() - last);
+                }
+                assertTrue(paused != -1 || tic.getTS() <= breakpoint);
+                last = tic.getTS();
+            }
+        }
+        assertTrue("no pause", paused != -1);
+        assertTrue(last + " last Tic", last > breakpoint);
+    }
+
+    /**
+     * At x36000, the breakpoint fires tens of simulated seconds after
+     * its time: speeding the time up there never takes it back.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 30000)
+    public void neverGoesBackAtAZipChange() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Timekeeper timekeeper = TimekeeperFixture.start(
+                TimekeeperFixture.params(
+                        "startDate", "2016-01-01 00:00:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "UTC",
+                        "ticPeriod", "1h"),
+                TimekeeperFixture.port(sent, 0));
+        try {
+            timekeeper.init();
+            for (int i = 1; i <= 20; i++) {
+                timekeeper.addBreakpoint((START + i * HOUR / 10) + "",
+                        "x" + (36000 + i * 3600));
+            }
+            timekeeper.startTime();
+            long last = timekeeper.getUTCTime();
+            while (last < START + 2 * HOUR + HOUR / 10) {
+                long now = timekeeper.getUTCTime();
+                assertTrue(now + " after " + last, now >= last);
+                last = now;
+            }
+        } finally {
+            timekeeper.stop();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.client.ClockPage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The clock page published by the writer reads back the clock,
+ * and is left stopped once closed.
+ *
+ * @author Jacky Bourgeois
+ */
+public class ClockPageWriterTest {
+
+    /**
+     * 2016-06-21 00:00 UTC.
+     */
+    private static final long START = 1466467200000L;
+    /**
+     * One simulated hour per second.
+     */
+    private static final double ZIP = 3600;
+
+    /**
+     * The file of the page.
+     */
+    private Path file;
+
+    /**
+     * @throws IOException if the file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("clock", ".page");
+    }
+
+    /**
+     * @throws IOException if the file cannot be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * The reader sees the running clock, then the clock frozen
+     * and stopped after close.
+     *
+     * @throws Exception if the page cannot be mapped
+     */
+    @Test
+    public void publishesTheClockUntilClosed() throws Exception {
+        ClockPageWriter writer = new ClockPageWriter(file.toString());
+        ClockPage page = ClockPage.open(file);
+        assertEquals(TimeStatus.UNKNOWN, page.getStatus());
+        assertEquals(0, page.getUTCTime());
+
+        ClockState state = new ClockState(TimeStatus.UNKNOWN,
+                -1, 0, 0, 0, 0, 1, true)
+                .withStartTS(START).withZip(ZIP).started();
+        writer.publish(state);
+        assertEquals(TimeStatus.RUNNING, page.getStatus());
+        assertEquals(ZIP, page.getZip(), 0);
+        long before = page.getUTCTime();
+        assertTrue(before >= START);
+        Thread.sleep(50);
+        assertTrue(page.getUTCTime() > before);
+
+        writer.close(state);
+        assertEquals(TimeStatus.STOPPED, page.getStatus());
+        long stopped = page.getUTCTime();
+        Thread.sleep(50);
+        assertEquals(stopped, page.getUTCTime());
+        assertTrue(stopped > before && stopped <= state.getUTCTime());
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a getTime request (JMH, test scope, not part of the test run):
+ * {@code mvn test-compile}, then {@code java -cp <test classpath>
+ * org.openjdk.jmh.Main RequestDispatchBenchmark}.
+ * Compares the switch of the shared handler with the reflective
+ * lookup of the service layer, on the shared handler and on a new
+ * handler per request (the dispatch before the shared handler).
+ *
+ * @author Jacky Bourgeois
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RequestDispatchBenchmark {
+
+    /**
+     * The Timekeeper answering the requests.
+     */
+    private Timekeeper timekeeper;
+    /**
+     * The handler shared by all requests.
+     */
+    private TimekeeperRequestHandler shared;
+
+    /**
+     * Create the Timekeeper and its shared handler.
+     */
+    @Setup
+    public void setUp() {
+        timekeeper = new Timekeeper();
+        shared = new TimekeeperRequestHandler(timekeeper);
+    }
+
+    /**
+     * @return the time, through the switch of the shared handler
+     */
+    @Benchmark
+    public long switchSharedHandler() {
+        return shared.handleTime("getTime");
+    }
+
+    /**
+     * @return the time, looked up by name on the shared handler
+     * as the service layer does
+     * @throws ReflectiveOperationException if the call fails
+     */
+    @Benchmark
+    public Object reflectionSharedHandler()
+            throws ReflectiveOperationException {
+        return shared.getClass().getMethod("getTime").invoke(shared);
+    }
+
+    /**
+     * @return the time, looked up by name on a new handler
+     * @throws ReflectiveOperationException if the call fails
+     */
+    @Benchmark
+    public Object reflectionHandlerPerRequest()
+            throws ReflectiveOperationException {
+        TimekeeperRequestHandler handler =
+                new TimekeeperRequestHandler(timekeeper);
+        return handler.getClass().getMethod("getTime").invoke(handler);
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The bulk computation gives, for each site and day, the sunrise and
+ * sunset of {@link SolarCalculator#dailyEvents} (as the Timekeeper),
+ * whether filled or streamed by chunks of sites and days.
+ *
+ * @author Jacky Bourgeois
+ */
+public class SolarBatchTest {
+
+    /**
+     * Number of sites, spread from pole to pole.
+     */
+    private static final int SITES = 150;
+    /**
+     * Number of days.
+     */
+    private static final int DAYS = 40;
+    /**
+     * 2016-06-01, as days since 1970-01-01.
+     */
+    private static final long FROM = 16953;
+    /**
+     * Latitude and longitude of London.
+     */
+    private static final double[] LONDON = {51.5074, -0.1278};
+
+    /**
+     * Latitude of each site.
+     */
+    private final double[] lats = new double[SITES];
+    /**
+     * Longitude of each site.
+     */
+    private final double[] lons = new double[SITES];
+    /**
+     * Time zone offset of each site (minutes).
+     */
+    private final int[] offsets = new int[SITES];
+
+    /**
+     * Sites from 89S to 89N, around the globe, with
+     * offsets of whole and half hours.
+     */
+    public SolarBatchTest() {
+        for (int s = 0; s < SITES; s++) {
+            lats[s] = -89 + 178.0 * s / (SITES - 1);
+            lons[s] = -180 + 360.0 * s / SITES;
+            offsets[s] = (int) Math.round(lons[s] / 7.5) * 30;
+        }
+    }
+
+    /**
+     * The whole matrix holds the result of the calculator.
+     */
+    @Test
+    public void fillsTheSiteDayMatrix() {
+        long[] sunrise = new long[SITES * DAYS];
+        long[] sunset = new long[SITES * DAYS];
+        int[] flags = new int[SITES * DAYS];
+        SolarBatch.fill(lats, lons, offsets, FROM, DAYS,
+                sunrise, sunset, flags);
+        for (int s = 0; s < SITES; s++) {
+            for (int d = 0; d < DAYS; d++) {
+                int i = s * DAYS + d;
+                SolarDay day = day(lats[s], lons[s], FROM + d, offsets[s]);
+                assertEquals(day.has(SolarDay.SUNRISE),
+                        (flags[i] & SolarCalculator.SUNRISE) != 0);
+                assertEquals(day.has(SolarDay.SUNSET),
+                        (flags[i] & SolarCalculator.SUNSET) != 0);
+                if (day.has(SolarDay.SUNRISE)) {
+                    assertEquals(day.getTime(SolarDay.SUNRISE), sunrise[i]);
+                }
+                if (day.has(SolarDay.SUNSET)) {
+                    assertEquals(day.getTime(SolarDay.SUNSET), sunset[i]);
+                }
+                long noon = day.getStart() + 12 * 3600000L;
+                assertEquals(day.isDaytime(noon), SolarCalculator.isDaytime(
+                        flags[i], new long[]{sunrise[i], sunset[i]}, noon));
+            }
+        }
+    }
+
+    /**
+     * Each site and day is streamed exactly once, in chunks no larger
+     * than asked, with the same results as the filled matrix.
+     */
+    @Test
+    public void streamsEachCellOnceByChunks() {
+        long[] sunrise = new long[SITES * DAYS];
+        long[] sunset = new long[SITES * DAYS];
+        int[] flags = new int[SITES * DAYS];
+        SolarBatch.fill(lats, lons, offsets, FROM, DAYS,
+                sunrise, sunset, flags);
+        AtomicIntegerArray seen = new AtomicIntegerArray(SITES * DAYS);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SolarBatch.stream(pool, lats, lons, offsets, FROM, DAYS, 16, 7,
+                    (first, count, day, days, rise, set, f) -> {
+                        assertTrue(count <= 16);
+                        assertTrue(days <= 7);
+                        for (int s = 0; s < count; s++) {
+                            for (int d = 0; d < days; d++) {
+                                int i = (first + s) * DAYS + day + d;
+                                seen.incrementAndGet(i);
+                                assertEquals(flags[i], f[s * days + d]);
+                                assertEquals(sunrise[i], rise[s * days + d]);
+                                assertEquals(sunset[i], set[s * days + d]);
+                            }
+                        }
+                    });
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < SITES * DAYS; i++) {
+            assertEquals(1, seen.get(i));
+        }
+    }
+
+    /**
+     * A single site over a long range of days is split by days.
+     */
+    @Test
+    public void splitsASiteByDays() {
+        AtomicIntegerArray chunks = new AtomicIntegerArray(1);
+        long[] sunrise = new long[3653];
+        SolarBatch.stream(new double[]{LONDON[0]}, new double[]{LONDON[1]},
+                new int[]{0}, FROM, sunrise.length, 1, 100,
+                (first, count, day, days, rise, set, f) -> {
+                    chunks.incrementAndGet(0);
+                    assertTrue(days <= 100);
+                    System.arraycopy(rise, 0, sunrise, day, days);
+                });
+        assertTrue(chunks.get(0) >= sunrise.length / 100);
+        for (int d = 0; d < sunrise.length; d++) {
+            assertEquals(day(LONDON[0], LONDON[1], FROM + d, 0)
+                    .getTime(SolarDay.SUNRISE), sunrise[d]);
+        }
+    }
+
+    /**
+     * @param lat           latitude
+     * @param lon           longitude
+     * @param epochDay      days since 1970-01-01 (date in zone time)
+     * @param offsetMinutes time zone offset (minutes)
+     * @return the solar events of the day, as the Timekeeper
+     */
+    private static SolarDay day(final double lat, final double lon,
+                                final long epochDay,
+                                final int offsetMinutes) {
+        long[] out = new long[SolarCalculator.EVENTS];
+        int flags = SolarCalculator.dailyEvents(lat, lon, epochDay,
+                offsetMinutes, out);
+        return new SolarDay(epochDay, offsetMinutes, flags, out);
+    }
+
+    /**
+     * Coordinates and offsets must have one value per site.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMismatchedSites() {
+        SolarBatch.stream(new double[2], new double[2], new int[1],
+                FROM, DAYS, 16, 7,
+                (first, count, day, days, rise, set, f) -> { });
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Solar events are computed once per location, date and offset,
+ * keeping the most recently used days.
+ *
+ * @author Jacky Bourgeois
+ */
+public class SolarCacheTest {
+
+    /**
+     * Latitude of Milton Keynes.
+     */
+    private static final double LAT = 52.041404;
+    /**
+     * Longitude of Milton Keynes.
+     */
+    private static final double LON = -0.72878;
+    /**
+     * 2016-06-21, as days since 1970-01-01.
+     */
+    private static final long SOLSTICE = 16973;
+
+    /**
+     * The events of a day are those of the calculator.
+     */
+    @Test
+    public void returnsTheEventsOfTheCalculator() {
+        SolarDay day = new SolarCache(8).get(LAT, LON, SOLSTICE, 60);
+        long[] out = new long[SolarCalculator.EVENTS];
+        int flags = SolarCalculator.dailyEvents(LAT, LON, SOLSTICE, 60, out);
+        for (int i = 0; i < SolarCalculator.EVENTS; i++) {
+            assertEquals(SolarDay.NAMES[i], (flags & (1 << i)) != 0,
+                    day.has(i));
+            if (day.has(i)) {
+                assertEquals(SolarDay.NAMES[i], out[i], day.getTime(i));
+            }
+        }
+        assertTrue(day.has(SolarDay.SUNRISE) && day.has(SolarDay.SUNSET));
+    }
+
+    /**
+     * A day already seen is not computed again, coordinates being
+     * rounded to the micro degree; another offset is another day.
+     */
+    @Test
+    public void memoizesByLocationDateAndOffset() {
+        SolarCache cache = new SolarCache(8);
+        SolarDay day = cache.get(LAT, LON, SOLSTICE, 60);
+        assertSame(day, cache.get(LAT, LON, SOLSTICE, 60));
+        assertSame(day, cache.get(LAT + 1e-8, LON - 1e-8, SOLSTICE, 60));
+        assertSame(day, cache.at(LAT, LON,
+                SOLSTICE * 86400000L + 12 * 3600000L, 60));
+        assertNotSame(day, cache.get(LAT, LON, SOLSTICE, 0));
+        assertNotSame(day, cache.get(LAT, LON, SOLSTICE + 1, 60));
+    }
+
+    /**
+     * Beyond its capacity, the cache forgets the least recently
+     * used day.
+     */
+    @Test
+    public void evictsTheLeastRecentlyUsedDay() {
+        SolarCache cache = new SolarCache(2);
+        SolarDay first = cache.get(LAT, LON, SOLSTICE, 60);
+        SolarDay second = cache.get(LAT, LON, SOLSTICE + 1, 60);
+        assertSame(first, cache.get(LAT, LON, SOLSTICE, 60));
+        cache.get(LAT, LON, SOLSTICE + 2, 60);
+        assertSame(first, cache.get(LAT, LON, SOLSTICE, 60));
+        assertNotSame(second, cache.get(LAT, LON, SOLSTICE + 1, 60));
+    }
+
+}
@@ -0,0 +1,176 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link SolarCalculator} is bit-identical to {@link SunsetSunrise}
+ * (SUNUP.BAS): same flags and same sunrise and sunset instants,
+ * over decades of dates, from pole to pole.
+ *
+ * @author Jacky Bourgeois
+ */
+public class SolarCalculatorTest {
+
+    /**
+     * Milliseconds in a day.
+     */
+    private static final long DAY = 86400000L;
+    /**
+     * 1960-01-01, as days since 1970-01-01.
+     */
+    private static final long FROM = -3653;
+    /**
+     * 2040-01-01, as days since 1970-01-01.
+     */
+    private static final long TO = 25567;
+    /**
+     * Latitudes compared, polar circles and poles included.
+     */
+    private static final double[] LATITUDES = {-89.5, -85, -66.56, -45,
+            -20, 0, 20, 45, 52.041404, 66.56, 69.6492, 85, 89.5};
+    /**
+     * Longitude (degrees) and offset (minutes) of the sites compared.
+     */
+    private static final double[][] SITES = {{-0.72878, 60},
+            {88.3639, 330}, {138.6007, 570}, {-122.42, -480},
+            {179.9, 765}};
+
+    /**
+     * Reference values of SUNUP.BAS, as given by {@code SunsetSunrise}:
+     * latitude, longitude, day, offset (minutes), flags, sunrise, sunset.
+     */
+    private static final Object[][] REFERENCES = {
+            // Milton Keynes, 2016-06-21, BST
+            {52.041404, -0.72878, 16973L, 60, 3,
+                    1466484120000L, 1466544420000L},
+            // Kolkata, 2016-12-21, IST (+5:30)
+            {22.5726, 88.3639, 17156L, 330, 3,
+                    1482300720000L, 1482339420000L},
+            // Adelaide, 2016-01-15, ACDT (+10:30)
+            {-34.9285, 138.6007, 16815L, 630, 3,
+                    1452838620000L, 1452889920000L},
+            // Tromso, midnight sun and polar night
+            {69.6492, 18.9553, 16973L, 120, SolarCalculator.SUN_UP,
+                    0L, 0L},
+            {69.6492, 18.9553, 17156L, 60, SolarCalculator.SUN_DOWN,
+                    0L, 0L},
+            // McMurdo, polar night
+            {-77.85, 166.67, 16973L, 720, SolarCalculator.SUN_DOWN,
+                    0L, 0L}};
+
+    /**
+     * The calculator gives the reference values of SUNUP.BAS.
+     */
+    @Test
+    public void givesTheReferenceValues() {
+        long[] out = new long[2];
+        for (Object[] ref : REFERENCES) {
+            out[0] = 0;
+            out[1] = 0;
+            int flags = SolarCalculator.sunriseSunset((Double) ref[0],
+                    (Double) ref[1], (Long) ref[2], (Integer) ref[3], out);
+            String site = ref[0] + "," + ref[1] + " day " + ref[2];
+            assertEquals(site, ref[4], flags);
+            assertEquals(site, ref[5], out[0]);
+            assertEquals(site, ref[6], out[1]);
+        }
+    }
+
+    /**
+     * Same results as {@code SunsetSunrise} from 1960 to 2040.
+     */
+    @Test
+    public void matchesSunsetSunriseOverDecades() {
+        long[] out = new long[2];
+        for (long day = FROM; day < TO; day += 23) {
+            for (double lat : LATITUDES) {
+                for (double[] site : SITES) {
+                    int offset = (int) site[1];
+                    int flags = SolarCalculator.sunriseSunset(lat, site[0],
+                            day, offset, out);
+                    assertMatches(lat, site[0], day, offset, flags, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Same day time as {@code SunsetSunrise}, hour by hour.
+     */
+    @Test
+    public void matchesSunsetSunriseDaytime() {
+        long[] out = new long[2];
+        for (long day = 16801; day < 17167; day += 7) {
+            for (double lat : LATITUDES) {
+                int flags = SolarCalculator.sunriseSunset(lat, -0.72878,
+                        day, 60, out);
+                for (int hour = 0; hour < 24; hour++) {
+                    long ts = day * DAY + hour * 3600000L;
+                    assertEquals(lat + " " + ts, new SunsetSunrise(lat,
+                                    -0.72878, new Date(ts), 1).isDaytime(),
+                            SolarCalculator.isDaytime(flags, out, ts));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param lat    latitude
+     * @param lon    longitude
+     * @param day    days since 1970-01-01
+     * @param offset time zone offset (minutes)
+     * @param flags  the flags of the calculator
+     * @param out    the times of the calculator
+     */
+    private static void assertMatches(final double lat, final double lon,
+                                      final long day, final int offset,
+                                      final int flags, final long[] out) {
+        SunsetSunrise expected = new SunsetSunrise(lat, lon,
+                new Date(day * DAY), offset / 60.0);
+        String site = lat + "," + lon + " day " + day + " offset " + offset;
+        assertEquals(site, expected.isSunrise(),
+                (flags & SolarCalculator.SUNRISE) != 0);
+        assertEquals(site, expected.isSunset(),
+                (flags & SolarCalculator.SUNSET) != 0);
+        assertEquals(site, expected.isSunUp(),
+                (flags & SolarCalculator.SUN_UP) != 0);
+        assertEquals(site, expected.isSunDown(),
+                (flags & SolarCalculator.SUN_DOWN) != 0);
+        if (expected.isSunrise()) {
+            assertEquals(site, expected.getSunrise().getTime(), out[0]);
+        }
+        if (expected.isSunset()) {
+            assertEquals(site, expected.getSunset().getTime(), out[1]);
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+import org.kevoree.api.Port;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The solar events of a day, twilights included, from mid latitudes
+ * to polar days and nights, and their scheduling by the Timekeeper,
+ * one day at a time.
+ *
+ * @author Jacky Bourgeois
+ */
+public class SolarDayTest {
+
+    /**
+     * Latitude of London.
+     */
+    private static final double LAT = 51.5074;
+    /**
+     * Longitude of London.
+     */
+    private static final double LON = -0.1278;
+    /**
+     * Latitude of Tromso, north of the polar circle.
+     */
+    private static final double TROMSO_LAT = 69.6492;
+    /**
+     * Longitude of Tromso.
+     */
+    private static final double TROMSO_LON = 18.9553;
+    /**
+     * 2016-03-20, as days since 1970-01-01.
+     */
+    private static final long EQUINOX = 16880;
+    /**
+     * 2016-06-21, as days since 1970-01-01.
+     */
+    private static final long JUNE = 16973;
+    /**
+     * 2016-12-21, as days since 1970-01-01.
+     */
+    private static final long DECEMBER = 17156;
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+    /**
+     * Depression of the Sun's center below the horizon at each
+     * event before the solar noon, in degrees.
+     */
+    private static final double[] DEPRESSION = {-18, -12, -6, -0.833};
+
+    /**
+     * At the equinox in London, all events occur, in order, the Sun
+     * at the depression of each twilight.
+     */
+    @Test
+    public void ordersAllTheTwilights() {
+        SolarDay day = new SolarCache(8).get(LAT, LON, EQUINOX, 0);
+        SolarPosition position = new SolarPosition(LAT, LON, 1440);
+        double[] out = new double[2];
+        assertEquals(SolarCalculator.EVENTS, day.size());
+        for (int i = 0; i < day.size(); i++) {
+            assertEquals(i, day.eventAt(i));
+            position.position(day.timeAt(i), 0, out);
+            if (i != SolarDay.NAMES.length / 2) {
+                int twilight = Math.min(i, SolarDay.NAMES.length - 1 - i);
+                assertEquals(SolarDay.NAMES[i], DEPRESSION[twilight],
+                        out[0], 0.05);
+            }
+        }
+        // 06:03 and 18:15 UTC
+        assertEquals(1458453780000L, day.getTime(SolarDay.SUNRISE),
+                2 * MINUTE);
+        assertEquals(1458497700000L, day.getTime(SolarDay.SUNSET),
+                2 * MINUTE);
+        assertFalse(day.isDaytime(day.getTime(SolarDay.SUNRISE) - 1));
+        assertTrue(day.isDaytime(day.getTime(SolarDay.SUNRISE)));
+        assertFalse(day.isDaytime(day.getTime(SolarDay.SUNSET)));
+    }
+
+    /**
+     * At the summer solstice in London, the Sun stays above -18
+     * degrees: no astronomical dawn nor dusk.
+     */
+    @Test
+    public void skipsTheTwilightsThatDoNotOccur() {
+        SolarDay day = new SolarCache(8).get(LAT, LON, JUNE, 60);
+        assertEquals(SolarCalculator.EVENTS - 2, day.size());
+        assertFalse(day.has(0));
+        assertFalse(day.has(SolarCalculator.EVENTS - 1));
+        for (int i = 1; i < day.size(); i++) {
+            assertTrue(day.timeAt(i - 1) < day.timeAt(i));
+        }
+        // 04:43 BST, 12:02 UTC
+        assertEquals(1466480580000L, day.getTime(SolarDay.SUNRISE),
+                2 * MINUTE);
+        assertEquals(1466510520000L,
+                day.getTime(SolarDay.NAMES.length / 2), 2 * MINUTE);
+    }
+
+    /**
+     * In Tromso, the Sun does not set at the summer solstice and
+     * does not rise at the winter one, while the civil twilights
+     * still occur around noon.
+     */
+    @Test
+    public void handlesPolarDaysAndNights() {
+        SolarCache cache = new SolarCache(8);
+        SolarDay summer = cache.get(TROMSO_LAT, TROMSO_LON, JUNE, 120);
+        assertEquals(1, summer.size());
+        assertEquals(SolarDay.NAMES.length / 2, summer.eventAt(0));
+        SolarDay winter = cache.get(TROMSO_LAT, TROMSO_LON, DECEMBER, 60);
+        assertFalse(winter.has(SolarDay.SUNRISE));
+        assertFalse(winter.has(SolarDay.SUNSET));
+        assertTrue(winter.has(2));
+        assertTrue(winter.has(SolarCalculator.EVENTS - 3));
+        for (long ts = summer.getStart(); ts < summer.getEnd();
+             ts += 30 * MINUTE) {
+            assertTrue(summer.isDaytime(ts));
+        }
+        for (long ts = winter.getStart(); ts < winter.getEnd();
+             ts += 30 * MINUTE) {
+            assertFalse(winter.isDaytime(ts));
+        }
+        SolarDay svalbard = cache.get(78.2232, 15.6267, DECEMBER, 60);
+        assertFalse(svalbard.has(2));
+        assertTrue(svalbard.has(1));
+    }
+
+    /**
+     * The Timekeeper sends the events of the day in order and only
+     * moves to the next day once the current day's queue runs out.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 30000)
+    public void movesToTheNextDayOnceTheQueueRunsOut() throws Exception {
+        Scheduling timekeeper = TimekeeperFixture.start(new Scheduling(),
+                TimekeeperFixture.params(
+                        "startDate", "2016-03-20 19:00:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "UTC",
+                        "latitude", LAT + "",
+                        "longitude", LON + "",
+                        "ticPeriod", "1d"),
+                TimekeeperFixture.proxy(Port.class));
+        List<long[]> sent;
+        try {
+            timekeeper.init();
+            timekeeper.startTime();
+            sent = timekeeper.await(3);
+        } finally {
+            timekeeper.stop();
+        }
+        SolarDay equinox = new SolarCache(8).get(LAT, LON, EQUINOX, 0);
+        int[] events = {SolarCalculator.EVENTS - 2,
+                SolarCalculator.EVENTS - 1, 0};
+        long[] days = {EQUINOX, EQUINOX, EQUINOX + 1};
+        for (int i = 0; i < events.length; i++) {
+            assertEquals(events[i], sent.get(i)[0]);
+            assertEquals(days[i], sent.get(i)[2]);
+        }
+        assertEquals(equinox.getTime(SolarCalculator.EVENTS - 1),
+                sent.get(1)[1]);
+        assertEquals(equinox.size(), sent.get(1)[3]);
+        assertEquals(1, sent.get(2)[3]);
+    }
+
+    /**
+     * Timekeeper recording, for each solar event sent, the day and
+     * position in the day of its queue.
+     */
+    private static final class Scheduling extends Timekeeper {
+
+        /**
+         * Event, time, day of the queue and position in the queue,
+         * by event sent.
+         */
+        private final List<long[]> sent = new ArrayList<>();
+
+        @Override
+        void sendDataPoint(final String dest,
+                           final String metric,
+                           final long ts,
+                           final String value) {
+            for (int event = 0; event < SolarDay.NAMES.length; event++) {
+                if (metric.equals("time." + SolarDay.NAMES[event])) {
+                    SolarDay day = (SolarDay) read("solarDay");
+                    synchronized (sent) {
+                        sent.add(new long[]{event, ts, day.getEpochDay(),
+                                (Integer) read("solarIndex")});
+                        sent.notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param count number of events to wait for
+         * @return the events sent
+         * @throws InterruptedException if interrupted
+         */
+        List<long[]> await(final int count) throws InterruptedException {
+            synchronized (sent) {
+                while (sent.size() < count) {
+                    sent.wait();
+                }
+                return new ArrayList<>(sent);
+            }
+        }
+
+        /**
+         * @param name name of a field of the Timekeeper
+         * @return its value
+         */
+        private Object read(final String name) {
+            try {
+                Field field = Timekeeper.class.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(this);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+}
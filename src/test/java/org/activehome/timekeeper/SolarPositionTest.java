@@ -0,0 +1,134 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Solar elevation and azimuth against known values, interpolated
+ * from the daily tables.
+ *
+ * @author Jacky Bourgeois
+ */
+public class SolarPositionTest {
+
+    /**
+     * Latitude of London.
+     */
+    private static final double LAT = 51.5074;
+    /**
+     * Longitude of London.
+     */
+    private static final double LON = -0.1278;
+    /**
+     * 2016-06-21 12:02 UTC, solar noon in London.
+     */
+    private static final long JUNE_NOON = 1466510520000L;
+    /**
+     * 2016-12-21 11:59 UTC, solar noon in London.
+     */
+    private static final long DECEMBER_NOON = 1482321540000L;
+    /**
+     * 2016-06-21 03:43 UTC, sunrise in London.
+     */
+    private static final long JUNE_SUNRISE = 1466480580000L;
+    /**
+     * Milliseconds in a minute.
+     */
+    private static final long MINUTE = 60000L;
+
+    /**
+     * In London, the Sun culminates due south at 62 degrees at the
+     * summer solstice, at 15 degrees at the winter solstice.
+     */
+    @Test
+    public void culminatesAtTheSolsticeElevation() {
+        SolarPosition london = new SolarPosition(LAT, LON, 1440);
+        double[] position = new double[2];
+        london.position(JUNE_NOON, 60, position);
+        assertEquals(61.9, position[0], 0.1);
+        assertEquals(180, position[1], 0.5);
+        london.position(DECEMBER_NOON, 0, position);
+        assertEquals(15.06, position[0], 0.1);
+        assertEquals(180, position[1], 0.5);
+    }
+
+    /**
+     * At sunrise, the Sun is geometrically 0.833 degrees below the
+     * horizon (refraction and radius), in the north-east in June.
+     */
+    @Test
+    public void risesInTheNorthEastInJune() {
+        double[] position = new double[2];
+        new SolarPosition(LAT, LON, 1440).position(JUNE_SUNRISE, 60,
+                position);
+        assertEquals(-0.833, position[0], 0.2);
+        assertEquals(48.9, position[1], 0.5);
+    }
+
+    /**
+     * In Sydney, the Sun culminates due north, at 32.7 degrees
+     * at the June solstice.
+     */
+    @Test
+    public void culminatesNorthInTheSouthernHemisphere() {
+        double[] position = new double[2];
+        // 2016-06-21 01:57 UTC
+        new SolarPosition(-33.8688, 151.2093, 1440).position(
+                1466474220000L, 600, position);
+        assertEquals(32.7, position[0], 0.1);
+        assertTrue(position[1] + "", position[1] < 0.5
+                || position[1] > 359.5);
+    }
+
+    /**
+     * Minute after minute, the coarse table follows the fine one,
+     * azimuth within [0, 360[, whatever the time zone offset.
+     */
+    @Test
+    public void interpolatesBetweenTheSamples() {
+        SolarPosition fine = new SolarPosition(LAT, LON, 1440);
+        SolarPosition coarse = new SolarPosition(LAT, LON, 96);
+        double[] expected = new double[2];
+        double[] actual = new double[2];
+        for (int offset : new int[]{0, 60, -570}) {
+            for (long ts = JUNE_NOON - 1440 * MINUTE;
+                 ts < JUNE_NOON + 1440 * MINUTE; ts += MINUTE) {
+                fine.position(ts, offset, expected);
+                coarse.position(ts, offset, actual);
+                assertEquals(expected[0], actual[0], 0.1);
+                double az = Math.abs(expected[1] - actual[1]);
+                assertEquals(0, Math.min(az, 360 - az), 0.5);
+                assertTrue(actual[1] >= 0 && actual[1] < 360);
+            }
+        }
+    }
+
+}
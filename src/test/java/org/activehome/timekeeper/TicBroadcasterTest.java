@@ -0,0 +1,148 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.client.TicReceiver;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * The Tics broadcast over UDP reach a receiver on loopback intact,
+ * and the receiver counts the gaps in their sequence.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TicBroadcasterTest {
+
+    /**
+     * 2016-01-01 00:00:00 UTC.
+     */
+    private static final long START = 1451606400000L;
+
+    /**
+     * Each Tic arrives with its time, actual zip, offset in minutes,
+     * status and command, numbered from 1.
+     *
+     * @throws Exception if the channels cannot be opened
+     */
+    @Test(timeout = 10000)
+    public void deliversTheTicsOnLoopback() throws Exception {
+        String group = "127.0.0.1:" + freePort();
+        try (TicReceiver receiver = new TicReceiver(group)) {
+            TicBroadcaster broadcaster = new TicBroadcaster(group, "");
+            try {
+                broadcaster.send(START, 0.5, -570, TimeStatus.RUNNING,
+                        TimeCommand.START);
+                broadcaster.send(START + 1000, Double.POSITIVE_INFINITY,
+                        330, TimeStatus.RUNNING, TimeCommand.CARRYON);
+            } finally {
+                broadcaster.close();
+            }
+            TicRecord first = receiver.receiveRecord();
+            assertEquals(START, first.getTS());
+            assertEquals(0.5, first.getZip(), 0);
+            assertEquals(-570, first.getOffset());
+            assertEquals(TimeStatus.RUNNING, first.getStatus());
+            assertEquals(TimeCommand.START, first.getCommand());
+            assertEquals(1, receiver.getSequence());
+            TicRecord second = receiver.receiveRecord();
+            assertEquals(START + 1000, second.getTS());
+            assertEquals(Double.POSITIVE_INFINITY, second.getZip(), 0);
+            assertEquals(330, second.getOffset());
+            assertEquals(TimeCommand.CARRYON, second.getCommand());
+            assertEquals(2, receiver.getSequence());
+            assertEquals(2, receiver.getReceived());
+            assertEquals(0, receiver.getMissed());
+        }
+    }
+
+    /**
+     * A jump in the sequence counts the Tics in between as missed;
+     * a sequence going back (restart) is followed without a gap.
+     *
+     * @throws Exception if the channels cannot be opened
+     */
+    @Test(timeout = 10000)
+    public void countsTheGapsInTheSequence() throws Exception {
+        int port = freePort();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        try (TicReceiver receiver = new TicReceiver("127.0.0.1:" + port);
+             DatagramChannel sender = DatagramChannel.open()) {
+            for (long seq : new long[]{1, 2, 5, 6, 1, 3}) {
+                ByteBuffer datagram = ByteBuffer.allocate(TicReceiver.LENGTH);
+                datagram.putLong(seq);
+                TicCodec.put(datagram, START + seq, 1, 0,
+                        TimeStatus.RUNNING, TimeCommand.CARRYON);
+                datagram.flip();
+                sender.send(datagram, address);
+                assertEquals(START + seq, receiver.receiveRecord().getTS());
+                assertEquals(seq, receiver.getSequence());
+            }
+            assertEquals(6, receiver.getReceived());
+            assertEquals(3, receiver.getMissed());
+        }
+    }
+
+    /**
+     * A unicast address is bound by a single receiver.
+     *
+     * @throws Exception if the first channel cannot be opened
+     */
+    @Test(timeout = 10000)
+    public void bindsAUnicastAddressOnce() throws Exception {
+        String group = "127.0.0.1:" + freePort();
+        try (TicReceiver receiver = new TicReceiver(group)) {
+            try {
+                new TicReceiver(group).close();
+                fail("A second receiver bound " + group);
+            } catch (IOException e) {
+                assertEquals(0, receiver.getReceived());
+            }
+        }
+    }
+
+    /**
+     * @return a UDP port free on loopback
+     * @throws IOException if no port can be bound
+     */
+    private static int freePort() throws IOException {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            probe.bind(new InetSocketAddress("127.0.0.1", 0));
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+}
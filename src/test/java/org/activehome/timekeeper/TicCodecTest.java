@@ -0,0 +1,163 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.activehome.time.Tic;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A Tic reads back the same from JSON and from its binary record,
+ * and malformed records are rejected.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TicCodecTest {
+
+    /**
+     * 2016-01-01 00:00:00 UTC.
+     */
+    private static final long START = 1451606400000L;
+
+    /**
+     * The time, actual zip (integer, fractional, as fast as possible),
+     * offset in minutes (including negative half hours), status and
+     * command survive both formats, and JSON converts to the record.
+     */
+    @Test
+    public void roundTripsJsonAndBinary() {
+        double[] zips = {1, 300, 0.5, 2.5, Double.POSITIVE_INFINITY};
+        int[] offsets = {0, 60, 330, -570, -210};
+        for (double zip : zips) {
+            for (int offset : offsets) {
+                String json = TicCodec.json(START, zip, offset,
+                        TimeStatus.RUNNING, TimeCommand.CARRYON);
+                String binary = TicCodec.encode(START, zip, offset,
+                        TimeStatus.RUNNING, TimeCommand.CARRYON);
+                assertTrue(TicCodec.isJson(json));
+                assertFalse(TicCodec.isJson(binary));
+                TicRecord fromJson = TicCodec.read(json);
+                assertSame(json, START, zip, offset, fromJson);
+                assertSame(binary, START, zip, offset,
+                        TicCodec.read(binary));
+                String converted = TicCodec.encode(fromJson.getTS(),
+                        fromJson.getZip(), fromJson.getOffset(),
+                        fromJson.getStatus(), fromJson.getCommand());
+                assertEquals(json, binary, converted);
+            }
+        }
+    }
+
+    /**
+     * The record of a Tic is {@link TicCodec#LENGTH} bytes of version
+     * {@link TicCodec#VERSION}, the Tic type keeps the rounded zip
+     * and the whole hours.
+     */
+    @Test
+    public void encodesTheVersionAndTheTic() {
+        assertEquals(1, TicCodec.VERSION);
+        byte[] record = TicCodec.toBytes(START, 2.5, -570,
+                TimeStatus.IDLE, TimeCommand.PAUSE);
+        assertEquals(TicCodec.LENGTH, record.length);
+        assertEquals(TicCodec.VERSION, record[0]);
+        Tic tic = TicCodec.fromBytes(record);
+        assertEquals(START, tic.getTS());
+        assertEquals(3, tic.getZip());
+        assertEquals(TimeStatus.IDLE, tic.getStatus());
+        assertEquals(TimeCommand.PAUSE, tic.getCommand());
+        Tic afap = TicCodec.decode(TicCodec.encode(START,
+                Double.POSITIVE_INFINITY, 0, TimeStatus.RUNNING,
+                TimeCommand.START));
+        assertTrue(TicRecord.fromTicZip(afap.getZip()) > Double.MAX_VALUE);
+    }
+
+    /**
+     * A record of another version, of another length or with unknown
+     * ordinals is not a Tic.
+     */
+    @Test
+    public void rejectsMalformedRecords() {
+        byte[] record = TicCodec.toBytes(START, 1, 0,
+                TimeStatus.RUNNING, TimeCommand.CARRYON);
+        byte[] version = record.clone();
+        version[0] = 2;
+        byte[] status = record.clone();
+        status[TicCodec.LENGTH - 2] = 100;
+        byte[] command = record.clone();
+        command[TicCodec.LENGTH - 1] = -1;
+        byte[][] invalid = {version, status, command,
+                Arrays.copyOf(record, TicCodec.LENGTH - 1),
+                Arrays.copyOf(record, TicCodec.LENGTH + 1),
+                new byte[0]};
+        for (byte[] bytes : invalid) {
+            String payload = Base64.getEncoder().encodeToString(bytes);
+            try {
+                TicCodec.read(payload);
+                fail("Read " + bytes.length + " bytes as a Tic");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage() != null);
+            }
+            try {
+                TicCodec.fromBytes(bytes);
+                fail("Read " + bytes.length + " bytes as a Tic");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage() != null);
+            }
+        }
+    }
+
+    /**
+     * @param payload the payload read
+     * @param ts      the expected time
+     * @param zip     the expected actual zip
+     * @param offset  the expected offset, in minutes
+     * @param tic     the Tic read
+     */
+    private static void assertSame(final String payload,
+                                   final long ts,
+                                   final double zip,
+                                   final int offset,
+                                   final TicRecord tic) {
+        assertEquals(payload, ts, tic.getTS());
+        assertEquals(payload, zip, tic.getZip(), 0);
+        assertEquals(payload, Double.isInfinite(zip),
+                tic.isAsFastAsPossible());
+        assertEquals(payload, offset, tic.getOffset());
+        assertEquals(payload, TimeStatus.RUNNING, tic.getStatus());
+        assertEquals(payload, TimeCommand.CARRYON, tic.getCommand());
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.kevoree.api.Port;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The delivery stage drops regular Tics when the consumers lag behind,
+ * never the Tics announcing a change.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TicDispatcherTest {
+
+    /**
+     * With the consumer stuck, the queue overflows: the Tics announcing
+     * a change survive coalescing, dropping and decimation.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test(timeout = 10000)
+    public void keepsTheTicsAnnouncingAChange() throws Exception {
+        for (TicDispatcher.Policy policy : new TicDispatcher.Policy[]{
+                TicDispatcher.Policy.COALESCE,
+                TicDispatcher.Policy.DROP_OLDEST}) {
+            for (boolean adaptive : new boolean[]{false, true}) {
+                List<String> sent = Collections.synchronizedList(
+                        new ArrayList<>());
+                CountDownLatch release = new CountDownLatch(1);
+                TicDispatcher dispatcher = new TicDispatcher(
+                        port(sent, release), 4, policy, adaptive);
+                dispatcher.start("tic-dispatcher-test");
+                try {
+                    dispatcher.offer("start", false);
+                    for (int i = 0; i < 50; i++) {
+                        dispatcher.offer("tic" + i, true);
+                        if (i == 20) {
+                            dispatcher.offer("zip", false);
+                        }
+                    }
+                    release.countDown();
+                    dispatcher.awaitDrained();
+                } finally {
+                    dispatcher.stop();
+                }
+                String name = policy + (adaptive ? " adaptive" : "");
+                assertEquals(name, "start", sent.get(0));
+                assertTrue(name + ": " + sent, sent.contains("zip"));
+                assertTrue(name + ": " + sent, sent.size() < 50);
+            }
+        }
+    }
+
+    /**
+     * With the consumer stuck and the queue full, a blocking offer
+     * gives up after the maximum wait: the regular Tic is dropped,
+     * the Tic announcing a change is queued beyond the capacity.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test(timeout = 10000)
+    public void boundsTheWaitOfABlockingOffer() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        TicDispatcher dispatcher = new TicDispatcher(port(sent, release),
+                2, TicDispatcher.Policy.BLOCK, false);
+        dispatcher.start("tic-dispatcher-test");
+        long waited;
+        try {
+            dispatcher.offer("start", false);
+            dispatcher.offer("tic0", true);
+            dispatcher.offer("tic1", true);
+            long begin = System.nanoTime();
+            dispatcher.offer("tic2", true);
+            dispatcher.offer("zip", false);
+            waited = (System.nanoTime() - begin) / 1000000;
+            release.countDown();
+            dispatcher.awaitDrained();
+        } finally {
+            release.countDown();
+            dispatcher.stop();
+        }
+        assertTrue("waited " + waited + " ms",
+                waited < 4 * TicDispatcher.MAX_WAIT_MS);
+        assertEquals(Arrays.asList("start", "tic0", "tic1", "zip"), sent);
+        assertEquals(1, dispatcher.getDropped());
+    }
+
+    /**
+     * An offer waiting for space in the queue returns as soon as the
+     * stage is stopped.
+     *
+     * @throws Exception if interrupted
+     */
+    @Test(timeout = 10000)
+    public void releasesAWaitingOfferOnStop() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        TicDispatcher dispatcher = new TicDispatcher(port(sent, release),
+                1, TicDispatcher.Policy.BLOCK, false);
+        dispatcher.start("tic-dispatcher-test");
+        Thread offering = new Thread(() -> {
+            dispatcher.offer("start", false);
+            dispatcher.offer("zip", false);
+            dispatcher.offer("offset", false);
+        });
+        try {
+            offering.start();
+            Thread.sleep(100);
+            dispatcher.stop();
+            offering.join(TicDispatcher.MAX_WAIT_MS / 2);
+            assertFalse(offering.isAlive());
+        } finally {
+            release.countDown();
+        }
+        offering.join();
+        assertFalse(sent.contains("offset"));
+    }
+
+    /**
+     * @param sent    receives the payloads sent through the port
+     * @param release opened when the consumer can take the Tics
+     * @return the port
+     */
+    private static Port port(final List<String> sent,
+                             final CountDownLatch release) {
+        return (Port) Proxy.newProxyInstance(
+                TicDispatcherTest.class.getClassLoader(),
+                new Class<?>[]{Port.class}, (proxy, method, args) -> {
+                    if ("send".equals(method.getName())) {
+                        release.await();
+                        sent.add((String) args[0]);
+                    } else if (method.getReturnType() == int.class) {
+                        return 1;
+                    }
+                    return null;
+                });
+    }
+
+}
@@ -0,0 +1,252 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A subscriber that stops reading keeps its Tics announcing a change
+ * and delays neither the Timekeeper nor the other subscribers. The
+ * stream listens on the loopback interface and only serves browsers
+ * of the allowed origins.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TicStreamTest {
+
+    /**
+     * Padding of the regular Tics, to fill the connection quickly.
+     */
+    private static final String PADDING = new String(new char[16384])
+            .replace('\0', 'x');
+    /**
+     * Origin allowed to read the stream.
+     */
+    private static final String ORIGIN = "http://localhost:8080";
+
+    /**
+     * The stream under test.
+     */
+    private TicStream stream;
+
+    /**
+     * @throws IOException if the server cannot be bound
+     */
+    @Before
+    public void setUp() throws IOException {
+        stream = new TicStream("", 0, Collections.singletonList(ORIGIN));
+        stream.start("tic-stream-test");
+    }
+
+    /**
+     * Stop the stream.
+     */
+    @After
+    public void tearDown() {
+        stream.stop();
+    }
+
+    /**
+     * With the queue of a stalled subscriber full, the oldest regular
+     * Tic is evicted, never a Tic announcing a change.
+     *
+     * @throws Exception if the stream cannot be read
+     */
+    @Test(timeout = 30000)
+    public void keepsTheControlTicsOfAStalledSubscriber() throws Exception {
+        BufferedReader stalled = connect();
+        stall();
+        for (int i = 0; i < 40; i++) {
+            stream.offer("{\"control\":" + i + "}", false);
+            stream.offer("{\"regular\":" + i + "}", true);
+        }
+        List<Integer> controls = new ArrayList<>();
+        String line;
+        while (controls.size() < 40 && (line = stalled.readLine()) != null) {
+            if (line.startsWith("data: {\"control\":")) {
+                controls.add(Integer.parseInt(line.substring(
+                        "data: {\"control\":".length(), line.length() - 1)));
+            }
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            expected.add(i);
+        }
+        assertEquals(expected, controls);
+    }
+
+    /**
+     * While a subscriber is stalled, still subscribed, the Tics are
+     * offered without waiting and a new subscriber receives all the
+     * Tics announcing a change, in order, up to the last regular Tic.
+     *
+     * @throws Exception if the stream cannot be read
+     */
+    @Test(timeout = 30000)
+    public void aStalledSubscriberDelaysNoOne() throws Exception {
+        BufferedReader stalled = connect();
+        stall();
+        BufferedReader reader = connect();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            stream.offer("{\"regular\":" + i + "}", true);
+            if (i % 100 == 0) {
+                stream.offer("{\"control\":" + i / 100 + "}", false);
+            }
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        assertTrue(elapsed + " ms to offer", elapsed < 1000);
+        int controls = 0;
+        String line;
+        do {
+            line = reader.readLine();
+            if (line.startsWith("data: {\"control\":")) {
+                assertEquals("data: {\"control\":" + controls++ + "}",
+                        line);
+            }
+        } while (!line.equals("data: {\"regular\":999}"));
+        assertEquals(10, controls);
+        assertEquals(2, stream.getStats().get("clients").asInt());
+        stalled.close();
+    }
+
+    /**
+     * By default, the stream only listens on the loopback interface.
+     */
+    @Test
+    public void listensOnTheLoopbackByDefault() {
+        assertTrue(stream.getAddress().getAddress().isLoopbackAddress());
+    }
+
+    /**
+     * A browser of an allowed origin reads the stream, only for this
+     * origin; other origins are refused; a request without origin is
+     * not from a browser and is served without CORS header.
+     *
+     * @throws Exception if the stream cannot be read
+     */
+    @Test(timeout = 30000)
+    public void servesOnlyTheAllowedOrigins() throws Exception {
+        List<String> allowed = request(ORIGIN);
+        assertEquals("HTTP/1.1 200 OK", allowed.get(0));
+        assertTrue(allowed.toString(), allowed.contains(
+                "access-control-allow-origin: " + ORIGIN));
+        List<String> refused = request("http://example.com");
+        assertTrue(refused.get(0), refused.get(0).startsWith("HTTP/1.1 403"));
+        List<String> local = request(null);
+        assertEquals("HTTP/1.1 200 OK", local.get(0));
+        for (String header : local) {
+            assertFalse(header, header.startsWith("access-control"));
+        }
+    }
+
+    /**
+     * @param origin the origin of the request, null for none
+     * @return the status line and the headers of the response,
+     * names in lower case
+     * @throws IOException if the stream cannot be read
+     */
+    private List<String> request(final String origin) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                stream.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + TicStream.PATH + " HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + (origin == null ? "" : "Origin: " + origin + "\r\n")
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            List<String> response = new ArrayList<>();
+            response.add(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                response.add(line.substring(0, colon).toLowerCase()
+                        + line.substring(colon));
+            }
+            return response;
+        }
+    }
+
+    /**
+     * @return the stream of a new subscriber, once subscribed
+     * @throws IOException if the stream cannot be opened
+     */
+    private BufferedReader connect() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + stream.getPort() + TicStream.PATH)
+                .openConnection();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("retry: 2000", reader.readLine());
+        return reader;
+    }
+
+    /**
+     * Offer regular Tics until the writes to the subscribers
+     * stop progressing, i.e. a connection is full.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void stall() throws InterruptedException {
+        long sent = -1;
+        while (true) {
+            for (int i = 0; i < 50; i++) {
+                stream.offer("{\"padding\":\"" + PADDING + "\"}", true);
+                Thread.sleep(1);
+            }
+            Thread.sleep(200);
+            long now = stream.getStats().get("sent").asLong();
+            if (now == sent) {
+                return;
+            }
+            sent = now;
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.kevoree.annotation.Param;
+import org.kevoree.api.ModelService;
+import org.kevoree.api.Port;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timekeepers outside of a Kevoree runtime for the tests: the params
+ * are injected as Kevoree would (default values unless given) and the
+ * tic port records what it is sent.
+ *
+ * @author Jacky Bourgeois
+ */
+final class TimekeeperFixture {
+
+    /**
+     * Utility class.
+     */
+    private TimekeeperFixture() {
+    }
+
+    /**
+     * @param keyValues param names followed by their value
+     * @return the params
+     */
+    static Map<String, String> params(final String... keyValues) {
+        Map<String, String> params = new HashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            params.put(keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+
+    /**
+     * Create and start a Timekeeper.
+     *
+     * @param params the params different from their default value
+     * @param port   the tic port
+     * @return the started Timekeeper
+     * @throws Exception if the Timekeeper cannot be set up
+     */
+    static Timekeeper start(final Map<String, String> params,
+                            final Port port) throws Exception {
+        return start(new Timekeeper(), params, port);
+    }
+
+    /**
+     * Start a Timekeeper, e.g. a subclass recording its notifications.
+     *
+     * @param timekeeper the Timekeeper, not started yet
+     * @param params     the params different from their default value
+     * @param port       the tic port
+     * @param <T>        the type of the Timekeeper
+     * @return the started Timekeeper
+     * @throws Exception if the Timekeeper cannot be set up
+     */
+    static <T extends Timekeeper> T start(final T timekeeper,
+                                          final Map<String, String> params,
+                                          final Port port) throws Exception {
+        for (Field field : Timekeeper.class.getDeclaredFields()) {
+            Param param = field.getAnnotation(Param.class);
+            if (param != null) {
+                String value = params.containsKey(field.getName())
+                        ? params.get(field.getName()) : param.defaultValue();
+                field.setAccessible(true);
+                field.set(timekeeper, parse(field.getType(), value));
+            }
+        }
+        inject(timekeeper, "tic", port);
+        inject(timekeeper, "modelService", proxy(ModelService.class));
+        timekeeper.start();
+        return timekeeper;
+    }
+
+    /**
+     * A tic port bound to one consumer.
+     *
+     * @param sent  receives the payloads sent through the port
+     * @param delay time taken by the consumer for each Tic (ms)
+     * @return the port
+     */
+    static Port port(final List<String> sent, final long delay) {
+        return (Port) Proxy.newProxyInstance(
+                TimekeeperFixture.class.getClassLoader(),
+                new Class<?>[]{Port.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "send":
+                            sent.add((String) args[0]);
+                            if (delay > 0) {
+                                Thread.sleep(delay);
+                            }
+                            return null;
+                        case "getConnectedBindingsSize":
+                            return 1;
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * @param type the interface
+     * @param <T>  the interface
+     * @return an implementation doing nothing
+     */
+    static <T> T proxy(final Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(
+                TimekeeperFixture.class.getClassLoader(),
+                new Class<?>[]{type}, (proxy, method, args) ->
+                        defaultValue(method.getReturnType())));
+    }
+
+    /**
+     * @param timekeeper the Timekeeper
+     * @param name       the name of the field
+     * @param value      the value to inject
+     * @throws ReflectiveOperationException if the field does not exist
+     */
+    private static void inject(final Timekeeper timekeeper,
+                               final String name,
+                               final Object value)
+            throws ReflectiveOperationException {
+        Field field = Timekeeper.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(timekeeper, value);
+    }
+
+    /**
+     * @param type  the type of the param
+     * @param value the value as String
+     * @return the value of the param
+     */
+    private static Object parse(final Class<?> type, final String value) {
+        if (type == int.class) {
+            return Integer.parseInt(value);
+        } else if (type == double.class) {
+            return Double.parseDouble(value);
+        } else if (type == boolean.class) {
+            return Boolean.parseBoolean(value);
+        }
+        return value;
+    }
+
+    /**
+     * @param type the return type of a method
+     * @return the default value of the type
+     */
+    private static Object defaultValue(final Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return '\0';
+        }
+        return null;
+    }
+
+    /**
+     * A Timekeeper recording the DataPoints it notifies.
+     */
+    static final class Recording extends Timekeeper {
+
+        /**
+         * The DataPoints notified, in order.
+         */
+        private final List<Notified> notified = new ArrayList<>();
+
+        @Override
+        void sendDataPoint(final String dest,
+                           final String metric,
+                           final long ts,
+                           final String value) {
+            synchronized (notified) {
+                notified.add(new Notified(dest, metric, ts, value,
+                        getClockState().getUTCTime()));
+                notified.notifyAll();
+            }
+        }
+
+        /**
+         * @param metric the metric of the DataPoints
+         * @return the DataPoints of the metric notified so far
+         */
+        List<Notified> notified(final String metric) {
+            List<Notified> matching = new ArrayList<>();
+            synchronized (notified) {
+                for (Notified dataPoint : notified) {
+                    if (dataPoint.metric.equals(metric)) {
+                        matching.add(dataPoint);
+                    }
+                }
+            }
+            return matching;
+        }
+
+        /**
+         * Wait for a number of DataPoints of a metric.
+         *
+         * @param metric the metric of the DataPoints
+         * @param count  the number of DataPoints to wait for
+         * @return the DataPoints of the metric notified so far
+         * @throws InterruptedException if interrupted while waiting
+         */
+        List<Notified> await(final String metric, final int count)
+                throws InterruptedException {
+            synchronized (notified) {
+                while (notified(metric).size() < count) {
+                    notified.wait();
+                }
+            }
+            return notified(metric);
+        }
+    }
+
+    /**
+     * A DataPoint notified by a Timekeeper.
+     */
+    static final class Notified {
+        /**
+         * The component notified.
+         */
+        final String dest;
+        /**
+         * The metric of the DataPoint.
+         */
+        final String metric;
+        /**
+         * The simulated time of the DataPoint.
+         */
+        final long ts;
+        /**
+         * The value of the DataPoint.
+         */
+        final String value;
+        /**
+         * The simulated time of the clock when notified.
+         */
+        final long clock;
+
+        /**
+         * @param theDest   the component notified
+         * @param theMetric the metric of the DataPoint
+         * @param theTS     the simulated time of the DataPoint
+         * @param theValue  the value of the DataPoint
+         * @param theClock  the simulated time of the clock when notified
+         */
+        Notified(final String theDest, final String theMetric,
+                 final long theTS, final String theValue,
+                 final long theClock) {
+            dest = theDest;
+            metric = theMetric;
+            ts = theTS;
+            value = theValue;
+            clock = theClock;
+        }
+
+        @Override
+        public String toString() {
+            return dest + " " + metric + "@" + ts + "=" + value;
+        }
+    }
+
+}
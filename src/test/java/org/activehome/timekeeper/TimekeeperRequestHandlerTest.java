@@ -0,0 +1,246 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A batch applies its commands in order, as one step for the
+ * scheduled events and the consumers of the Tics, or not at all.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TimekeeperRequestHandlerTest {
+
+    /**
+     * Number of batches sent while the Tics are running.
+     */
+    private static final int BATCHES = 100;
+
+    /**
+     * The results come in the order of the commands, and a single Tic
+     * announces the final state, with the command of the last one.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 10000)
+    public void appliesTheCommandsInOrder() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Timekeeper timekeeper = start(sent);
+        try {
+            TimekeeperRequestHandler handler = handler(timekeeper);
+            JsonArray results = handler.batch(new JsonArray()
+                    .add("pauseTime").add(setZip("x2")).add("resumeTime")
+                    .add(setZip("x3")).add("pauseTime"));
+            assertEquals(5, results.size());
+            assertTrue(results.get(0).asBoolean());
+            assertTrue(results.get(2).asBoolean());
+            assertTrue(results.get(4).asBoolean());
+            assertEquals(3.0, timekeeper.getClockState().getZip(), 0);
+            assertEquals(TimeStatus.IDLE,
+                    timekeeper.getClockState().getStatus());
+            timekeeper.awaitDelivery();
+        } finally {
+            timekeeper.stop();
+        }
+        List<TicRecord> announced = announced(sent);
+        assertEquals(announced.toString(), 1, announced.size());
+        assertEquals(TimeCommand.PAUSE, announced.get(0).getCommand());
+        assertEquals(3.0, announced.get(0).getZip(), 0);
+    }
+
+    /**
+     * A failing command stops the batch and undoes the commands
+     * applied before it, without any Tic: the time runs on at its zip.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 10000)
+    public void restoresTheStateOfAFailedBatch() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Timekeeper timekeeper = start(sent);
+        try {
+            TimekeeperRequestHandler handler = handler(timekeeper);
+            JsonObject breakAt = new JsonObject();
+            breakAt.add("method", "breakAt");
+            breakAt.add("params", new JsonArray().add("+1d").add("stop"));
+            JsonArray results = handler.batch(new JsonArray()
+                    .add("pauseTime").add(setZip("x2")).add(breakAt)
+                    .add("resumeTime").add("unknown").add("pauseTime"));
+            assertEquals(5, results.size());
+            assertTrue(results.get(3).asBoolean());
+            assertTrue(results.get(4).asObject().get("error") != null);
+            assertEquals(36000.0, timekeeper.getClockState().getZip(), 0);
+            assertEquals(TimeStatus.RUNNING,
+                    timekeeper.getClockState().getStatus());
+            assertTrue(handler.getBreakpoints().isEmpty());
+            timekeeper.awaitDelivery();
+            int before = sent.size();
+            Thread.sleep(50);
+            timekeeper.awaitDelivery();
+            assertTrue("no Tic after the batch", sent.size() > before);
+        } finally {
+            timekeeper.stop();
+        }
+        assertTrue(announced(sent).toString(), announced(sent).isEmpty());
+    }
+
+    /**
+     * While the regular Tics are due every 1.7 ms, batches change the
+     * zip for a few milliseconds, then to another one. No Tic carries
+     * the intermediate zip, neither a scheduled Tic between the
+     * commands nor the Tic of the first command, and each batch
+     * sends a Tic at its final zip.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 30000)
+    public void scheduledTicsNeverInterleave() throws Exception {
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        Timekeeper timekeeper = start(sent);
+        try {
+            TimekeeperRequestHandler handler = handler(timekeeper);
+            JsonArray[] batches = new JsonArray[2];
+            for (int b = 0; b < batches.length; b++) {
+                batches[b] = new JsonArray().add(setZip("x36001"));
+                for (int i = 0; i < 1000; i++) {
+                    batches[b].add("getProperties");
+                }
+                batches[b].add(setZip("x" + (36002 - 2 * b)));
+            }
+            for (int i = 0; i < BATCHES; i++) {
+                handler.batch(batches[i % 2]);
+                Thread.sleep(2);
+            }
+            timekeeper.awaitDelivery();
+        } finally {
+            timekeeper.stop();
+        }
+
+        int intermediate = 0;
+        int changed = 0;
+        int regular = 0;
+        synchronized (sent) {
+            for (String payload : sent) {
+                TicRecord tic = TicCodec.read(payload);
+                if (tic.getZip() == 36001) {
+                    intermediate++;
+                } else if (tic.getZip() == 36002) {
+                    changed++;
+                } else if (tic.getCommand() == TimeCommand.CARRYON) {
+                    regular++;
+                }
+            }
+        }
+        assertEquals(0, intermediate);
+        assertTrue(changed + " Tics at the final zip", changed >= BATCHES / 2);
+        assertTrue(regular + " regular Tics", regular > BATCHES);
+    }
+
+    /**
+     * @param sent the Tics sent
+     * @return the Tics announcing a command other than CARRYON,
+     * or a zip other than that of the regular Tics
+     */
+    private static List<TicRecord> announced(final List<String> sent) {
+        List<TicRecord> announced = new ArrayList<>();
+        synchronized (sent) {
+            for (String payload : sent) {
+                TicRecord tic = TicCodec.read(payload);
+                if (tic.getCommand() != TimeCommand.CARRYON
+                        && tic.getCommand() != TimeCommand.START
+                        && tic.getCommand() != TimeCommand.INIT
+                        || tic.getZip() != 36000) {
+                    announced.add(tic);
+                }
+            }
+        }
+        return announced;
+    }
+
+    /**
+     * @param zip the new zip
+     * @return the command setting the zip
+     */
+    private static JsonObject setZip(final String zip) {
+        JsonObject properties = new JsonObject();
+        properties.add("zip", zip);
+        JsonObject command = new JsonObject();
+        command.add("method", "setProperties");
+        command.add("params", new JsonArray().add(properties));
+        return command;
+    }
+
+    /**
+     * Start a Timekeeper sending a Tic every simulated minute,
+     * i.e. every 1.7 ms, without dropping any.
+     *
+     * @param sent receives the Tics
+     * @return the running Timekeeper
+     * @throws Exception if the Timekeeper cannot run
+     */
+    private static Timekeeper start(final List<String> sent)
+            throws Exception {
+        Timekeeper timekeeper = TimekeeperFixture.start(
+                TimekeeperFixture.params(
+                        "startDate", "2016-01-01 00:00:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "UTC",
+                        "ticPeriod", "1min",
+                        "ticFormat", "binary",
+                        "ticQueueSize", "100000",
+                        "ticOverflow", "block",
+                        "adaptiveTics", "false"),
+                TimekeeperFixture.port(sent, 0));
+        timekeeper.init();
+        timekeeper.startTime();
+        return timekeeper;
+    }
+
+    /**
+     * @param timekeeper the Timekeeper
+     * @return its request handler
+     */
+    private static TimekeeperRequestHandler handler(
+            final Timekeeper timekeeper) {
+        return (TimekeeperRequestHandler)
+                timekeeper.getRequestHandler(null);
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The offsets indexed by period match those of the time zone,
+ * around each transition and past the end of the index.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TimezoneIndexTest {
+
+    /**
+     * 1900-01-01 00:00:00 UTC.
+     */
+    private static final long FROM = -2208988800000L;
+    /**
+     * 2300-01-01 00:00:00 UTC, a century past the end of the index.
+     */
+    private static final long TO = 10413792000000L;
+    /**
+     * One hour, in milliseconds.
+     */
+    private static final long HOUR = 3600000L;
+
+    /**
+     * Around each transition from 1900 to 2300, and every hour
+     * of 2016, the offset and the next transition are those of the
+     * time zone: whole hours, half hours (+5:30, +9:30/+10:30),
+     * northern and southern daylight saving time.
+     */
+    @Test
+    public void matchesTheTimeZone() {
+        for (String id : new String[]{"Europe/London", "Asia/Kolkata",
+                "Australia/Adelaide", "Pacific/Auckland",
+                "America/St_Johns", "UTC"}) {
+            TimezoneIndex index = new TimezoneIndex(ZoneId.of(id));
+            TimeZone zone = TimeZone.getTimeZone(id);
+            ZoneRules rules = ZoneId.of(id).getRules();
+            List<Long> transitions = transitions(rules);
+            for (long transition : transitions) {
+                for (long ts = transition - 1; ts <= transition + 1; ts++) {
+                    assertEquals(id + " at " + Instant.ofEpochMilli(ts),
+                            zone.getOffset(ts) / 60000,
+                            index.offsetMinutes(ts));
+                }
+                assertEquals(id + " after " + Instant.ofEpochMilli(
+                        transition - 1), transition,
+                        index.nextTransition(transition - 1));
+            }
+            for (long ts = 1451606400000L; ts < 1483228800000L; ts += HOUR) {
+                assertEquals(id + " at " + Instant.ofEpochMilli(ts),
+                        zone.getOffset(ts) / 60000, index.offsetMinutes(ts));
+            }
+        }
+    }
+
+    /**
+     * The half-hour offsets, in minutes: +5:30 all year in Kolkata,
+     * +9:30 in winter and +10:30 in summer in Adelaide; and the
+     * daylight saving time of London after 2200, from the rules.
+     */
+    @Test
+    public void givesTheOffsetInMinutes() {
+        TimezoneIndex kolkata = new TimezoneIndex(ZoneId.of("Asia/Kolkata"));
+        assertEquals(330, kolkata.offsetMinutes(1466467200000L));
+        assertEquals(TimezoneIndex.NONE,
+                kolkata.nextTransition(1466467200000L));
+        TimezoneIndex adelaide =
+                new TimezoneIndex(ZoneId.of("Australia/Adelaide"));
+        assertEquals(570, adelaide.offsetMinutes(1466467200000L));
+        assertEquals(630, adelaide.offsetMinutes(1451606400000L));
+        TimezoneIndex london = new TimezoneIndex(ZoneId.of("Europe/London"));
+        long summer2250 = Instant.parse("2250-07-01T00:00:00Z").toEpochMilli();
+        long winter2250 = Instant.parse("2250-12-01T00:00:00Z").toEpochMilli();
+        assertEquals(60, london.offsetMinutes(summer2250));
+        assertEquals(0, london.offsetMinutes(winter2250));
+        long next = london.nextTransition(summer2250);
+        assertTrue(next > summer2250 && next < winter2250);
+        assertEquals(0, london.offsetMinutes(next));
+        assertEquals(60, london.offsetMinutes(next - 1));
+    }
+
+    /**
+     * At the change to summer time, the context is notified of the
+     * new offset and a Tic carries it, at the time of the change.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 10000)
+    public void notifiesTheOffsetChange() throws Exception {
+        long change = Instant.parse("2016-03-27T01:00:00Z").toEpochMilli();
+        List<String> sent = Collections.synchronizedList(
+                new ArrayList<>());
+        TimekeeperFixture.Recording timekeeper = TimekeeperFixture.start(
+                new TimekeeperFixture.Recording(),
+                TimekeeperFixture.params(
+                        "startDate", "2016-03-27 00:30:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "Europe/London",
+                        "ticFormat", "binary"),
+                TimekeeperFixture.port(sent, 0));
+        try {
+            timekeeper.init();
+            timekeeper.startTime();
+            List<TimekeeperFixture.Notified> notified =
+                    timekeeper.await("time.utcOffset", 1);
+            assertEquals(change, notified.get(0).ts);
+            assertEquals("60", notified.get(0).value);
+            timekeeper.awaitDelivery();
+        } finally {
+            timekeeper.stop();
+        }
+        boolean announced = false;
+        synchronized (sent) {
+            for (String payload : sent) {
+                TicRecord tic = TicCodec.read(payload);
+                if (tic.getTS() < change) {
+                    assertEquals(0, tic.getOffset());
+                } else if (tic.getTS() == change) {
+                    assertEquals(60, tic.getOffset());
+                    announced = true;
+                }
+            }
+        }
+        assertTrue(announced);
+    }
+
+    /**
+     * @param rules the rules of a time zone
+     * @return the transitions from 1900 to 2300, in milliseconds
+     */
+    private static List<Long> transitions(final ZoneRules rules) {
+        List<Long> transitions = new ArrayList<>();
+        ZoneOffsetTransition transition =
+                rules.nextTransition(Instant.ofEpochMilli(FROM));
+        while (transition != null
+                && transition.getInstant().toEpochMilli() < TO) {
+            transitions.add(transition.getInstant().toEpochMilli());
+            transition = rules.nextTransition(transition.getInstant());
+        }
+        return transitions;
+    }
+
+}
@@ -0,0 +1,294 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The timing wheel runs its timers at their time, by time then
+ * scheduling order, across its levels and beyond its range.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TimingWheelTest {
+
+    /**
+     * 2016-01-01 00:00:00 UTC.
+     */
+    private static final long START = 1451606400000L;
+    /**
+     * One day, in milliseconds.
+     */
+    private static final long DAY = 86400000L;
+    /**
+     * One year, in milliseconds.
+     */
+    private static final long YEAR = 365 * DAY;
+
+    /**
+     * A timer on each level (1 ms to a few weeks ahead) is cascaded
+     * down the levels and collected exactly at its time.
+     */
+    @Test
+    public void cascadesAcrossTheLevels() {
+        TimingWheel wheel = new TimingWheel(START);
+        long[] delays = {1, 100, 5000, 300000, 20000000, 1500000000};
+        for (long delay : delays) {
+            wheel.schedule(START + delay, null);
+        }
+        for (long delay : delays) {
+            assertEquals(Collections.emptyList(),
+                    whens(poll(wheel, START + delay - 1)));
+            assertEquals(Collections.singletonList(START + delay),
+                    whens(poll(wheel, START + delay)));
+        }
+        assertEquals(TimingWheel.NONE, wheel.nextExpiration());
+    }
+
+    /**
+     * Timers more than about two years ahead wait in the overflow,
+     * and still run at their time, after the nearer ones.
+     */
+    @Test
+    public void runsTheTimersBeyondTheRange() {
+        TimingWheel wheel = new TimingWheel(START);
+        wheel.schedule(START + 10 * YEAR, null);
+        wheel.schedule(START + 3 * YEAR, null);
+        wheel.schedule(START + DAY, null);
+        assertTrue(wheel.nextExpiration() <= START + DAY);
+        assertEquals(Collections.singletonList(START + DAY),
+                whens(poll(wheel, START + 3 * YEAR - 1)));
+        assertEquals(Collections.singletonList(START + 3 * YEAR),
+                whens(poll(wheel, START + 3 * YEAR)));
+        assertEquals(Collections.emptyList(),
+                whens(poll(wheel, START + 10 * YEAR - 1)));
+        assertEquals(Collections.singletonList(START + 10 * YEAR),
+                whens(poll(wheel, START + 10 * YEAR)));
+    }
+
+    /**
+     * A timer collected but not run yet can still be cancelled:
+     * it is not put back.
+     */
+    @Test
+    public void cancelsACollectedTimer() {
+        TimingWheel wheel = new TimingWheel(START);
+        TimingWheel.Timer timer = wheel.schedule(START + 10, null);
+        assertEquals(Collections.singletonList(timer),
+                poll(wheel, START + 10));
+        assertFalse(wheel.cancel(timer));
+        assertTrue(timer.isCancelled());
+        wheel.reschedule(timer);
+        assertEquals(TimingWheel.NONE, wheel.nextExpiration());
+        assertEquals(Collections.emptyList(), poll(wheel, START + 20));
+    }
+
+    /**
+     * A timer collected but not run is put back as due, once.
+     */
+    @Test
+    public void reschedulesACollectedTimer() {
+        TimingWheel wheel = new TimingWheel(START);
+        TimingWheel.Timer timer = wheel.schedule(START + 10, null);
+        assertEquals(Collections.singletonList(timer),
+                poll(wheel, START + 10));
+        wheel.reschedule(timer);
+        wheel.reschedule(timer);
+        assertTrue(wheel.nextExpiration() <= START + 10);
+        assertEquals(Collections.singletonList(timer),
+                poll(wheel, START + 10));
+        assertTrue(wheel.cancel(wheel.schedule(START + 20, null)));
+        assertFalse(wheel.cancel(timer));
+        assertEquals(TimingWheel.NONE, wheel.nextExpiration());
+    }
+
+    /**
+     * Timers scheduled in the past are due at once, by time then
+     * scheduling order.
+     */
+    @Test
+    public void ordersTheTimersScheduledInThePast() {
+        TimingWheel wheel = new TimingWheel(START);
+        poll(wheel, START + 1000);
+        List<TimingWheel.Timer> timers = new ArrayList<>();
+        for (long when : new long[]{500, 300, 700, 300, 1000, 0}) {
+            timers.add(wheel.schedule(START + when, null));
+        }
+        assertEquals(START + 1000, wheel.nextExpiration());
+        assertEquals(Arrays.asList(timers.get(5), timers.get(1),
+                timers.get(3), timers.get(0), timers.get(2), timers.get(4)),
+                poll(wheel, START + 1000));
+    }
+
+    /**
+     * The next expiration never comes after the first timer, and no
+     * timer is due before it.
+     */
+    @Test
+    public void boundsTheNextExpiration() {
+        Random random = new Random(42);
+        TimingWheel wheel = new TimingWheel(START);
+        long now = START;
+        List<Long> pending = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            long when = now + randomDelay(random);
+            wheel.schedule(when, null);
+            pending.add(when);
+            long first = Collections.min(pending);
+            long next = wheel.nextExpiration();
+            assertTrue(next + " > " + first, next <= first);
+            if (next > now) {
+                assertEquals(Collections.emptyList(), poll(wheel, next - 1));
+                now = next - 1;
+            }
+            if (random.nextInt(4) == 0) {
+                now = first;
+                pending.removeAll(whens(poll(wheel, now)));
+            }
+        }
+    }
+
+    /**
+     * Random schedules, cancels and polls run the same timers, in the
+     * same order, as a priority queue ordered by time then scheduling
+     * order.
+     */
+    @Test
+    public void matchesAPriorityQueue() {
+        Random random = new Random(7);
+        TimingWheel wheel = new TimingWheel(START);
+        PriorityQueue<Ref> reference = new PriorityQueue<>();
+        List<Ref> live = new ArrayList<>();
+        long now = START;
+        for (int i = 0; i < 20000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6) {
+                long when = now + randomDelay(random)
+                        - (random.nextInt(8) == 0 ? 1000 : 0);
+                Ref ref = new Ref(wheel.schedule(when, null), i);
+                reference.add(ref);
+                live.add(ref);
+            } else if (op < 7 && !live.isEmpty()) {
+                Ref ref = live.remove(random.nextInt(live.size()));
+                assertTrue(wheel.cancel(ref.timer));
+                reference.remove(ref);
+            } else {
+                if (random.nextBoolean() && !reference.isEmpty()) {
+                    now = Math.max(now, reference.peek().timer.getWhen());
+                } else {
+                    now += randomDelay(random);
+                }
+                List<TimingWheel.Timer> expected = new ArrayList<>();
+                while (!reference.isEmpty()
+                        && reference.peek().timer.getWhen() <= now) {
+                    Ref ref = reference.poll();
+                    live.remove(ref);
+                    expected.add(ref.timer);
+                }
+                assertEquals("poll at " + (now - START), expected,
+                        poll(wheel, now));
+            }
+        }
+    }
+
+    /**
+     * @param random the random generator
+     * @return a delay from 1 ms to 3 years, evenly spread in magnitude
+     */
+    private static long randomDelay(final Random random) {
+        int bits = 1 + random.nextInt(37);
+        return 1 + (random.nextLong() >>> (64 - bits));
+    }
+
+    /**
+     * @param wheel the wheel
+     * @param now   the current simulated time
+     * @return the timers due at that time
+     */
+    private static List<TimingWheel.Timer> poll(final TimingWheel wheel,
+                                                final long now) {
+        List<TimingWheel.Timer> due = new ArrayList<>();
+        wheel.poll(now, due);
+        return due;
+    }
+
+    /**
+     * @param timers some timers
+     * @return their times
+     */
+    private static List<Long> whens(final List<TimingWheel.Timer> timers) {
+        List<Long> whens = new ArrayList<>();
+        for (TimingWheel.Timer timer : timers) {
+            whens.add(timer.getWhen());
+        }
+        return whens;
+    }
+
+    /**
+     * A timer in the reference queue.
+     */
+    private static final class Ref implements Comparable<Ref> {
+        /**
+         * The timer.
+         */
+        private final TimingWheel.Timer timer;
+        /**
+         * The scheduling order.
+         */
+        private final long order;
+
+        /**
+         * @param theTimer the timer
+         * @param theOrder the scheduling order
+         */
+        Ref(final TimingWheel.Timer theTimer, final long theOrder) {
+            timer = theTimer;
+            order = theOrder;
+        }
+
+        @Override
+        public int compareTo(final Ref other) {
+            int byTime = Long.compare(timer.getWhen(), other.timer.getWhen());
+            if (byTime != 0) {
+                return byTime;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+}
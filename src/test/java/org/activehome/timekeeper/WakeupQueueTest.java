@@ -0,0 +1,107 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The wakeups are due by time, grouped by destination, once.
+ *
+ * @author Jacky Bourgeois
+ */
+public class WakeupQueueTest {
+
+    /**
+     * The wakeups due at the same time are grouped by destination,
+     * in the order of registration; the later ones stay pending.
+     */
+    @Test
+    public void groupsTheWakeupsDueAtTheSameTime() {
+        WakeupQueue queue = new WakeupQueue();
+        queue.add("a", 200, "a2");
+        queue.add("a", 100, "a1");
+        queue.add("b", 100, "b1");
+        queue.add("a", 100, "a1bis");
+        assertEquals(Long.valueOf(100), queue.next());
+        Map<Long, Map<String, List<String>>> due = queue.pollDue(150);
+        assertEquals(Collections.singleton(100L), due.keySet());
+        assertEquals(Arrays.asList("a1", "a1bis"), due.get(100L).get("a"));
+        assertEquals(Collections.singletonList("b1"), due.get(100L).get("b"));
+        assertEquals(Long.valueOf(200), queue.next());
+        assertTrue(queue.pollDue(150).isEmpty());
+        assertEquals(Collections.singletonList("a2"),
+                queue.pollDue(200).get(200L).get("a"));
+        assertNull(queue.next());
+    }
+
+    /**
+     * A wakeup can be cancelled until it is due, once.
+     */
+    @Test
+    public void cancelsAPendingWakeupOnly() {
+        WakeupQueue queue = new WakeupQueue();
+        long first = queue.add("a", 100, "first");
+        long second = queue.add("a", 100, "second");
+        long later = queue.add("a", 200, "later");
+        assertTrue(queue.cancel(first));
+        assertFalse(queue.cancel(first));
+        assertEquals(Collections.singletonList("second"),
+                queue.pollDue(100).get(100L).get("a"));
+        assertFalse(queue.cancel(second));
+        assertTrue(queue.cancel(later));
+        assertNull(queue.next());
+    }
+
+    /**
+     * A copy restores the wakeups registered and the ids given.
+     */
+    @Test
+    public void restoresACopy() {
+        WakeupQueue queue = new WakeupQueue();
+        long kept = queue.add("a", 100, "kept");
+        WakeupQueue saved = queue.copy();
+        queue.cancel(kept);
+        long added = queue.add("a", 50, "added");
+        queue.restore(saved);
+        assertEquals(Long.valueOf(100), queue.next());
+        assertFalse(queue.cancel(added));
+        assertEquals(added, queue.add("a", 300, "again"));
+        assertEquals(Collections.singletonList("kept"),
+                queue.pollDue(100).get(100L).get("a"));
+    }
+
+}
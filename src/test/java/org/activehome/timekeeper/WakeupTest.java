@@ -0,0 +1,163 @@
+package org.activehome.timekeeper;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The wakeups requested through scheduleAt are notified at their
+ * simulated time, one notification per destination and time,
+ * unless cancelled.
+ *
+ * @author Jacky Bourgeois
+ */
+public class WakeupTest {
+
+    /**
+     * 2016-01-01 00:00:00 UTC.
+     */
+    private static final long START = 1451606400000L;
+    /**
+     * One hour, in milliseconds (100 ms at x36000).
+     */
+    private static final long HOUR = 3600000L;
+
+    /**
+     * Wakeups at the same time are notified together at that time;
+     * a wakeup cancelled before its time is never notified, and
+     * cannot be cancelled after it fired.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 10000)
+    public void notifiesTheWakeupsAtTheirTime() throws Exception {
+        TimekeeperFixture.Recording timekeeper = start();
+        try {
+            TimekeeperRequestHandler handler = handler(timekeeper);
+            long a = handler.scheduleAt("dest", START + HOUR, "a");
+            handler.scheduleAt("dest", START + HOUR, "b");
+            handler.scheduleAt("other", START + HOUR, "c");
+            long cancelled = handler.scheduleAt("dest", START + 2 * HOUR,
+                    "cancelled");
+            handler.scheduleAt("dest", START + 3 * HOUR, "last");
+            assertTrue(handler.cancel(cancelled));
+            assertFalse(handler.cancel(cancelled));
+
+            List<TimekeeperFixture.Notified> notified =
+                    timekeeper.await("time.wakeup", 3);
+            assertEquals(notified.toString(), 3, notified.size());
+            assertEquals("dest", notified.get(0).dest);
+            assertEquals("[\"a\",\"b\"]", notified.get(0).value);
+            assertEquals("other", notified.get(1).dest);
+            assertEquals("[\"c\"]", notified.get(1).value);
+            assertEquals("[\"last\"]", notified.get(2).value);
+            for (int i = 0; i < 2; i++) {
+                assertEquals(START + HOUR, notified.get(i).ts);
+                assertTrue(notified.get(i).clock >= START + HOUR);
+            }
+            assertEquals(START + 3 * HOUR, notified.get(2).ts);
+            assertFalse(handler.cancel(a));
+        } finally {
+            timekeeper.stop();
+        }
+    }
+
+    /**
+     * Cancelling the next wakeup cancels its scheduled delivery,
+     * which moves to the following wakeup.
+     *
+     * @throws Exception if the Timekeeper cannot run
+     */
+    @Test(timeout = 10000)
+    public void cancelsTheScheduledDelivery() throws Exception {
+        TimekeeperFixture.Recording timekeeper = start();
+        try {
+            TimekeeperRequestHandler handler = handler(timekeeper);
+            long next = handler.scheduleAt("dest", START + 2 * HOUR, "next");
+            TimingWheel.Timer delivery = wakeupTask(timekeeper);
+            handler.scheduleAt("dest", START + 3 * HOUR, "later");
+            assertTrue(handler.cancel(next));
+            assertTrue(delivery.isCancelled());
+            assertEquals(START + 3 * HOUR,
+                    wakeupTask(timekeeper).getWhen());
+            List<TimekeeperFixture.Notified> notified =
+                    timekeeper.await("time.wakeup", 1);
+            assertEquals("[\"later\"]", notified.get(0).value);
+        } finally {
+            timekeeper.stop();
+        }
+    }
+
+    /**
+     * @return a running Timekeeper recording its notifications,
+     * one simulated hour every 100 ms
+     * @throws Exception if the Timekeeper cannot run
+     */
+    private static TimekeeperFixture.Recording start() throws Exception {
+        TimekeeperFixture.Recording timekeeper = TimekeeperFixture.start(
+                new TimekeeperFixture.Recording(),
+                TimekeeperFixture.params(
+                        "startDate", "2016-01-01 00:00:00",
+                        "zipFactor", "x36000",
+                        "timezoneName", "UTC"),
+                TimekeeperFixture.port(new ArrayList<>(), 0));
+        timekeeper.init();
+        timekeeper.startTime();
+        return timekeeper;
+    }
+
+    /**
+     * @param timekeeper the Timekeeper
+     * @return the scheduled delivery of the next wakeups
+     * @throws ReflectiveOperationException if the field does not exist
+     */
+    private static TimingWheel.Timer wakeupTask(final Timekeeper timekeeper)
+            throws ReflectiveOperationException {
+        Field field = Timekeeper.class.getDeclaredField("wakeupTask");
+        field.setAccessible(true);
+        return (TimingWheel.Timer) field.get(timekeeper);
+    }
+
+    /**
+     * @param timekeeper the Timekeeper
+     * @return its request handler
+     */
+    private static TimekeeperRequestHandler handler(
+            final Timekeeper timekeeper) {
+        return (TimekeeperRequestHandler)
+                timekeeper.getRequestHandler(null);
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.activehome.timekeeper.client;
+
+/*
+ * #%L
+ * Active Home :: Timekeeper
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2016 Active Home Project
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+import org.activehome.time.TimeCommand;
+import org.activehome.time.TimeStatus;
+import org.activehome.timekeeper.TicCodec;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The clock follows the Tics: actual zip, offset in minutes, and
+ * resync when the extrapolation drifts from them either way, only
+ * going back on control commands.
+ *
+ * @author Jacky Bourgeois
+ */
+public class TicClockTest {
+
+    /**
+     * Simulated time of the first Tic.
+     */
+    private static final long TS = 1451606400000L;
+
+    /**
+     * The local time uses the offset in minutes of the Tics.
+     */
+    @Test
+    public void usesTheOffsetInMinutes() {
+        TicClock clock = new TicClock();
+        clock.onTic(TicCodec.encode(TS, 1, 330, TimeStatus.IDLE,
+                TimeCommand.PAUSE));
+        assertEquals(330, clock.getOffset());
+        assertEquals(5, clock.getTimezone());
+        assertEquals(TS, clock.getUTCTime());
+        assertEquals(TS + 330 * 60000L, clock.getLocalTime());
+        clock.onTic(TicCodec.encode(TS, 1, -570, TimeStatus.IDLE,
+                TimeCommand.CARRYON));
+        assertEquals(TS - 570 * 60000L, clock.getLocalTime());
+    }
+
+    /**
+     * The time flows at the actual zip of the Tics.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void extrapolatesAtTheActualZip() throws InterruptedException {
+        TicClock clock = new TicClock();
+        clock.onTic(TicCodec.encode(TS, 0.5, 0, TimeStatus.RUNNING,
+                TimeCommand.START));
+        assertEquals(0.5, clock.getZip(), 0);
+        Thread.sleep(200);
+        long elapsed = clock.getUTCTime() - TS;
+        assertTrue(elapsed + " ms", elapsed >= 100 && elapsed < 200);
+    }
+
+    /**
+     * A regular Tic resyncs the clock when the extrapolation is behind
+     * it, or ahead of it by more than the maximum drift: the time then
+     * holds until the Tic catches up, and only a control command takes
+     * it back.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    @Test
+    public void resyncsWhenDriftingEitherWay() throws InterruptedException {
+        TicClock clock = new TicClock(100);
+        clock.onTic(TicCodec.encode(TS, 1, 0, TimeStatus.RUNNING,
+                TimeCommand.START));
+        assertEquals(1, clock.getResyncs());
+
+        // within the maximum drift: the time keeps going forward
+        clock.onTic(TicCodec.encode(TS, 1, 0, TimeStatus.RUNNING,
+                TimeCommand.CARRYON));
+        assertEquals(1, clock.getResyncs());
+
+        // ahead by more than the maximum drift: holds until the Tic
+        // catches up
+        Thread.sleep(400);
+        long reached = clock.getUTCTime();
+        clock.onTic(TicCodec.encode(TS + 10, 1, 0, TimeStatus.RUNNING,
+                TimeCommand.CARRYON));
+        assertEquals(2, clock.getResyncs());
+        assertTrue(clock.getUTCTime() >= reached);
+        assertTrue(clock.getUTCTime() < reached + 100);
+        Thread.sleep(reached - TS + 200);
+        assertTrue(clock.getUTCTime() > reached + 100);
+
+        // behind: forward to the Tic
+        clock.onTic(TicCodec.encode(TS + 60000, 1, 0, TimeStatus.RUNNING,
+                TimeCommand.CARRYON));
+        assertEquals(3, clock.getResyncs());
+        assertTrue(clock.getUTCTime() >= TS + 60000);
+
+        // a control command sets the time back
+        clock.onTic(TicCodec.encode(TS, 1, 0, TimeStatus.IDLE,
+                TimeCommand.PAUSE));
+        assertEquals(4, clock.getResyncs());
+        assertEquals(TS, clock.getUTCTime());
+        assertEquals(5, clock.getTics());
+    }
+
+}